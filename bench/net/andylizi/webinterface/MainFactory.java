@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import java.io.File;
+
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+/**
+ * Opens the package-private constructor of {@link Main} to the benchmarks. It lives in the bench tree so the
+ * plugin itself does not ship it.
+ */
+public final class MainFactory {
+    private MainFactory() {}
+
+    public static Main newPlugin(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file){
+        return new Main(loader, description, dataFolder, file);
+    }
+}
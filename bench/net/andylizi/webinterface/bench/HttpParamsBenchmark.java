@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.bench;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.andylizi.webinterface.http.HttpParams;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Query string and form body parsing, the way {@code ServerHandler} did it before ({@code legacy*}) against
+ * the indexed {@link HttpParams}. Run with {@code -prof gc} and compare {@code gc.alloc.rate.norm}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpParamsBenchmark {
+    private static final Map<String, String> NO_PATH_PARAMS = Collections.emptyMap();
+
+    @Param({"world=world_nether&player=andylizi&page=3&sort=name&desc=true&filter=%E4%B8%AD%E6%96%87"})
+    public String query;
+
+    private ByteBuf form;
+
+    @Setup
+    public void setup(){
+        form = Unpooled.directBuffer().writeBytes(query.getBytes(CharsetUtil.US_ASCII));
+    }
+
+    @TearDown
+    public void tearDown(){
+        form.release();
+    }
+
+    @Benchmark
+    public void legacyQuery(Blackhole bh) throws UnsupportedEncodingException{
+        Map<String, String> params = legacyParse(URLDecoder.decode(query, "UTF-8"), new HashMap<String, String>());
+        bh.consume(Integer.parseInt(params.get("page")));
+        bh.consume(params.get("player"));
+    }
+
+    @Benchmark
+    public void indexedQuery(Blackhole bh){
+        HttpParams params = new HttpParams(query, Unpooled.EMPTY_BUFFER, CharsetUtil.UTF_8, null, NO_PATH_PARAMS);
+        bh.consume(params.getInt("page", 0));
+        bh.consume(params.get("player"));
+    }
+
+    @Benchmark
+    public void legacyForm(Blackhole bh){
+        Map<String, String> params = legacyParse(form.toString(CharsetUtil.UTF_8), Collections.<String, String>emptyMap());
+        bh.consume(Boolean.parseBoolean(params.get("desc")));
+        bh.consume(params.get("sort"));
+    }
+
+    @Benchmark
+    public void indexedForm(Blackhole bh){
+        HttpParams params = new HttpParams(null, form, CharsetUtil.UTF_8, null, NO_PATH_PARAMS);
+        bh.consume(params.getBoolean("desc", false));
+        bh.consume(params.get("sort"));
+    }
+
+    @Benchmark
+    public Map<String, String> parseParams(){
+        return HttpParams.parseParams(query, NO_PATH_PARAMS);
+    }
+
+    private static Map<String, String> legacyParse(String params, Map<String, String> apply){
+        Map<String, String> result = new HashMap<>(apply);
+        for(String param : params.split("&")){
+            String[] entry = param.split("=", 2);
+            if(entry.length > 1)
+                result.put(entry[0], entry[1]);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.bench;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import net.andylizi.webinterface.Main;
+import net.andylizi.webinterface.ServerInitializer;
+import net.andylizi.webinterface.api.API;
+import net.andylizi.webinterface.api.Utils;
+import net.andylizi.webinterface.http.HttpModule;
+import net.andylizi.webinterface.http.HttpParams;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One keep-alive request through the whole channel pipeline, from raw bytes to the encoded response, with
+ * a module that answers a fixed body. {@code gzip} adds the compressor for bodies above the minimum size.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    private static final String MODULE_ID = "bench";
+
+    @Param({"128", "16384"})
+    public int bodySize;
+
+    @Param({"identity", "gzip"})
+    public String acceptEncoding;
+
+    private EmbeddedChannel channel;
+    private ByteBuf request;
+
+    @Setup
+    public void setup(){
+        Main plugin = StubBukkit.configuredPlugin();
+        char[] chars = new char[bodySize];
+        Arrays.fill(chars, 'x');
+        final String body = new String(chars);
+        API.registerModule(MODULE_ID, new HttpModule() {
+            @Override
+            public FullHttpResponse handleRequest(String uri, HttpParams params, FullHttpRequest request) {
+                return Utils.INSTANCE.builder().content(body).contentTypePlainText().build();
+            }
+        });
+        channel = new EmbeddedChannel(new ServerInitializer(plugin));
+        request = Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes((
+                "GET /"+MODULE_ID+"/status?player=andylizi&page=2 HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n"
+                + "Accept: application/json\r\n"
+                + "Accept-Encoding: "+acceptEncoding+"\r\n"
+                + "\r\n").getBytes(CharsetUtil.US_ASCII)));
+    }
+
+    @TearDown
+    public void tearDown(){
+        channel.finish();
+        API.unregisterModule(MODULE_ID);
+    }
+
+    @Benchmark
+    public void request(Blackhole bh){
+        channel.writeInbound(request.duplicate());
+        Object msg;
+        while((msg = channel.readOutbound()) != null){
+            bh.consume(msg);
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
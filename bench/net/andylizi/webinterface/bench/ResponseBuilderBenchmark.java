@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.bench;
+
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.concurrent.TimeUnit;
+
+import net.andylizi.webinterface.api.Utils;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building a small JSON response and an error page with {@link Utils.ResponseBuilder}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBuilderBenchmark {
+    private final StringBuilder json = new StringBuilder(256);
+
+    @Setup
+    public void setup(){
+        StubBukkit.server();
+    }
+
+    @Benchmark
+    public int json(){
+        json.setLength(0);
+        json.append("{\"player\":\"andylizi\",\"world\":\"world_nether\",\"health\":").append(20).append(",\"名字\":\"中文\"}");
+        FullHttpResponse response = Utils.INSTANCE.builder().content(json).contentTypeJSON().build();
+        int length = response.content().readableBytes();
+        response.release();
+        return length;
+    }
+
+    @Benchmark
+    public int appended(){
+        FullHttpResponse response = Utils.INSTANCE.builder()
+                .append("<html><body><ul>").append("<li>andylizi</li>").append("<li>notch</li>").append("</ul></body></html>")
+                .contentTypeHTML().build();
+        int length = response.content().readableBytes();
+        response.release();
+        return length;
+    }
+
+    @Benchmark
+    public int error(){
+        FullHttpResponse response = Utils.INSTANCE.sendError(HttpResponseStatus.NOT_FOUND);
+        int length = response.content().readableBytes();
+        response.release();
+        return length;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.bench;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+
+import java.util.concurrent.TimeUnit;
+
+import net.andylizi.webinterface.api.API;
+import net.andylizi.webinterface.api.Module;
+import net.andylizi.webinterface.api.ModuleRouter;
+import net.andylizi.webinterface.http.HttpModule;
+import net.andylizi.webinterface.http.HttpParams;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Module lookup by id and full routing of a request uri, with {@code modules} modules registered.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingBenchmark {
+    @Param({"10", "200"})
+    public int modules;
+
+    private String id;
+    private String uri;
+
+    @Setup
+    public void setup(){
+        StubBukkit.server();
+        HttpModule module = new HttpModule() {
+            @Override
+            public FullHttpResponse handleRequest(String uri, HttpParams params, FullHttpRequest request) {
+                return null;
+            }
+        };
+        for(int i = 0; i < modules; i++)
+            API.registerModule("module"+i, module, "/players/{name}/stats");
+        id = "module"+(modules / 2);
+        uri = "/"+id+"/players/andylizi/stats?page=2";
+    }
+
+    @TearDown
+    public void tearDown(){
+        for(int i = 0; i < modules; i++)
+            API.unregisterModule("module"+i);
+    }
+
+    @Benchmark
+    public Module lookupModule(){
+        return API.lookupModule(id);
+    }
+
+    @Benchmark
+    public ModuleRouter.Match route(){
+        return API.getRouter().route(uri);
+    }
+}
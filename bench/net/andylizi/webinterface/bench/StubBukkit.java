@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.bench;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import net.andylizi.webinterface.Main;
+import net.andylizi.webinterface.MainFactory;
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+/**
+ * A Bukkit server made of dynamic proxies: every interface method answers another proxy, an empty string,
+ * zero or false. Events are never cancelled and scheduled tasks never run, which is all the plugin needs
+ * outside of a Minecraft server.
+ */
+public final class StubBukkit {
+    private static final Logger LOGGER = Logger.getLogger("WebInterface-Bench");
+    private static final ConcurrentMap<Class<?>, Object> STUBS = new ConcurrentHashMap<>();
+    private static final InvocationHandler HANDLER = new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Class<?> type = method.getReturnType();
+            switch(method.getName()){
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Stub" + proxy.getClass().getInterfaces()[0].getSimpleName();
+            }
+            if(type == Logger.class)
+                return LOGGER;
+            if(type == String.class)
+                return "";
+            if(type == boolean.class)
+                return false;
+            if(type == void.class)
+                return null;
+            if(type.isPrimitive())
+                return type == long.class ? (Object) 0L : type == double.class ? (Object) 0D : type == float.class ? (Object) 0F
+                        : type == char.class ? (Object) '\0' : type == byte.class ? (Object) (byte) 0 : type == short.class ? (Object) (short) 0 : (Object) 0;
+            if(type.isInterface())
+                return stub(type);
+            return null;
+        }
+    };
+
+    private StubBukkit() {}
+
+    public static <T> T stub(Class<T> type){
+        Object stub = STUBS.get(type);
+        if(stub == null){
+            Object created = Proxy.newProxyInstance(StubBukkit.class.getClassLoader(), new Class<?>[]{type}, HANDLER);
+            stub = STUBS.putIfAbsent(type, created);
+            if(stub == null)
+                stub = created;
+        }
+        return type.cast(stub);
+    }
+
+    public static synchronized Server server(){
+        if(Bukkit.getServer() == null)
+            Bukkit.setServer(stub(Server.class));
+        return Bukkit.getServer();
+    }
+
+    /**
+     * Creates the plugin with {@code dataFolder} as its data folder. {@code onEnable} is not called.
+     */
+    public static Main plugin(File dataFolder){
+        return MainFactory.newPlugin(new JavaPluginLoader(server()), new PluginDescriptionFile("WebInterface", "bench", Main.class.getName()),
+                dataFolder, new File(dataFolder, "WebInterface.jar"));
+    }
+
+    /**
+     * Creates the plugin and sets up the fields {@code onEnable} would read from the default config.
+     */
+    public static Main configuredPlugin(){
+        Main plugin = plugin(new File(System.getProperty("java.io.tmpdir"), "WebInterface-bench"));
+        plugin.keepAlive = true;
+        plugin.maxKeepAliveRequests = 0;
+        plugin.maxPipelinedRequests = 16;
+        plugin.maxContentLength = 65536;
+        plugin.compression = true;
+        plugin.compressionLevel = 6;
+        plugin.compressionMinSize = 1024;
+        return plugin;
+    }
+}
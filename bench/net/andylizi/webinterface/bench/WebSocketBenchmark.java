@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.bench;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker13;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.TimeUnit;
+
+import net.andylizi.webinterface.websocket.WebSocketConnection;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Dispatch of decoded frames through {@link WebSocketConnection} to its message callbacks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebSocketBenchmark {
+    private EmbeddedChannel channel;
+    private ByteBuf text;
+    private ByteBuf binary;
+    Blackhole blackhole;
+
+    @Setup
+    public void setup(){
+        StubBukkit.server();
+        channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        new WebSocketConnection(new WebSocketServerHandshaker13("ws://localhost/bench", null, false, 65536),
+                channel.pipeline().firstContext()){
+            @Override
+            public void handleTextMessage(ChannelHandlerContext context, String msg) throws Exception {
+                blackhole.consume(msg);
+            }
+
+            @Override
+            public void handleBinaryMessage(ChannelHandlerContext context, ByteBufHolder data) throws Exception {
+                blackhole.consume(data.content().getByte(0));
+            }
+        };
+        text = Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes(
+                "{\"type\":\"chat\",\"player\":\"andylizi\",\"message\":\"hello\"}".getBytes(CharsetUtil.UTF_8)));
+        binary = Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeZero(256));
+    }
+
+    @TearDown
+    public void tearDown(){
+        channel.finish();
+    }
+
+    @Benchmark
+    public void text(Blackhole bh){
+        blackhole = bh;
+        channel.writeInbound(new TextWebSocketFrame(text.duplicate()));
+    }
+
+    @Benchmark
+    public void binary(Blackhole bh){
+        blackhole = bh;
+        channel.writeInbound(new BinaryWebSocketFrame(binary.duplicate()));
+    }
+
+    @Benchmark
+    public void ping(Blackhole bh){
+        channel.writeInbound(new PingWebSocketFrame(binary.duplicate()));
+        channel.flush();
+        Object pong = channel.readOutbound();
+        bh.consume(pong);
+        ReferenceCountUtil.release(pong);
+    }
+}
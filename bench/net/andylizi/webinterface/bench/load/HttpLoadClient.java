@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.bench.load;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keep-alive HTTP connections that pipeline whatever requests the driver hands them. A connection that has
+ * answered {@code requestsPerConnection} requests stops taking new ones, closes once drained and is replaced.
+ */
+final class HttpLoadClient {
+    private final Bootstrap bootstrap;
+    private final String host;
+    private final String path;
+    private final int requestsPerConnection;
+    private final AtomicReferenceArray<Connection> slots;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean stopped;
+
+    final LatencyRecorder latency = new LatencyRecorder();
+    final AtomicLong completed = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong unsent = new AtomicLong();
+    final AtomicLong connects = new AtomicLong();
+
+    HttpLoadClient(EventLoopGroup group, InetSocketAddress address, String path, int connections, int requestsPerConnection) {
+        this.host = address.getHostString()+':'+address.getPort();
+        this.path = path;
+        this.requestsPerConnection = requestsPerConnection;
+        this.slots = new AtomicReferenceArray<>(connections);
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .remoteAddress(address);
+    }
+
+    void start(){
+        for(int i = 0; i < slots.length(); i++)
+            connect(i);
+    }
+
+    private void connect(final int slot){
+        if(stopped)
+            return;
+        final Connection connection = new Connection(slot);
+        connects.incrementAndGet();
+        bootstrap.clone().handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel channel) throws Exception {
+                channel.pipeline()
+                        .addLast(new HttpClientCodec())
+                        .addLast(new HttpObjectAggregator(16 * 1024 * 1024))
+                        .addLast(connection);
+            }
+        }).connect().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if(future.isSuccess()){
+                    connection.channel = future.channel();
+                    slots.set(slot, connection);
+                }
+                else{
+                    errors.incrementAndGet();
+                    future.channel().eventLoop().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            connect(slot);
+                        }
+                    }, 100, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends one request on the next open connection.
+     * @param intended the {@code System.nanoTime()} the request was due, latency is measured from it
+     */
+    void send(long intended){
+        int length = slots.length();
+        for(int i = 0; i < length; i++){
+            Connection connection = slots.get((next.getAndIncrement() & Integer.MAX_VALUE) % length);
+            if(connection != null && connection.offer(intended))
+                return;
+        }
+        unsent.incrementAndGet();
+    }
+
+    void stop(){
+        stopped = true;
+        for(int i = 0; i < slots.length(); i++){
+            Connection connection = slots.getAndSet(i, null);
+            if(connection != null && connection.channel != null)
+                connection.channel.close();
+        }
+    }
+
+    int openConnections(){
+        int open = 0;
+        for(int i = 0; i < slots.length(); i++)
+            if(slots.get(i) != null)
+                open++;
+        return open;
+    }
+
+    private final class Connection extends SimpleChannelInboundHandler<FullHttpResponse>{
+        final int slot;
+        final ArrayDeque<Long> outstanding = new ArrayDeque<>();
+        volatile Channel channel;
+        volatile boolean retiring;
+        int sent;
+
+        Connection(int slot) {
+            this.slot = slot;
+        }
+
+        boolean offer(final long intended){
+            if(retiring || channel == null)
+                return false;
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!channel.isActive()){
+                        errors.incrementAndGet();
+                        return;
+                    }
+                    outstanding.add(intended);
+                    HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+                    request.headers().set(HttpHeaders.Names.HOST, host).set(HttpHeaders.Names.ACCEPT_ENCODING, HttpHeaders.Values.GZIP);
+                    channel.writeAndFlush(request);
+                    if(requestsPerConnection > 0 && ++sent >= requestsPerConnection)
+                        retire();
+                }
+            });
+            return true;
+        }
+
+        private void retire(){
+            if(retiring)
+                return;
+            retiring = true;
+            slots.compareAndSet(slot, this, null);
+            connect(slot);
+            if(outstanding.isEmpty())
+                channel.close();
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) throws Exception {
+            Long intended = outstanding.poll();
+            if(intended != null)
+                latency.record(System.nanoTime() - intended);
+            if(response.getStatus().code() >= 400)
+                errors.incrementAndGet();
+            else
+                completed.incrementAndGet();
+            if(!HttpHeaders.isKeepAlive(response)){
+                if(!retiring)
+                    retire();
+                ctx.close();
+            }else if(retiring && outstanding.isEmpty())
+                ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            errors.addAndGet(outstanding.size());
+            outstanding.clear();
+            if(!retiring){
+                retiring = true;
+                if(slots.compareAndSet(slot, this, null))
+                    connect(slot);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            errors.incrementAndGet();
+            ctx.close();
+        }
+    }
+}
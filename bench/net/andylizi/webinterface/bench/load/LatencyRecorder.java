@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.bench.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram with eight sub-buckets per power of two of microseconds, about 12% precision.
+ * Keeps one histogram for the current report interval and one for the whole run.
+ */
+final class LatencyRecorder {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int BUCKETS = 40 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray interval = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray total = new AtomicLongArray(BUCKETS);
+    private final AtomicLong intervalMax = new AtomicLong();
+    private final AtomicLong totalMax = new AtomicLong();
+
+    void record(long nanos){
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = bucket(micros);
+        interval.incrementAndGet(bucket);
+        total.incrementAndGet(bucket);
+        updateMax(intervalMax, micros);
+        updateMax(totalMax, micros);
+    }
+
+    private static void updateMax(AtomicLong max, long value){
+        long current;
+        while(value > (current = max.get()) && !max.compareAndSet(current, value));
+    }
+
+    /**
+     * Returns the histogram of the interval that just ended and starts a new one.
+     */
+    Snapshot nextInterval(){
+        long[] counts = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++)
+            counts[i] = interval.getAndSet(i, 0);
+        return new Snapshot(counts, intervalMax.getAndSet(0));
+    }
+
+    Snapshot total(){
+        long[] counts = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++)
+            counts[i] = total.get(i);
+        return new Snapshot(counts, totalMax.get());
+    }
+
+    void reset(){
+        for(int i = 0; i < BUCKETS; i++){
+            interval.set(i, 0);
+            total.set(i, 0);
+        }
+        intervalMax.set(0);
+        totalMax.set(0);
+    }
+
+    static int bucket(long micros){
+        if(micros < (1 << SUB_BUCKET_BITS))
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int index = ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS)
+                + (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1));
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    static long upperBound(int bucket){
+        if(bucket < (1 << SUB_BUCKET_BITS))
+            return bucket + 1;
+        int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long sub = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((1L << SUB_BUCKET_BITS) + sub + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static final class Snapshot{
+        final long[] counts;
+        final long count;
+        final long maxMicros;
+
+        Snapshot(long[] counts, long maxMicros) {
+            this.counts = counts;
+            long count = 0;
+            for(long n : counts)
+                count += n;
+            this.count = count;
+            this.maxMicros = maxMicros;
+        }
+
+        long percentileMicros(double quantile){
+            if(count == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++)
+                if((seen += counts[i]) >= rank)
+                    return Math.min(upperBound(i), maxMicros);
+            return maxMicros;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.bench.load;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import net.andylizi.webinterface.Main;
+import net.andylizi.webinterface.api.API;
+import net.andylizi.webinterface.api.Utils;
+import net.andylizi.webinterface.bench.StubBukkit;
+import net.andylizi.webinterface.http.BlockingHttpModule;
+import net.andylizi.webinterface.http.HttpModule;
+import net.andylizi.webinterface.http.HttpParams;
+import net.andylizi.webinterface.websocket.WebSocketConnection;
+import net.andylizi.webinterface.websocket.WebSocketModule;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Boots the plugin through {@link Main#onEnable()} on a stub Bukkit server with stub modules and drives it
+ * over loopback with an open-loop request rate: requests are sent when they are due whether or not earlier
+ * ones have been answered, and latency is measured from that due time. Options are {@code --name=value};
+ * {@code --set.<config path>=value} overrides the plugin's config.yml.
+ * <pre>
+ * --duration=60         seconds to measure, the soak length
+ * --warmup=10           seconds of load before measuring starts
+ * --rate=2000           HTTP requests per second, 0 for none
+ * --connections=32      concurrent HTTP connections
+ * --churn=0             requests per connection before it is replaced, 0 to keep it
+ * --path=/echo?size=256 request uri; /echo answers size bytes, /blocking sleeps ms on the worker pool
+ * --webSockets=0        concurrent WebSocket sessions to /ws, which echoes
+ * --messageRate=100     WebSocket messages per second over all sessions
+ * --messageSize=64      WebSocket message size
+ * --report=5            seconds between reports
+ * --clientThreads=2     client event loop threads
+ * --port=18080
+ * </pre>
+ */
+public final class LoadTest {
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p99", "p99.9"};
+
+    private final Map<String, String> options;
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception{
+        Map<String, String> options = new LinkedHashMap<>();
+        for(String arg : args){
+            if(!arg.startsWith("--") || arg.indexOf('=') < 0)
+                throw new IllegalArgumentException("Expected --name=value: "+arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadTest(options).run();
+        System.exit(0);
+    }
+
+    private String option(String name, String def){
+        String value = options.get(name);
+        return value == null ? def : value;
+    }
+
+    private long option(String name, long def){
+        return Long.parseLong(option(name, Long.toString(def)));
+    }
+
+    private void run() throws Exception{
+        int port = (int) option("port", 18080);
+        Main plugin = boot(port);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        try(Socket probe = new Socket(address.getAddress(), port)){
+            probe.getPort();
+        }catch(IOException ex){
+            System.err.println("WebInterface did not start listening on "+address+": "+ex);
+            return;
+        }
+
+        long warmup = TimeUnit.SECONDS.toNanos(option("warmup", 10));
+        long duration = TimeUnit.SECONDS.toNanos(option("duration", 60));
+        long report = TimeUnit.SECONDS.toNanos(option("report", 5));
+        long rate = option("rate", 2000);
+        long messageRate = option("messageRate", 100);
+        NioEventLoopGroup group = new NioEventLoopGroup((int) option("clientThreads", 2));
+        HttpLoadClient http = null;
+        WebSocketLoadClient ws = null;
+        if(rate > 0){
+            http = new HttpLoadClient(group, address, option("path", "/echo?size=256"),
+                    (int) option("connections", 32), (int) option("churn", 0));
+            http.start();
+        }
+        if(option("webSockets", 0) > 0){
+            ws = new WebSocketLoadClient(group, address, "/ws", (int) option("webSockets", 0), (int) option("messageSize", 64));
+            ws.start();
+        }
+        Thread.sleep(500);
+
+        System.out.println("Running for "+TimeUnit.NANOSECONDS.toSeconds(duration)+"s after "+TimeUnit.NANOSECONDS.toSeconds(warmup)
+                +"s of warmup: "+rate+" req/s over "+option("connections", 32)+" connections, "
+                +option("webSockets", 0)+" WebSocket sessions at "+messageRate+" msg/s");
+        long start = System.nanoTime(), measured = start + warmup, nextReport = measured + report;
+        long issued = 0, messages = 0;
+        long httpBase = 0, wsBase = 0, lastCompleted = 0, lastMessages = 0, lastReport = measured;
+        boolean measuring = false;
+        for(long now = start; now - measured < duration; now = System.nanoTime()){
+            if(!measuring && now - measured >= 0){
+                measuring = true;
+                if(http != null){
+                    http.latency.reset();
+                    httpBase = lastCompleted = http.completed.get();
+                }
+                if(ws != null){
+                    ws.latency.reset();
+                    wsBase = lastMessages = ws.completed.get();
+                }
+                System.out.println("Warmup done");
+            }
+            long elapsed = now - start;
+            if(http != null)
+                for(long due = elapsed * rate / 1000000000L; issued < due; issued++)
+                    http.send(start + issued * 1000000000L / rate);
+            if(ws != null && messageRate > 0)
+                for(long due = elapsed * messageRate / 1000000000L; messages < due; messages++)
+                    ws.send(start + messages * 1000000000L / messageRate);
+            if(now - nextReport >= 0){
+                long seconds = TimeUnit.NANOSECONDS.toSeconds(now - measured);
+                StringBuilder line = new StringBuilder(String.format("[%5ds]", seconds));
+                if(http != null){
+                    long completed = http.completed.get();
+                    line.append(" http ").append(perSecond(completed - lastCompleted, now - lastReport));
+                    latency(line, http.latency.nextInterval());
+                    line.append(" err ").append(http.errors.get()).append(" unsent ").append(http.unsent.get())
+                        .append(" conns ").append(http.openConnections());
+                    lastCompleted = completed;
+                }
+                if(ws != null){
+                    long completed = ws.completed.get();
+                    line.append(" | ws ").append(perSecond(completed - lastMessages, now - lastReport));
+                    latency(line, ws.latency.nextInterval());
+                    line.append(" err ").append(ws.errors.get()).append(" sessions ").append(ws.openSessions());
+                    lastMessages = completed;
+                }
+                memory(line.append(" | "), plugin);
+                System.out.println(line);
+                lastReport = now;
+                nextReport += report;
+            }
+            Thread.sleep(1);
+        }
+
+        Thread.sleep(1000);
+        System.out.println("Total after warmup:");
+        if(http != null){
+            StringBuilder line = new StringBuilder("  http ").append(http.completed.get() - httpBase).append(" completed");
+            latency(line, http.latency.total());
+            System.out.println(line.append(" err ").append(http.errors.get()).append(" unsent ").append(http.unsent.get())
+                    .append(" connects ").append(http.connects.get()));
+            http.stop();
+        }
+        if(ws != null){
+            StringBuilder line = new StringBuilder("  ws ").append(ws.completed.get() - wsBase).append(" echoed");
+            latency(line, ws.latency.total());
+            System.out.println(line.append(" err ").append(ws.errors.get()));
+            ws.stop();
+        }
+        System.out.println(memory(new StringBuilder("  "), plugin));
+        group.shutdownGracefully().syncUninterruptibly();
+        plugin.onDisable();
+    }
+
+    private Main boot(int port) throws IOException{
+        File dataFolder = new File(option("dataFolder", new File(System.getProperty("java.io.tmpdir"), "WebInterface-load").getPath()));
+        if(!dataFolder.isDirectory() && !dataFolder.mkdirs())
+            throw new IOException("Cannot create "+dataFolder);
+        YamlConfiguration config;
+        try(Reader reader = new InputStreamReader(Main.class.getClassLoader().getResourceAsStream("config.yml"), CharsetUtil.UTF_8)){
+            config = YamlConfiguration.loadConfiguration(reader);
+        }
+        config.set("network.ip", "127.0.0.1");
+        config.set("network.port", port);
+        config.set("http.maxKeepAliveRequests", 0);
+        config.set("network.maxConnectionsPerAddress", 0);
+        config.set("worker.modules", Arrays.asList("blocking"));
+        for(Map.Entry<String, String> entry : options.entrySet())
+            if(entry.getKey().startsWith("set."))
+                config.set(entry.getKey().substring(4), parseValue(entry.getValue()));
+        config.save(new File(dataFolder, "config.yml"));
+
+        Main plugin = StubBukkit.plugin(dataFolder);
+        API.registerModule("echo", new EchoModule());
+        API.registerModule("blocking", new SleepModule());
+        API.registerModule("ws", new WebSocketEchoModule());
+        plugin.onEnable();
+        return plugin;
+    }
+
+    private static Object parseValue(String value){
+        if(value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false"))
+            return Boolean.valueOf(value);
+        try{
+            return Integer.valueOf(value);
+        }catch(NumberFormatException ex){}
+        try{
+            return Double.valueOf(value);
+        }catch(NumberFormatException ex){}
+        return value;
+    }
+
+    private static String perSecond(long count, long nanos){
+        return String.format("%.1f/s", count * 1e9 / Math.max(1, nanos));
+    }
+
+    private static void latency(StringBuilder out, LatencyRecorder.Snapshot snapshot){
+        for(int i = 0; i < QUANTILES.length; i++)
+            out.append(' ').append(QUANTILE_NAMES[i]).append(' ').append(millis(snapshot.percentileMicros(QUANTILES[i])));
+        out.append(" max ").append(millis(snapshot.maxMicros));
+    }
+
+    private static String millis(long micros){
+        return String.format("%.2fms", micros / 1000.0);
+    }
+
+    /**
+     * Heap in use, heap left after the last collection, which is what grows when something leaks, and
+     * direct buffer memory.
+     */
+    private static StringBuilder memory(StringBuilder out, Main plugin){
+        long used = 0, retained = 0, direct = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if(pool.getType() == MemoryType.HEAP){
+                used += pool.getUsage().getUsed();
+                MemoryUsage collected = pool.getCollectionUsage();
+                if(collected != null)
+                    retained += collected.getUsed();
+            }
+        for(BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+            if(pool.getName().equals("direct"))
+                direct = pool.getMemoryUsed();
+        return out.append("heap ").append(used >> 20).append("MB after gc ").append(retained >> 20)
+                  .append("MB direct ").append(direct >> 20).append("MB server conns ")
+                  .append(plugin.getServerMetrics().getActiveConnections()).append(" ws ")
+                  .append(plugin.getServerMetrics().getWebSocketSessions());
+    }
+
+    private static final class EchoModule implements HttpModule{
+        private final ConcurrentMap<Integer, String> bodies = new ConcurrentHashMap<>();
+
+        @Override
+        public FullHttpResponse handleRequest(String uri, HttpParams param, FullHttpRequest request) {
+            int size = param.getInt("size", 256);
+            String body = bodies.get(size);
+            if(body == null){
+                char[] chars = new char[Math.max(0, Math.min(size, 16 * 1024 * 1024))];
+                Arrays.fill(chars, 'x');
+                bodies.putIfAbsent(size, body = new String(chars));
+            }
+            return Utils.INSTANCE.builder().content(body).contentTypePlainText().build();
+        }
+    }
+
+    private static final class SleepModule implements BlockingHttpModule{
+        @Override
+        public FullHttpResponse handleRequest(String uri, HttpParams param, FullHttpRequest request) {
+            try{
+                Thread.sleep(param.getLong("ms", 10));
+            }catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+            return Utils.INSTANCE.builder().content("slept").contentTypePlainText().build();
+        }
+    }
+
+    private static final class WebSocketEchoModule implements WebSocketModule{
+        @Override
+        public WebSocketConnection newConnect(ChannelHandlerContext context, WebSocketServerHandshaker handshaker,
+                String uri, HttpParams param, FullHttpRequest request) {
+            return new WebSocketConnection(handshaker, context) {
+                @Override
+                public void handleTextMessage(ChannelHandlerContext context, String msg) throws Exception {
+                    sendText(msg);
+                }
+            };
+        }
+    }
+}
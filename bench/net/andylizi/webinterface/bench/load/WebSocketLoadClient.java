@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.bench.load;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.*;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * WebSocket sessions against an echo module. Every message carries the time it was due, so the round trip
+ * is measured from the echo without any per-session bookkeeping.
+ */
+final class WebSocketLoadClient {
+    private final Bootstrap bootstrap;
+    private final URI uri;
+    private final String padding;
+    private final AtomicReferenceArray<Session> sessions;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean stopped;
+
+    final LatencyRecorder latency = new LatencyRecorder();
+    final AtomicLong completed = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong unsent = new AtomicLong();
+
+    WebSocketLoadClient(EventLoopGroup group, InetSocketAddress address, String path, int sessions, int messageSize) {
+        this.uri = URI.create("ws://"+address.getHostString()+':'+address.getPort()+path);
+        StringBuilder padding = new StringBuilder(messageSize);
+        while(padding.length() < messageSize)
+            padding.append('x');
+        this.padding = padding.toString();
+        this.sessions = new AtomicReferenceArray<>(sessions);
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .remoteAddress(address);
+    }
+
+    void start(){
+        for(int i = 0; i < sessions.length(); i++)
+            connect(i);
+    }
+
+    private void connect(final int slot){
+        if(stopped)
+            return;
+        final Session session = new Session(slot, WebSocketClientHandshakerFactory.newHandshaker(
+                uri, WebSocketVersion.V13, null, false, new DefaultHttpHeaders()));
+        bootstrap.clone().handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel channel) throws Exception {
+                channel.pipeline()
+                        .addLast(new HttpClientCodec())
+                        .addLast(new HttpObjectAggregator(65536))
+                        .addLast(session);
+            }
+        }).connect().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if(!future.isSuccess()){
+                    errors.incrementAndGet();
+                    future.channel().eventLoop().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            connect(slot);
+                        }
+                    }, 100, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    void send(long intended){
+        int length = sessions.length();
+        for(int i = 0; i < length; i++){
+            Session session = sessions.get((next.getAndIncrement() & Integer.MAX_VALUE) % length);
+            if(session != null){
+                session.channel.writeAndFlush(new TextWebSocketFrame(Long.toString(intended)+' '+padding));
+                return;
+            }
+        }
+        unsent.incrementAndGet();
+    }
+
+    void stop(){
+        stopped = true;
+        for(int i = 0; i < sessions.length(); i++){
+            Session session = sessions.getAndSet(i, null);
+            if(session != null)
+                session.channel.writeAndFlush(new CloseWebSocketFrame()).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    int openSessions(){
+        int open = 0;
+        for(int i = 0; i < sessions.length(); i++)
+            if(sessions.get(i) != null)
+                open++;
+        return open;
+    }
+
+    private final class Session extends SimpleChannelInboundHandler<Object>{
+        final int slot;
+        final WebSocketClientHandshaker handshaker;
+        Channel channel;
+
+        Session(int slot, WebSocketClientHandshaker handshaker) {
+            this.slot = slot;
+            this.handshaker = handshaker;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            channel = ctx.channel();
+            handshaker.handshake(channel);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if(!handshaker.isHandshakeComplete()){
+                handshaker.finishHandshake(ctx.channel(), (FullHttpResponse) msg);
+                sessions.set(slot, this);
+                return;
+            }
+            if(msg instanceof TextWebSocketFrame){
+                String text = ((TextWebSocketFrame) msg).text();
+                int space = text.indexOf(' ');
+                latency.record(System.nanoTime() - Long.parseLong(space < 0 ? text : text.substring(0, space)));
+                completed.incrementAndGet();
+            }else if(msg instanceof CloseWebSocketFrame)
+                ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if(sessions.compareAndSet(slot, this, null) || !handshaker.isHandshakeComplete())
+                connect(slot);
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            errors.incrementAndGet();
+            ctx.close();
+        }
+    }
+}
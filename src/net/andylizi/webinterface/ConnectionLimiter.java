@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts open connections in total and per client address. A per-address counter that drops to zero is
+ * retired, so late acquirers never revive a counter that has already been removed from the table.
+ */
+final class ConnectionLimiter {
+    static final int ACCEPTED = -1;
+
+    private final int maxConnections;
+    private final int maxPerAddress;
+    private final AtomicInteger total = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, AtomicInteger> addresses = new ConcurrentHashMap<>();
+
+    ConnectionLimiter(int maxConnections, int maxPerAddress) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+    }
+
+    /**
+     * @return {@link #ACCEPTED}, or the {@code ServerMetrics.REJECTED_*} reason the connection is refused
+     */
+    int acquire(InetAddress address){
+        if(maxConnections > 0 && total.incrementAndGet() > maxConnections){
+            total.decrementAndGet();
+            return ServerMetrics.REJECTED_TOTAL;
+        }
+        if(maxPerAddress > 0 && address != null && !acquireAddress(address)){
+            if(maxConnections > 0)
+                total.decrementAndGet();
+            return ServerMetrics.REJECTED_ADDRESS;
+        }
+        return ACCEPTED;
+    }
+
+    private boolean acquireAddress(InetAddress address){
+        for(;;){
+            AtomicInteger counter = addresses.get(address);
+            if(counter == null){
+                if(addresses.putIfAbsent(address, new AtomicInteger(1)) == null)
+                    return true;
+                continue;
+            }
+            int count = counter.get();
+            if(count <= 0){
+                addresses.remove(address, counter);
+                continue;
+            }
+            if(count >= maxPerAddress)
+                return false;
+            if(counter.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    void release(InetAddress address){
+        if(maxConnections > 0)
+            total.decrementAndGet();
+        if(maxPerAddress > 0 && address != null){
+            AtomicInteger counter = addresses.get(address);
+            if(counter != null && counter.decrementAndGet() == 0)
+                addresses.remove(address, counter);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.FastThreadLocal;
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class ContentCompressor extends ChannelDuplexHandler{
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final FastThreadLocal<Deflater[]> DEFLATERS = new FastThreadLocal<Deflater[]>(){
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[2];
+        }
+
+        @Override
+        protected void onRemoval(Deflater[] pool) {
+            for(Deflater deflater : pool)
+                if(deflater != null)
+                    deflater.end();
+        }
+    };
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>(){
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    private final int level;
+    private final int minSize;
+    private final List<String> skipTypes;
+
+    private final ArrayDeque<String> acceptEncodings = new ArrayDeque<>();
+    private Encoder streaming;
+
+    public ContentCompressor(int level, int minSize, List<String> skipTypes) {
+        if(level < 0 || level > 9)
+            throw new IllegalArgumentException("level: "+level+" (expected: 0-9)");
+        this.level = level;
+        this.minSize = minSize;
+        this.skipTypes = skipTypes;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if(msg instanceof HttpRequest){
+            HttpRequest request = (HttpRequest) msg;
+            String acceptEncoding = request.getMethod().equals(HttpMethod.HEAD) ? null : request.headers().get(ACCEPT_ENCODING);
+            acceptEncodings.add(acceptEncoding == null ? "" : acceptEncoding);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if(msg instanceof HttpResponse){
+            HttpResponse response = (HttpResponse) msg;
+            if(response.getStatus().code() < 200){
+                ctx.write(msg, promise);
+                return;
+            }
+            String acceptEncoding = acceptEncodings.poll();
+            String encoding = selectEncoding(response, acceptEncoding, true);
+            if(encoding == null){
+                ctx.write(msg, promise);
+                return;
+            }
+            if(msg instanceof FullHttpResponse){
+                ctx.write(compress(ctx, (FullHttpResponse) msg, encoding), promise);
+                return;
+            }
+            streaming = new Encoder(new Deflater(level, encoding.equals("gzip")), encoding.equals("gzip"));
+            response.headers()
+                    .remove(CONTENT_LENGTH)
+                    .set(TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED)
+                    .set(CONTENT_ENCODING, encoding);
+            ctx.write(msg, promise);
+        }else if(msg instanceof HttpContent && streaming != null){
+            HttpContent content = (HttpContent) msg;
+            ByteBuf out = ctx.alloc().heapBuffer(Math.max(64, content.content().readableBytes() / 2));
+            try{
+                streaming.encode(content.content(), out);
+                if(content instanceof LastHttpContent){
+                    streaming.finish(out);
+                    streaming.deflater.end();
+                    streaming = null;
+                    LastHttpContent last = new DefaultLastHttpContent(out);
+                    last.trailingHeaders().set(((LastHttpContent) content).trailingHeaders());
+                    ctx.write(last, promise);
+                }else
+                    ctx.write(new DefaultHttpContent(out), promise);
+            }catch(Throwable t){
+                out.release();
+                throw t;
+            }finally{
+                content.release();
+            }
+        }else
+            ctx.write(msg, promise);
+    }
+
+    private FullHttpResponse compress(ChannelHandlerContext ctx, FullHttpResponse response, String encoding){
+        ByteBuf out = encode(ctx.alloc(), response.content(), encoding.equals("gzip"), level);
+        FullHttpResponse compressed = new DefaultFullHttpResponse(response.getProtocolVersion(), response.getStatus(), out);
+        compressed.headers().set(response.headers());
+        compressed.trailingHeaders().set(response.trailingHeaders());
+        compressed.headers()
+                .set(CONTENT_ENCODING, encoding)
+                .set(CONTENT_LENGTH, out.readableBytes());
+        response.release();
+        return compressed;
+    }
+
+    static ByteBuf encode(ByteBufAllocator alloc, ByteBuf content, boolean gzip, int level){
+        Deflater[] pool = DEFLATERS.get();
+        Deflater deflater = pool[gzip ? 0 : 1];
+        if(deflater == null)
+            deflater = pool[gzip ? 0 : 1] = new Deflater(level, gzip);
+        deflater.setLevel(level);
+
+        ByteBuf out = alloc.heapBuffer(Math.max(64, content.readableBytes() / 3));
+        try{
+            Encoder encoder = new Encoder(deflater, gzip);
+            encoder.encode(content, out);
+            encoder.finish(out);
+        }catch(Throwable t){
+            out.release();
+            throw t;
+        }finally{
+            deflater.reset();
+        }
+        return out;
+    }
+
+    static boolean isSkippedType(String contentType, List<String> skipTypes){
+        if(contentType != null)
+            for(String type : skipTypes)
+                if(contentType.regionMatches(true, 0, type, 0, type.length()))
+                    return true;
+        return false;
+    }
+
+    public boolean willCompress(HttpResponse response){
+        return selectEncoding(response, acceptEncodings.peek(), false) != null;
+    }
+
+    private String selectEncoding(HttpResponse response, String acceptEncoding, boolean updateVary){
+        int status = response.getStatus().code();
+        if(status == 204 || status == 206 || status == 304 || response.headers().contains(CONTENT_ENCODING))
+            return null;
+        if(isSkippedType(response.headers().get(CONTENT_TYPE), skipTypes))
+            return null;
+        if(updateVary){
+            String vary = response.headers().get(VARY);
+            if(vary == null)
+                response.headers().set(VARY, ACCEPT_ENCODING);
+            else if(!vary.equals("*") && !vary.toLowerCase().contains("accept-encoding"))
+                response.headers().set(VARY, vary+", "+ACCEPT_ENCODING);
+        }
+
+        if(acceptEncoding == null || acceptEncoding.isEmpty())
+            return null;
+        long length = response instanceof FullHttpResponse ?
+                ((FullHttpResponse) response).content().readableBytes() : HttpHeaders.getContentLength(response, -1);
+        if(length == 0 || (length > 0 && length < minSize))
+            return null;
+        return negotiate(acceptEncoding);
+    }
+
+    static String negotiate(String acceptEncoding){
+        float gzip = -1, deflate = -1, star = -1;
+        int start = 0;
+        while(start < acceptEncoding.length()){
+            int end = acceptEncoding.indexOf(',', start);
+            if(end < 0)
+                end = acceptEncoding.length();
+            int semicolon = acceptEncoding.indexOf(';', start);
+            int nameEnd = semicolon < 0 || semicolon > end ? end : semicolon;
+            String name = acceptEncoding.substring(start, nameEnd).trim();
+            float q = 1.0F;
+            if(nameEnd < end){
+                int index = acceptEncoding.indexOf("q=", nameEnd);
+                if(index >= 0 && index < end)
+                    try{
+                        q = Float.parseFloat(acceptEncoding.substring(index + 2, end).trim());
+                    }catch(NumberFormatException ex){
+                        q = 0.0F;
+                    }
+            }
+            if(name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip"))
+                gzip = Math.max(gzip, q);
+            else if(name.equalsIgnoreCase("deflate"))
+                deflate = Math.max(deflate, q);
+            else if(name.equals("*"))
+                star = Math.max(star, q);
+            start = end + 1;
+        }
+        if(gzip < 0)
+            gzip = star;
+        if(deflate < 0)
+            deflate = star;
+        if(gzip <= 0 && deflate <= 0)
+            return null;
+        return gzip >= deflate ? "gzip" : "deflate";
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if(streaming != null){
+            streaming.deflater.end();
+            streaming = null;
+        }
+    }
+
+    private static final class Encoder{
+        final Deflater deflater;
+        final boolean gzip;
+        final CRC32 crc;
+        boolean headerWritten;
+
+        Encoder(Deflater deflater, boolean gzip) {
+            this.deflater = deflater;
+            this.gzip = gzip;
+            this.crc = gzip ? new CRC32() : null;
+        }
+
+        void encode(ByteBuf in, ByteBuf out){
+            if(gzip && !headerWritten){
+                out.writeBytes(GZIP_HEADER);
+                headerWritten = true;
+            }
+            if(in.hasArray()){
+                int length = in.readableBytes();
+                update(in.array(), in.arrayOffset() + in.readerIndex(), length, out);
+                in.skipBytes(length);
+            }else{
+                byte[] scratch = SCRATCH.get();
+                while(in.isReadable()){
+                    int length = Math.min(scratch.length, in.readableBytes());
+                    in.readBytes(scratch, 0, length);
+                    update(scratch, 0, length, out);
+                }
+            }
+        }
+
+        private void update(byte[] data, int offset, int length, ByteBuf out){
+            if(length == 0)
+                return;
+            if(gzip)
+                crc.update(data, offset, length);
+            deflater.setInput(data, offset, length);
+            while(!deflater.needsInput())
+                deflate(out);
+        }
+
+        void finish(ByteBuf out){
+            if(gzip && !headerWritten){
+                out.writeBytes(GZIP_HEADER);
+                headerWritten = true;
+            }
+            deflater.finish();
+            while(!deflater.finished())
+                deflate(out);
+            if(gzip){
+                int crcValue = (int) crc.getValue();
+                int size = (int) deflater.getBytesRead();
+                out.writeByte(crcValue).writeByte(crcValue >>> 8).writeByte(crcValue >>> 16).writeByte(crcValue >>> 24)
+                        .writeByte(size).writeByte(size >>> 8).writeByte(size >>> 16).writeByte(size >>> 24);
+            }
+        }
+
+        private void deflate(ByteBuf out){
+            out.ensureWritable(512);
+            if(out.hasArray()){
+                int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                out.writerIndex(out.writerIndex() + written);
+            }else{
+                byte[] buffer = new byte[out.writableBytes()];
+                out.writeBytes(buffer, 0, deflater.deflate(buffer));
+            }
+        }
+    }
+}
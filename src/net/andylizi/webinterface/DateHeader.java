@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The current time as a pre-encoded RFC 1123 {@code Date} header value, refreshed once a second.
+ */
+final class DateHeader implements Runnable{
+    static final DateHeader INSTANCE = new DateHeader();
+
+    private final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+    private volatile CharSequence value;
+
+    private DateHeader() {
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        run();
+    }
+
+    static CharSequence get(){
+        return INSTANCE.value;
+    }
+
+    @Override
+    public synchronized void run() {
+        value = HttpHeaders.newEntity(format.format(new Date()));
+    }
+}
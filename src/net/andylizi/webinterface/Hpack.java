@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression (RFC 7541) for {@link Http2Handler}. Names and values are ISO-8859-1 strings, one
+ * char per octet, the way the HTTP/1 codec reads and writes them.
+ */
+final class Hpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+        {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+        {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+        {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+        {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+        {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+        {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+        {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+        {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+        {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+        {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+        {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+        {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+    /** Static table index by name, and by name and value joined with a NUL. */
+    private static final Map<String, Integer> STATIC_INDEX = new HashMap<>();
+
+    /** Huffman code length of every octet and of EOS (256), Appendix B. The code is canonical. */
+    private static final byte[] CODE_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+    private static final int[] CODES = new int[CODE_LENGTHS.length];
+    /** Canonical decoding: the first code of each length, how many codes have it, and where they start in SYMBOLS. */
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] COUNT = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] OFFSET = new int[MAX_CODE_LENGTH + 1];
+    private static final short[] SYMBOLS = new short[CODE_LENGTHS.length];
+
+    static{
+        for(int i = STATIC_TABLE.length - 1; i >= 0; i--){
+            STATIC_INDEX.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_INDEX.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+
+        for(byte length : CODE_LENGTHS)
+            COUNT[length]++;
+        for(int length = 1, code = 0, offset = 0; length <= MAX_CODE_LENGTH; length++){
+            code = (code + COUNT[length - 1]) << 1;
+            FIRST_CODE[length] = code;
+            OFFSET[length] = offset;
+            offset += COUNT[length];
+        }
+        int[] next = OFFSET.clone();
+        for(int symbol = 0; symbol < CODE_LENGTHS.length; symbol++){
+            int length = CODE_LENGTHS[symbol];
+            CODES[symbol] = FIRST_CODE[length] + next[length] - OFFSET[length];
+            SYMBOLS[next[length]++] = (short) symbol;
+        }
+    }
+
+    private Hpack() {}
+
+    static int entrySize(String name, String value){
+        return name.length() + value.length() + 32;
+    }
+
+    private static Http2Handler.Http2Exception compressionError(String message){
+        return new Http2Handler.Http2Exception(Http2Handler.COMPRESSION_ERROR, message);
+    }
+
+    /**
+     * The dynamic table, newest entry first.
+     */
+    static final class Table{
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int next;
+        private int length;
+        private int size;
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int length(){
+            return length;
+        }
+
+        int maxSize(){
+            return maxSize;
+        }
+
+        String name(int index){
+            return names[(next - 1 - index) & (names.length - 1)];
+        }
+
+        String value(int index){
+            return values[(next - 1 - index) & (names.length - 1)];
+        }
+
+        void add(String name, String value){
+            int entry = entrySize(name, value);
+            while(length > 0 && size + entry > maxSize)
+                evict();
+            if(entry > maxSize)
+                return;
+            if(length == names.length)
+                grow();
+            names[next] = name;
+            values[next] = value;
+            next = (next + 1) & (names.length - 1);
+            length++;
+            size += entry;
+        }
+
+        void setMaxSize(int maxSize){
+            this.maxSize = maxSize;
+            while(size > maxSize)
+                evict();
+        }
+
+        private void evict(){
+            int oldest = (next - length) & (names.length - 1);
+            size -= entrySize(names[oldest], values[oldest]);
+            names[oldest] = values[oldest] = null;
+            length--;
+        }
+
+        private void grow(){
+            String[] grownNames = new String[names.length << 1];
+            String[] grownValues = new String[names.length << 1];
+            for(int i = 0; i < length; i++){
+                grownNames[length - 1 - i] = name(i);
+                grownValues[length - 1 - i] = value(i);
+            }
+            names = grownNames;
+            values = grownValues;
+            next = length;
+        }
+    }
+
+    static final class Decoder{
+        private final Table table;
+        private final int maxTableSize;
+
+        /**
+         * @param maxTableSize the SETTINGS_HEADER_TABLE_SIZE this side advertised
+         */
+        Decoder(int maxTableSize) {
+            this.table = new Table(maxTableSize);
+            this.maxTableSize = maxTableSize;
+        }
+
+        /**
+         * Decodes one complete header block, appending names and values alternately to {@code out}. Every block
+         * must be decoded, even for a refused stream, to keep the dynamic table in step with the peer.
+         *
+         * @return the size of the header list, octets plus 32 per field as SETTINGS_MAX_HEADER_LIST_SIZE counts it
+         */
+        long decode(ByteBuf in, List<String> out) throws Http2Handler.Http2Exception{
+            long listSize = 0;
+            boolean sizeUpdateAllowed = true;
+            while(in.isReadable()){
+                int first = in.getUnsignedByte(in.readerIndex());
+                String name, value;
+                if((first & 0x80) != 0){
+                    int index = readInt(in, 7);
+                    name = name(index);
+                    value = index <= STATIC_TABLE.length ? STATIC_TABLE[index - 1][1] : table.value(index - STATIC_TABLE.length - 1);
+                }else if((first & 0x20) != 0 && (first & 0x40) == 0){
+                    if(!sizeUpdateAllowed)
+                        throw compressionError("Dynamic table size update after the first field");
+                    int size = readInt(in, 5);
+                    if(size > maxTableSize)
+                        throw compressionError("Dynamic table size "+size+" exceeds "+maxTableSize);
+                    table.setMaxSize(size);
+                    continue;
+                }else{
+                    boolean indexing = (first & 0x40) != 0;
+                    int index = readInt(in, indexing ? 6 : 4);
+                    name = index == 0 ? readString(in) : name(index);
+                    value = readString(in);
+                    if(indexing)
+                        table.add(name, value);
+                }
+                sizeUpdateAllowed = false;
+                out.add(name);
+                out.add(value);
+                listSize += entrySize(name, value);
+            }
+            return listSize;
+        }
+
+        private String name(int index) throws Http2Handler.Http2Exception{
+            if(index <= 0 || index > STATIC_TABLE.length + table.length())
+                throw compressionError("Invalid header index "+index);
+            return index <= STATIC_TABLE.length ? STATIC_TABLE[index - 1][0] : table.name(index - STATIC_TABLE.length - 1);
+        }
+
+        private static int readInt(ByteBuf in, int prefixBits) throws Http2Handler.Http2Exception{
+            int mask = (1 << prefixBits) - 1;
+            int value = in.readUnsignedByte() & mask;
+            if(value < mask)
+                return value;
+            for(int shift = 0; shift <= 28; shift += 7){
+                if(!in.isReadable())
+                    throw compressionError("Truncated integer");
+                int b = in.readUnsignedByte();
+                long sum = value + ((long) (b & 0x7f) << shift);
+                if(sum > Integer.MAX_VALUE)
+                    break;
+                value = (int) sum;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw compressionError("Integer overflow");
+        }
+
+        private static String readString(ByteBuf in) throws Http2Handler.Http2Exception{
+            if(!in.isReadable())
+                throw compressionError("Truncated string");
+            boolean huffman = (in.getByte(in.readerIndex()) & 0x80) != 0;
+            int length = readInt(in, 7);
+            if(length > in.readableBytes())
+                throw compressionError("Truncated string");
+            String value = huffman ? decodeHuffman(in, length) : in.toString(in.readerIndex(), length, CharsetUtil.ISO_8859_1);
+            in.skipBytes(length);
+            return value;
+        }
+
+        private static String decodeHuffman(ByteBuf in, int length) throws Http2Handler.Http2Exception{
+            StringBuilder out = new StringBuilder(length + (length >> 1));
+            int code = 0, bits = 0;
+            for(int i = in.readerIndex(), end = i + length; i < end; i++){
+                int b = in.getUnsignedByte(i);
+                for(int bit = 7; bit >= 0; bit--){
+                    code = (code << 1) | ((b >>> bit) & 1);
+                    bits++;
+                    int rank = code - FIRST_CODE[bits];
+                    if(rank >= 0 && rank < COUNT[bits]){
+                        int symbol = SYMBOLS[OFFSET[bits] + rank];
+                        if(symbol == EOS)
+                            throw compressionError("EOS in Huffman string");
+                        out.append((char) symbol);
+                        code = bits = 0;
+                    }else if(bits == MAX_CODE_LENGTH)
+                        throw compressionError("Invalid Huffman code");
+                }
+            }
+            if(bits > 7 || code != (1 << bits) - 1)
+                throw compressionError("Invalid Huffman padding");
+            return out.toString();
+        }
+    }
+
+    /**
+     * Indexes fields that tend to repeat across responses, such as Server, Content-Type and Date, so later
+     * responses on the connection send them as one or two octets. Per-response values are sent as literals
+     * without indexing, cookies are never indexed.
+     */
+    static final class Encoder{
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        private int minPendingSize = -1;
+
+        /**
+         * Applies the peer's SETTINGS_HEADER_TABLE_SIZE. The change is announced at the start of the next block.
+         */
+        void setMaxTableSize(int size){
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if(size == table.maxSize())
+                return;
+            minPendingSize = minPendingSize < 0 ? Math.min(size, table.maxSize()) : Math.min(minPendingSize, size);
+            table.setMaxSize(size);
+        }
+
+        void beginBlock(ByteBuf out){
+            if(minPendingSize < 0)
+                return;
+            if(minPendingSize < table.maxSize())
+                writeInt(out, 0x20, 5, minPendingSize);
+            writeInt(out, 0x20, 5, table.maxSize());
+            minPendingSize = -1;
+        }
+
+        /**
+         * @param name a lower-case field name
+         */
+        void encode(ByteBuf out, String name, String value){
+            Integer full = STATIC_INDEX.get(name + '\0' + value);
+            if(full != null){
+                writeInt(out, 0x80, 7, full);
+                return;
+            }
+            int nameIndex = 0;
+            for(int i = 0; i < table.length(); i++)
+                if(table.name(i).equals(name)){
+                    if(table.value(i).equals(value)){
+                        writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + i);
+                        return;
+                    }
+                    if(nameIndex == 0)
+                        nameIndex = STATIC_TABLE.length + 1 + i;
+                }
+            Integer staticName = STATIC_INDEX.get(name);
+            if(staticName != null)
+                nameIndex = staticName;
+
+            if(isSensitive(name))
+                writeInt(out, 0x10, 4, nameIndex);
+            else if(isVolatile(name) || entrySize(name, value) > table.maxSize() / 4)
+                writeInt(out, 0x00, 4, nameIndex);
+            else{
+                writeInt(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if(nameIndex == 0)
+                writeString(out, name);
+            writeString(out, value);
+        }
+
+        private static boolean isSensitive(String name){
+            return name.equals("set-cookie") || name.equals("cookie") || name.equals("authorization");
+        }
+
+        private static boolean isVolatile(String name){
+            switch(name){
+                case "content-length":
+                case "content-range":
+                case "etag":
+                case "last-modified":
+                case "location":
+                case "age":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private static void writeInt(ByteBuf out, int flags, int prefixBits, int value){
+            int mask = (1 << prefixBits) - 1;
+            if(value < mask){
+                out.writeByte(flags | value);
+                return;
+            }
+            out.writeByte(flags | mask);
+            value -= mask;
+            while(value >= 0x80){
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        private static void writeString(ByteBuf out, String value){
+            long bits = 0;
+            for(int i = 0; i < value.length(); i++)
+                bits += CODE_LENGTHS[value.charAt(i) & 0xff];
+            int huffmanLength = (int) ((bits + 7) >>> 3);
+            if(huffmanLength >= value.length()){
+                writeInt(out, 0x00, 7, value.length());
+                for(int i = 0; i < value.length(); i++)
+                    out.writeByte(value.charAt(i));
+                return;
+            }
+            writeInt(out, 0x80, 7, huffmanLength);
+            long current = 0;
+            int pending = 0;
+            for(int i = 0; i < value.length(); i++){
+                int symbol = value.charAt(i) & 0xff;
+                current = (current << CODE_LENGTHS[symbol]) | CODES[symbol];
+                pending += CODE_LENGTHS[symbol];
+                while(pending >= 8){
+                    pending -= 8;
+                    out.writeByte((int) (current >>> pending));
+                }
+            }
+            if(pending > 0)
+                out.writeByte((int) ((current << (8 - pending)) | (0xff >>> pending)));
+        }
+    }
+}
@@ -0,0 +1,1394 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.base64.Base64;
+import io.netty.handler.codec.base64.Base64Dialect;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.andylizi.webinterface.api.API;
+import net.andylizi.webinterface.api.Utils;
+import net.andylizi.webinterface.http.FileHttpResponse;
+import net.andylizi.webinterface.http.StreamingHttpModule;
+
+/**
+ * HTTP/2 over cleartext (h2c, RFC 7540) in place of the HTTP/1 codec, entered with prior knowledge through
+ * {@link PriorKnowledge} or from an {@code Upgrade: h2c} request through {@link #upgrade}. The Netty bundled
+ * with the server has no HTTP/2 codec, so framing, HPACK and flow control are done here.
+ * <p>
+ * Each stream's request is aggregated into a {@link FullHttpRequest} carrying the stream id in
+ * {@link #STREAM_ID} and passed on to {@link ServerHandler}, so modules keep their contract while streams are
+ * served concurrently. A request for a {@link StreamingHttpModule} is passed on as soon as its headers are in,
+ * followed by its DATA as {@link StreamContent}; while the module has paused it, the stream's window is not
+ * replenished. A response written back with the same header is framed onto its stream in whatever
+ * order responses complete. Bodies are sent within the peer's connection and stream windows and only while
+ * the channel is writable; file bodies are read one chunk at a time.
+ * <p>
+ * The HTTP/1 request decoder and its deadlines are gone once a connection is here, so the same limits are
+ * kept per stream: a header block must be finished within the header timeout, and a request body may not
+ * stall for longer than the body timeout. The keep-alive idle timeout only spares a connection while a
+ * complete request waits for its response, a module has paused a body, or a response is still being written.
+ */
+final class Http2Handler extends ChannelDuplexHandler{
+    static final String STREAM_ID = "x-http2-stream-id";
+    static final String HTTP2_SETTINGS = "HTTP2-Settings";
+
+    static final int NO_ERROR = 0, PROTOCOL_ERROR = 1, INTERNAL_ERROR = 2, FLOW_CONTROL_ERROR = 3, STREAM_CLOSED = 5,
+            FRAME_SIZE_ERROR = 6, REFUSED_STREAM = 7, CANCEL = 8, COMPRESSION_ERROR = 9, ENHANCE_YOUR_CALM = 11;
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(CharsetUtil.US_ASCII);
+    private static final int DATA = 0, HEADERS = 1, PRIORITY = 2, RST_STREAM = 3, SETTINGS = 4, PUSH_PROMISE = 5,
+            PING = 6, GOAWAY = 7, WINDOW_UPDATE = 8, CONTINUATION = 9;
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 1, SETTINGS_ENABLE_PUSH = 2, SETTINGS_MAX_CONCURRENT_STREAMS = 3,
+            SETTINGS_INITIAL_WINDOW_SIZE = 4, SETTINGS_MAX_FRAME_SIZE = 5, SETTINGS_MAX_HEADER_LIST_SIZE = 6;
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final long SHUTDOWN_GRACE = 10;
+
+    private final ServerMetrics metrics;
+    private final int maxConcurrentStreams;
+    private final int initialWindowSize;
+    private final int maxHeaderListSize;
+    private final int maxContentLength;
+    private final long headerTimeout;
+    private final long bodyTimeout;
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final IntObjectMap<Stream> streams = new IntObjectHashMap<>();
+    private final ArrayDeque<Stream> writable = new ArrayDeque<>();
+
+    private ChannelHandlerContext ctx;
+    private ByteBuf cumulation;
+    private boolean prefaceReceived;
+    private boolean broken;
+    private boolean goAwaySent;
+    private boolean goAwayReceived;
+    private boolean pendingFlush;
+    private boolean dataWritten;
+    private int lastStreamId;
+    private int receiveWindow;
+    private int sendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    private int headerStreamId;
+    private int headerFlags;
+    private boolean headerSelfDependent;
+    private ByteBuf headerBlock;
+    private long headerStarted;
+
+    private ScheduledFuture<?> timer;
+    private long timerDeadline;
+    private final Runnable checkDeadlines = new Runnable() {
+        @Override
+        public void run() {
+            timer = null;
+            checkDeadlines();
+        }
+    };
+
+    Http2Handler(Main plugin) {
+        this.metrics = plugin.getServerMetrics();
+        this.maxConcurrentStreams = plugin.http2MaxConcurrentStreams;
+        this.initialWindowSize = Math.max(DEFAULT_WINDOW_SIZE, plugin.http2InitialWindowSize);
+        this.maxHeaderListSize = plugin.http2MaxHeaderListSize;
+        this.maxContentLength = plugin.maxContentLength;
+        this.headerTimeout = TimeUnit.SECONDS.toNanos(plugin.headerTimeout);
+        this.bodyTimeout = TimeUnit.SECONDS.toNanos(plugin.bodyTimeout);
+        this.receiveWindow = initialWindowSize;
+    }
+
+    /**
+     * @return the stream a request arrived on, or {@code 0} for an HTTP/1 request
+     */
+    static int streamId(ChannelPipeline pipeline, HttpRequest request){
+        String id = request.headers().get(STREAM_ID);
+        if(id == null || pipeline.get(Http2Handler.class) == null)
+            return 0;
+        try{
+            return Integer.parseInt(id);
+        }catch(NumberFormatException ex){
+            return 0;
+        }
+    }
+
+    /**
+     * @return the stream a piece of streamed request body belongs to, or {@code 0} for HTTP/1
+     */
+    static int streamId(HttpContent content){
+        if(content instanceof StreamContent)
+            return ((StreamContent) content).streamId;
+        if(content instanceof LastStreamContent)
+            return ((LastStreamContent) content).streamId;
+        return 0;
+    }
+
+    /**
+     * @return whether the request asks to switch to h2c as RFC 7540 section 3.2 describes
+     */
+    static boolean isUpgrade(HttpRequest request){
+        HttpHeaders headers = request.headers();
+        List<String> connection = headers.getAll(HttpHeaders.Names.CONNECTION);
+        return hasToken(headers.getAll(HttpHeaders.Names.UPGRADE), "h2c") && headers.getAll(HTTP2_SETTINGS).size() == 1
+                && hasToken(connection, HttpHeaders.Values.UPGRADE) && hasToken(connection, HTTP2_SETTINGS);
+    }
+
+    private static boolean hasToken(List<String> values, String token){
+        for(String value : values)
+            for(String part : value.split(","))
+                if(part.trim().equalsIgnoreCase(token))
+                    return true;
+        return false;
+    }
+
+    /**
+     * Switches the connection of {@code handler} to HTTP/2 after an {@code Upgrade: h2c} request: answers 101,
+     * replaces the HTTP/1 handlers with this one and opens stream 1, half-closed, for the request. The request
+     * is given the {@link #STREAM_ID} of that stream and should then be served as usual.
+     *
+     * @return {@code false}, with nothing changed, if the HTTP2-Settings header is malformed
+     */
+    boolean upgrade(ChannelHandlerContext handler, FullHttpRequest request){
+        ByteBuf settings = decodeSettingsHeader(request.headers().get(HTTP2_SETTINGS));
+        if(settings == null)
+            return false;
+        try{
+            FullHttpResponse switching = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SWITCHING_PROTOCOLS);
+            switching.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.UPGRADE).set(HttpHeaders.Names.UPGRADE, "h2c");
+            handler.writeAndFlush(switching);
+            ChannelPipeline pipeline = handler.pipeline();
+            String decoderName = removeHttp1Handlers(pipeline, false);
+            pipeline.addBefore(handler.name(), "http2", this);
+            start();
+            try{
+                applySettings(settings);
+            }catch(Http2Exception ex){
+                connectionError(ex);
+            }
+            if(decoderName != null)
+                pipeline.remove(decoderName);
+        }finally{
+            settings.release();
+        }
+
+        Stream stream = new Stream(1, peerInitialWindowSize, initialWindowSize);
+        stream.head = request.getMethod().equals(HttpMethod.HEAD);
+        stream.remoteClosed = true;
+        streams.put(1, stream);
+        lastStreamId = 1;
+        metrics.http2Stream();
+        request.headers()
+                .remove(HttpHeaders.Names.UPGRADE)
+                .remove(HttpHeaders.Names.CONNECTION)
+                .remove(HTTP2_SETTINGS)
+                .set(STREAM_ID, 1);
+        flushIfNeeded();
+        return true;
+    }
+
+    private static ByteBuf decodeSettingsHeader(String value){
+        if(value == null)
+            return null;
+        StringBuilder padded = new StringBuilder(value.trim());
+        while(padded.length() % 4 != 0)
+            padded.append('=');
+        ByteBuf encoded = Unpooled.copiedBuffer(padded, CharsetUtil.US_ASCII);
+        try{
+            ByteBuf settings = Base64.decode(encoded, Base64Dialect.URL_SAFE);
+            if(settings.readableBytes() % 6 != 0){
+                settings.release();
+                return null;
+            }
+            return settings;
+        }catch(IllegalArgumentException ex){
+            return null;
+        }finally{
+            encoded.release();
+        }
+    }
+
+    /**
+     * Removes the HTTP/1 codec handlers. The request decoder is kept unless {@code removeDecoder} is set, as
+     * removing it passes on whatever it has buffered, which must wait until the server preface is written.
+     *
+     * @return the name of the request decoder if it was kept
+     */
+    private static String removeHttp1Handlers(ChannelPipeline pipeline, boolean removeDecoder){
+        for(String name : new String[]{"http-aggregator", "http-encoder", "http-compressor", "http-chunked"})
+            if(pipeline.get(name) != null)
+                pipeline.remove(name);
+        if(pipeline.get("http-decoder") == null)
+            return null;
+        if(!removeDecoder)
+            return "http-decoder";
+        pipeline.remove("http-decoder");
+        return null;
+    }
+
+    /**
+     * Sends the server preface. Must be the first thing this handler writes.
+     */
+    private void start(){
+        ByteBuf frame = ctx.alloc().buffer(FRAME_HEADER_LENGTH + 18 + FRAME_HEADER_LENGTH + 4);
+        writeFrameHeader(frame, 18, SETTINGS, 0, 0);
+        frame.writeShort(SETTINGS_MAX_CONCURRENT_STREAMS).writeInt(maxConcurrentStreams)
+                .writeShort(SETTINGS_INITIAL_WINDOW_SIZE).writeInt(initialWindowSize)
+                .writeShort(SETTINGS_MAX_HEADER_LIST_SIZE).writeInt(maxHeaderListSize);
+        if(initialWindowSize > DEFAULT_WINDOW_SIZE){
+            writeFrameHeader(frame, 4, WINDOW_UPDATE, 0, 0);
+            frame.writeInt(initialWindowSize - DEFAULT_WINDOW_SIZE);
+        }
+        write(frame);
+        metrics.http2Opened();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if(!(msg instanceof ByteBuf)){
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ByteBuf in = (ByteBuf) msg;
+        if(broken){
+            in.release();
+            return;
+        }
+        if(cumulation == null)
+            cumulation = in;
+        else{
+            if(cumulation.writableBytes() < in.readableBytes() || cumulation.refCnt() > 1){
+                ByteBuf grown = ctx.alloc().buffer(cumulation.readableBytes() + in.readableBytes());
+                grown.writeBytes(cumulation);
+                cumulation.release();
+                cumulation = grown;
+            }
+            cumulation.writeBytes(in);
+            in.release();
+        }
+        try{
+            decode();
+        }finally{
+            if(cumulation != null){
+                if(!cumulation.isReadable()){
+                    cumulation.release();
+                    cumulation = null;
+                }else if(cumulation.refCnt() == 1)
+                    // Streamed DATA is passed on as slices of it, which a module may have kept.
+                    cumulation.discardSomeReadBytes();
+            }
+            flushIfNeeded();
+        }
+    }
+
+    private void decode(){
+        try{
+            if(!prefaceReceived){
+                int length = Math.min(PREFACE.length, cumulation.readableBytes());
+                for(int i = 0; i < length; i++)
+                    if(cumulation.getByte(cumulation.readerIndex() + i) != PREFACE[i])
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection preface");
+                if(length < PREFACE.length)
+                    return;
+                cumulation.skipBytes(PREFACE.length);
+                prefaceReceived = true;
+            }
+            while(!broken && cumulation.readableBytes() >= FRAME_HEADER_LENGTH){
+                int start = cumulation.readerIndex();
+                int length = cumulation.getUnsignedMedium(start);
+                if(length > DEFAULT_MAX_FRAME_SIZE)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of "+length+" bytes");
+                if(cumulation.readableBytes() < FRAME_HEADER_LENGTH + length)
+                    return;
+                int type = cumulation.getUnsignedByte(start + 3);
+                int flags = cumulation.getUnsignedByte(start + 4);
+                int streamId = cumulation.getInt(start + 5) & 0x7fffffff;
+                cumulation.skipBytes(FRAME_HEADER_LENGTH);
+                ByteBuf payload = cumulation.readSlice(length);
+                try{
+                    handleFrame(type, flags, streamId, payload);
+                }catch(Http2Exception ex){
+                    if(ex.streamId == 0)
+                        throw ex;
+                    resetStream(ex.streamId, ex.error);
+                }
+            }
+        }catch(Http2Exception ex){
+            connectionError(ex);
+        }
+    }
+
+    private void handleFrame(int type, int flags, int streamId, ByteBuf payload) throws Http2Exception{
+        if(headerStreamId != 0 && (type != CONTINUATION || streamId != headerStreamId))
+            throw new Http2Exception(PROTOCOL_ERROR, "Expected CONTINUATION for stream "+headerStreamId);
+        switch(type){
+            case DATA:
+                handleData(flags, streamId, payload);
+                break;
+            case HEADERS:
+                handleHeaders(flags, streamId, payload);
+                break;
+            case PRIORITY:
+                if(streamId == 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                if(payload.readableBytes() != 5)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, streamId, "PRIORITY of "+payload.readableBytes()+" bytes");
+                if((payload.getInt(payload.readerIndex()) & 0x7fffffff) == streamId)
+                    throw new Http2Exception(PROTOCOL_ERROR, streamId, "Stream depends on itself");
+                break;
+            case RST_STREAM:
+                if(streamId == 0 || streamId > lastStreamId)
+                    throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on idle stream "+streamId);
+                if(payload.readableBytes() != 4)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "RST_STREAM of "+payload.readableBytes()+" bytes");
+                closeStream(streams.remove(streamId), new Http2Exception(payload.getInt(payload.readerIndex()), "Stream reset by peer"));
+                break;
+            case SETTINGS:
+                if(streamId != 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on stream "+streamId);
+                if((flags & ACK) != 0){
+                    if(payload.isReadable())
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+                    break;
+                }
+                if(payload.readableBytes() % 6 != 0)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS of "+payload.readableBytes()+" bytes");
+                applySettings(payload);
+                ByteBuf ack = ctx.alloc().buffer(FRAME_HEADER_LENGTH);
+                writeFrameHeader(ack, 0, SETTINGS, ACK, 0);
+                write(ack);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING:
+                if(streamId != 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "PING on stream "+streamId);
+                if(payload.readableBytes() != 8)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "PING of "+payload.readableBytes()+" bytes");
+                if((flags & ACK) == 0){
+                    ByteBuf pong = ctx.alloc().buffer(FRAME_HEADER_LENGTH + 8);
+                    writeFrameHeader(pong, 8, PING, ACK, 0);
+                    pong.writeBytes(payload);
+                    write(pong);
+                }
+                break;
+            case GOAWAY:
+                if(streamId != 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "GOAWAY on stream "+streamId);
+                goAwayReceived = true;
+                if(streams.isEmpty())
+                    ctx.close();
+                break;
+            case WINDOW_UPDATE:
+                handleWindowUpdate(streamId, payload);
+                break;
+            case CONTINUATION:
+                if(headerStreamId == 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                if(headerBlock.readableBytes() + payload.readableBytes() > Math.max(maxHeaderListSize, DEFAULT_MAX_FRAME_SIZE) * 2)
+                    throw new Http2Exception(ENHANCE_YOUR_CALM, "Header block too large");
+                headerBlock.writeBytes(payload);
+                if((flags & END_HEADERS) != 0)
+                    endHeaders();
+                break;
+            default:
+                // Unknown frame types are ignored.
+        }
+    }
+
+    private void handleData(int flags, int streamId, ByteBuf payload) throws Http2Exception{
+        if(streamId == 0)
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        int length = payload.readableBytes();
+        payload = removePadding(flags, payload);
+        receiveWindow -= length;
+        if(receiveWindow < 0)
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window exceeded");
+        if(receiveWindow <= initialWindowSize / 2){
+            writeWindowUpdate(0, initialWindowSize - receiveWindow);
+            receiveWindow = initialWindowSize;
+        }
+
+        Stream stream = streams.get(streamId);
+        if(stream == null){
+            if(streamId > lastStreamId)
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream "+streamId);
+            return;
+        }
+        if(stream.reset)
+            return;
+        if(stream.remoteClosed)
+            throw new Http2Exception(STREAM_CLOSED, streamId, "DATA after END_STREAM");
+        stream.progress = System.nanoTime();
+        stream.receiveWindow -= length;
+        if(stream.receiveWindow < 0)
+            throw new Http2Exception(FLOW_CONTROL_ERROR, streamId, "Stream window exceeded");
+        if(stream.streaming){
+            if((flags & END_STREAM) != 0){
+                stream.remoteClosed = true;
+                ctx.fireChannelRead(new LastStreamContent(streamId, payload.isReadable() ? payload.retain() : Unpooled.EMPTY_BUFFER));
+                return;
+            }
+            if(payload.isReadable())
+                ctx.fireChannelRead(new StreamContent(streamId, payload.retain()));
+        }else if(stream.request != null){
+            ByteBuf content = stream.request.content();
+            if((long) content.readableBytes() + payload.readableBytes() > maxContentLength){
+                stream.request.release();
+                stream.request = null;
+                respond(stream, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+            }else
+                content.writeBytes(payload);
+        }
+        if((flags & END_STREAM) != 0)
+            endStream(stream);
+        else if(!stream.paused && !stream.localClosed && stream.receiveWindow <= initialWindowSize / 2){
+            writeWindowUpdate(streamId, initialWindowSize - stream.receiveWindow);
+            stream.receiveWindow = initialWindowSize;
+        }
+    }
+
+    private void handleHeaders(int flags, int streamId, ByteBuf payload) throws Http2Exception{
+        if(streamId == 0)
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+        payload = removePadding(flags, payload);
+        headerSelfDependent = false;
+        if((flags & PRIORITY_FLAG) != 0){
+            if(payload.readableBytes() < 5)
+                throw new Http2Exception(FRAME_SIZE_ERROR, "HEADERS too short for its priority");
+            headerSelfDependent = (payload.readInt() & 0x7fffffff) == streamId;
+            payload.skipBytes(1);
+        }
+        headerStreamId = streamId;
+        headerFlags = flags;
+        headerBlock = ctx.alloc().buffer(payload.readableBytes());
+        headerBlock.writeBytes(payload);
+        if((flags & END_HEADERS) != 0)
+            endHeaders();
+        else if(headerTimeout > 0){
+            headerStarted = System.nanoTime();
+            arm(headerStarted + headerTimeout);
+        }
+    }
+
+    private static ByteBuf removePadding(int flags, ByteBuf payload) throws Http2Exception{
+        if((flags & PADDED) == 0)
+            return payload;
+        if(!payload.isReadable())
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Missing pad length");
+        int padding = payload.readUnsignedByte();
+        if(padding > payload.readableBytes())
+            throw new Http2Exception(PROTOCOL_ERROR, "Padding exceeds the payload");
+        return payload.slice(payload.readerIndex(), payload.readableBytes() - padding);
+    }
+
+    private void endHeaders() throws Http2Exception{
+        int streamId = headerStreamId;
+        boolean endStream = (headerFlags & END_STREAM) != 0;
+        List<String> fields = new ArrayList<>();
+        long listSize;
+        try{
+            listSize = decoder.decode(headerBlock, fields);
+        }finally{
+            headerBlock.release();
+            headerBlock = null;
+            headerStreamId = 0;
+        }
+
+        Stream stream = streams.get(streamId);
+        if(stream != null){
+            if(stream.reset)
+                return;
+            if(stream.remoteClosed)
+                throw new Http2Exception(STREAM_CLOSED, streamId, "HEADERS after END_STREAM");
+            if(!endStream)
+                throw new Http2Exception(PROTOCOL_ERROR, streamId, "Trailers without END_STREAM");
+            for(int i = 0; i < fields.size(); i += 2)
+                if(fields.get(i).startsWith(":"))
+                    throw new Http2Exception(PROTOCOL_ERROR, streamId, "Pseudo-header in trailers");
+            if(stream.streaming){
+                LastHttpContent last = new LastStreamContent(streamId, Unpooled.EMPTY_BUFFER);
+                for(int i = 0; i < fields.size(); i += 2)
+                    last.trailingHeaders().add(fields.get(i), fields.get(i + 1));
+                stream.remoteClosed = true;
+                ctx.fireChannelRead(last);
+                return;
+            }
+            if(stream.request != null)
+                for(int i = 0; i < fields.size(); i += 2)
+                    stream.request.trailingHeaders().add(fields.get(i), fields.get(i + 1));
+            endStream(stream);
+            return;
+        }
+        if(streamId <= lastStreamId)
+            return;
+        if((streamId & 1) == 0)
+            throw new Http2Exception(PROTOCOL_ERROR, "Even stream id "+streamId+" from a client");
+        lastStreamId = streamId;
+        if(goAwaySent || goAwayReceived)
+            return;
+        if(streams.size() >= maxConcurrentStreams)
+            throw new Http2Exception(REFUSED_STREAM, streamId, "Too many concurrent streams");
+        if(headerSelfDependent)
+            throw new Http2Exception(PROTOCOL_ERROR, streamId, "Stream depends on itself");
+
+        stream = new Stream(streamId, peerInitialWindowSize, initialWindowSize);
+        streams.put(streamId, stream);
+        metrics.http2Stream();
+        if(listSize > maxHeaderListSize){
+            stream.remoteClosed = endStream;
+            respond(stream, HttpResponseStatus.REQUEST_HEADER_FIELDS_TOO_LARGE);
+            return;
+        }
+        HttpRequest request = newRequest(streamId, fields, endStream);
+        stream.head = request.getMethod().equals(HttpMethod.HEAD);
+        if(request instanceof FullHttpRequest)
+            stream.request = (FullHttpRequest) request;
+        else
+            stream.streaming = true;
+        if(endStream){
+            endStream(stream);
+            return;
+        }
+        if(bodyTimeout > 0){
+            stream.progress = System.nanoTime();
+            arm(stream.progress + bodyTimeout);
+        }
+        // A streamed body is not held here, so maxContentLength is left to the module, as over HTTP/1.
+        if(!stream.streaming && HttpHeaders.getContentLength(request, -1) > maxContentLength){
+            stream.request.release();
+            stream.request = null;
+            respond(stream, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if(HttpHeaders.is100ContinueExpected(request)){
+            request.headers().remove(HttpHeaders.Names.EXPECT);
+            writeHeaders(streamId, HttpResponseStatus.CONTINUE, HttpHeaders.EMPTY_HEADERS, false, ctx.newPromise());
+        }
+        if(stream.streaming)
+            ctx.fireChannelRead(request);
+    }
+
+    /**
+     * @return a {@link FullHttpRequest} to aggregate the body into, or just the head if a streaming module is to
+     *         receive the body as it arrives
+     */
+    private HttpRequest newRequest(int streamId, List<String> fields, boolean endStream) throws Http2Exception{
+        String method = null, path = null, scheme = null, authority = null;
+        StringBuilder cookie = null;
+        HttpHeaders headers = new DefaultHttpHeaders(false);
+        for(int i = 0; i < fields.size(); i += 2){
+            String name = fields.get(i), value = fields.get(i + 1);
+            if(name.startsWith(":")){
+                if(!headers.isEmpty())
+                    throw new Http2Exception(PROTOCOL_ERROR, streamId, "Pseudo-header after regular fields");
+                switch(name){
+                    case ":method":
+                        if(method != null)
+                            throw new Http2Exception(PROTOCOL_ERROR, streamId, "Duplicate :method");
+                        method = value;
+                        break;
+                    case ":path":
+                        if(path != null)
+                            throw new Http2Exception(PROTOCOL_ERROR, streamId, "Duplicate :path");
+                        path = value;
+                        break;
+                    case ":scheme":
+                        if(scheme != null)
+                            throw new Http2Exception(PROTOCOL_ERROR, streamId, "Duplicate :scheme");
+                        scheme = value;
+                        break;
+                    case ":authority":
+                        if(authority != null)
+                            throw new Http2Exception(PROTOCOL_ERROR, streamId, "Duplicate :authority");
+                        authority = value;
+                        break;
+                    default:
+                        throw new Http2Exception(PROTOCOL_ERROR, streamId, "Unknown pseudo-header "+name);
+                }
+                continue;
+            }
+            if(!isValidName(name))
+                throw new Http2Exception(PROTOCOL_ERROR, streamId, "Invalid header name "+name);
+            switch(name){
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    throw new Http2Exception(PROTOCOL_ERROR, streamId, "Connection-specific header "+name);
+                case "te":
+                    if(!value.equalsIgnoreCase("trailers"))
+                        throw new Http2Exception(PROTOCOL_ERROR, streamId, "TE other than trailers");
+                    break;
+                case "cookie":
+                    cookie = cookie == null ? new StringBuilder(value) : cookie.append("; ").append(value);
+                    continue;
+            }
+            headers.add(name, value);
+        }
+        if(method == null || path == null || scheme == null || path.isEmpty())
+            throw new Http2Exception(PROTOCOL_ERROR, streamId, "Missing pseudo-header");
+        if(cookie != null)
+            headers.set(HttpHeaders.Names.COOKIE, cookie.toString());
+        if(authority != null && !headers.contains(HttpHeaders.Names.HOST))
+            headers.set(HttpHeaders.Names.HOST, authority);
+        headers.set(STREAM_ID, streamId);
+
+        HttpMethod httpMethod;
+        try{
+            httpMethod = HttpMethod.valueOf(method);
+        }catch(IllegalArgumentException ex){
+            throw new Http2Exception(PROTOCOL_ERROR, streamId, "Invalid :method "+method);
+        }
+        HttpRequest request = !endStream && API.getRouter().route(path).getHttpModule() instanceof StreamingHttpModule ?
+                new DefaultHttpRequest(HttpVersion.HTTP_1_1, httpMethod, path, false) :
+                new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, httpMethod, path,
+                        endStream ? Unpooled.EMPTY_BUFFER : ctx.alloc().buffer(), false);
+        request.headers().set(headers);
+        return request;
+    }
+
+    private static boolean isValidName(String name){
+        if(name.isEmpty())
+            return false;
+        for(int i = 0; i < name.length(); i++){
+            char c = name.charAt(i);
+            if(c <= ' ' || c >= 0x7f || (c >= 'A' && c <= 'Z') || c == ':')
+                return false;
+        }
+        return true;
+    }
+
+    private void endStream(Stream stream){
+        stream.remoteClosed = true;
+        if(stream.request != null){
+            FullHttpRequest request = stream.request;
+            stream.request = null;
+            ctx.fireChannelRead(request);
+        }
+    }
+
+    private void handleWindowUpdate(int streamId, ByteBuf payload) throws Http2Exception{
+        if(payload.readableBytes() != 4)
+            throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE of "+payload.readableBytes()+" bytes");
+        int increment = payload.getInt(payload.readerIndex()) & 0x7fffffff;
+        if(streamId == 0){
+            if(increment == 0)
+                throw new Http2Exception(PROTOCOL_ERROR, "Zero WINDOW_UPDATE");
+            if(sendWindow > MAX_WINDOW_SIZE - increment)
+                throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+            sendWindow += increment;
+        }else{
+            if(streamId > lastStreamId)
+                throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream "+streamId);
+            if(increment == 0)
+                throw new Http2Exception(PROTOCOL_ERROR, streamId, "Zero WINDOW_UPDATE");
+            Stream stream = streams.get(streamId);
+            if(stream == null)
+                return;
+            if(stream.sendWindow > MAX_WINDOW_SIZE - increment)
+                throw new Http2Exception(FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+            stream.sendWindow += increment;
+            queue(stream);
+        }
+        flushData();
+    }
+
+    private void applySettings(ByteBuf payload) throws Http2Exception{
+        for(int i = payload.readerIndex(); i < payload.writerIndex(); i += 6){
+            int id = payload.getUnsignedShort(i);
+            long value = payload.getUnsignedInt(i + 2);
+            switch(id){
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if(value > 1)
+                        throw new Http2Exception(PROTOCOL_ERROR, "ENABLE_PUSH "+value);
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if(value > MAX_WINDOW_SIZE)
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE "+value);
+                    int delta = (int) value - peerInitialWindowSize;
+                    peerInitialWindowSize = (int) value;
+                    for(Stream stream : streams.values(Stream.class)){
+                        if(delta > 0 && stream.sendWindow > MAX_WINDOW_SIZE - delta)
+                            throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+                        stream.sendWindow += delta;
+                        queue(stream);
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if(value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff)
+                        throw new Http2Exception(PROTOCOL_ERROR, "MAX_FRAME_SIZE "+value);
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS and MAX_HEADER_LIST_SIZE only matter to a server pushing streams
+                    // or sending huge headers, and unknown settings are ignored.
+            }
+        }
+        flushData();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if(!(msg instanceof HttpResponse)){
+            ctx.write(msg, promise);
+            return;
+        }
+        HttpResponse response = (HttpResponse) msg;
+        String id = response.headers().get(STREAM_ID);
+        Stream stream = null;
+        if(id != null)
+            try{
+                stream = streams.get(Integer.parseInt(id));
+            }catch(NumberFormatException ignored){}
+        if(stream == null || stream.localClosed || stream.responding || !(msg instanceof FullHttpResponse)){
+            ReferenceCountUtil.release(msg);
+            promise.tryFailure(new ClosedChannelException());
+            return;
+        }
+        response.headers().remove(STREAM_ID);
+        if(response.getStatus().code() < 200){
+            ReferenceCountUtil.release(msg);
+            writeHeaders(stream.id, response.getStatus(), response.headers(), false, promise);
+            return;
+        }
+        writeResponse(stream, (FullHttpResponse) response, promise);
+    }
+
+    private void respond(Stream stream, HttpResponseStatus status){
+        writeResponse(stream, Utils.INSTANCE.sendError(status), ctx.newPromise());
+    }
+
+    private void writeResponse(Stream stream, FullHttpResponse response, ChannelPromise promise){
+        stream.responding = true;
+        int status = response.getStatus().code();
+        if(stream.head || status == 204 || status == 304)
+            response.release();
+        else if(response instanceof FileHttpResponse){
+            FileHttpResponse file = (FileHttpResponse) response;
+            if(file.count() > 0)
+                stream.input = file.newChunkedInput(DEFAULT_MAX_FRAME_SIZE);
+            file.release();
+        }else if(response.content().isReadable())
+            stream.data = response.content();
+        else
+            response.release();
+        if(!response.trailingHeaders().isEmpty())
+            stream.trailers = response.trailingHeaders();
+
+        boolean endStream = stream.data == null && stream.input == null && stream.trailers == null;
+        writeHeaders(stream.id, response.getStatus(), response.headers(), endStream, endStream ? promise : ctx.newPromise());
+        if(endStream)
+            closeLocal(stream, promise);
+        else{
+            stream.promise = promise;
+            queue(stream);
+            flushData();
+        }
+    }
+
+    private void writeHeaders(int streamId, HttpResponseStatus status, HttpHeaders headers, boolean endStream, ChannelPromise promise){
+        ByteBuf block = ctx.alloc().buffer(256);
+        try{
+            encoder.beginBlock(block);
+            if(status != null)
+                encoder.encode(block, ":status", Integer.toString(status.code()));
+            for(Map.Entry<String, String> header : headers){
+                String name = toLowerCase(header.getKey());
+                switch(name){
+                    case "connection":
+                    case "keep-alive":
+                    case "proxy-connection":
+                    case "transfer-encoding":
+                    case "upgrade":
+                    case STREAM_ID:
+                        continue;
+                }
+                encoder.encode(block, name, header.getValue());
+            }
+            int type = HEADERS;
+            int flags = endStream ? END_STREAM : 0;
+            do{
+                int length = Math.min(block.readableBytes(), peerMaxFrameSize);
+                boolean last = length == block.readableBytes();
+                ByteBuf frame = ctx.alloc().buffer(FRAME_HEADER_LENGTH + length);
+                writeFrameHeader(frame, length, type, flags | (last ? END_HEADERS : 0), streamId);
+                frame.writeBytes(block, length);
+                if(last)
+                    ctx.write(frame, promise);
+                else
+                    write(frame);
+                type = CONTINUATION;
+                flags = 0;
+            }while(block.isReadable());
+            pendingFlush = true;
+        }finally{
+            block.release();
+        }
+    }
+
+    private static String toLowerCase(String name){
+        for(int i = 0; i < name.length(); i++){
+            char c = name.charAt(i);
+            if(c >= 'A' && c <= 'Z'){
+                char[] chars = name.toCharArray();
+                for(int j = i; j < chars.length; j++)
+                    if(chars[j] >= 'A' && chars[j] <= 'Z')
+                        chars[j] += 'a' - 'A';
+                return new String(chars);
+            }
+        }
+        return name;
+    }
+
+    private void queue(Stream stream){
+        if(!stream.queued && stream.promise != null && stream.sendWindow > 0){
+            stream.queued = true;
+            writable.add(stream);
+        }
+    }
+
+    /**
+     * Writes DATA frames, one per stream in turn, while both windows allow and the channel is writable.
+     */
+    private void flushData(){
+        while(sendWindow > 0 && ctx.channel().isWritable()){
+            Stream stream = writable.poll();
+            if(stream == null)
+                break;
+            stream.queued = false;
+            try{
+                writeData(stream);
+            }catch(Exception ex){
+                ex.printStackTrace();
+                resetStream(stream.id, INTERNAL_ERROR);
+            }
+        }
+    }
+
+    private void writeData(Stream stream) throws Exception{
+        ByteBuf data = stream.data;
+        if((data == null || !data.isReadable()) && stream.input != null){
+            if(data != null)
+                data.release();
+            data = stream.data = stream.input.isEndOfInput() ? null : stream.input.readChunk(ctx);
+            if(stream.input.isEndOfInput()){
+                stream.input.close();
+                stream.input = null;
+            }
+        }
+        int available = data == null ? 0 : data.readableBytes();
+        int size = Math.min(available, Math.min(Math.min(stream.sendWindow, sendWindow), peerMaxFrameSize));
+        boolean endOfBody = size == available && stream.input == null;
+        if(size == 0 && !endOfBody){
+            queue(stream);
+            return;
+        }
+        boolean endStream = endOfBody && stream.trailers == null;
+        ByteBuf frame = ctx.alloc().buffer(FRAME_HEADER_LENGTH);
+        writeFrameHeader(frame, size, DATA, endStream ? END_STREAM : 0, stream.id);
+        if(size > 0){
+            frame = Unpooled.wrappedBuffer(frame, data.readSlice(size).retain());
+            dataWritten = true;
+        }
+        sendWindow -= size;
+        stream.sendWindow -= size;
+        if(endOfBody && data != null){
+            data.release();
+            stream.data = null;
+        }
+        ChannelPromise promise = stream.promise;
+        if(endStream){
+            stream.promise = null;
+            ctx.write(frame, promise);
+            closeLocal(stream, promise);
+        }else if(endOfBody){
+            write(frame);
+            stream.promise = null;
+            writeHeaders(stream.id, null, stream.trailers, true, promise);
+            closeLocal(stream, promise);
+        }else{
+            write(frame);
+            queue(stream);
+        }
+        pendingFlush = true;
+    }
+
+    /**
+     * This side has written END_STREAM with {@code last}. The stream is dropped once that write completes, so
+     * until the response has left, the connection counts as busy. If the request is still arriving, as after
+     * an early error response, the client is told to stop sending.
+     */
+    private void closeLocal(final Stream stream, ChannelFuture last){
+        stream.localClosed = true;
+        if(!stream.remoteClosed){
+            abortBody(stream, null);
+            writeReset(stream.id, NO_ERROR);
+            stream.remoteClosed = stream.reset = true;
+        }
+        last.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if(streams.get(stream.id) != stream)
+                    return;
+                streams.remove(stream.id);
+                closeStream(stream, null);
+                if(goAwayReceived && streams.isEmpty())
+                    ctx.close();
+            }
+        });
+    }
+
+    private void resetStream(int streamId, int error){
+        writeReset(streamId, error);
+        closeStream(streams.remove(streamId), new Http2Exception(error, "Stream reset"));
+    }
+
+    private void writeReset(int streamId, int error){
+        ByteBuf frame = ctx.alloc().buffer(FRAME_HEADER_LENGTH + 4);
+        writeFrameHeader(frame, 4, RST_STREAM, 0, streamId);
+        frame.writeInt(error);
+        write(frame);
+    }
+
+    private void closeStream(Stream stream, Throwable cause){
+        if(stream == null)
+            return;
+        abortBody(stream, cause);
+        stream.localClosed = stream.remoteClosed = true;
+        if(stream.request != null){
+            stream.request.release();
+            stream.request = null;
+        }
+        if(stream.data != null){
+            stream.data.release();
+            stream.data = null;
+        }
+        if(stream.input != null){
+            try{
+                stream.input.close();
+            }catch(Exception ex){
+                ex.printStackTrace();
+            }
+            stream.input = null;
+        }
+        if(stream.promise != null){
+            stream.promise.tryFailure(cause == null ? new ClosedChannelException() : cause);
+            stream.promise = null;
+        }
+        if(stream.queued){
+            writable.remove(stream);
+            stream.queued = false;
+        }
+    }
+
+    /**
+     * Makes sure the deadlines are checked by {@code deadline}, a {@link System#nanoTime()} value.
+     */
+    private void arm(long deadline){
+        if(timer != null){
+            if(deadline - timerDeadline >= 0)
+                return;
+            timer.cancel(false);
+        }
+        timerDeadline = deadline;
+        timer = ctx.executor().schedule(checkDeadlines, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * An unfinished header block past the header timeout fails the connection, as it holds up every stream;
+     * a request body that has not moved within the body timeout only costs its own stream.
+     */
+    private void checkDeadlines(){
+        if(broken)
+            return;
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        if(headerStreamId != 0 && headerTimeout > 0){
+            if(now - headerStarted >= headerTimeout){
+                metrics.connectionExpired(ServerMetrics.EXPIRED_HEADER);
+                connectionError(new Http2Exception(ENHANCE_YOUR_CALM, "Header timeout"));
+                return;
+            }
+            next = headerStarted + headerTimeout;
+        }
+        if(bodyTimeout > 0)
+            for(Stream stream : streams.values(Stream.class)){
+                if(stream.remoteClosed)
+                    continue;
+                if(stream.paused)
+                    stream.progress = now;
+                if(now - stream.progress >= bodyTimeout){
+                    metrics.connectionExpired(ServerMetrics.EXPIRED_BODY);
+                    resetStream(stream.id, CANCEL);
+                }else if(next == Long.MAX_VALUE || stream.progress + bodyTimeout - next < 0)
+                    next = stream.progress + bodyTimeout;
+            }
+        if(next != Long.MAX_VALUE)
+            arm(next);
+        flushIfNeeded();
+    }
+
+    /**
+     * Stops replenishing the window of a streamed request body, so the client stops sending once it is used up.
+     */
+    void pause(int streamId){
+        Stream stream = streams.get(streamId);
+        if(stream != null)
+            stream.paused = true;
+    }
+
+    void resume(int streamId){
+        Stream stream = streams.get(streamId);
+        if(stream == null || !stream.paused)
+            return;
+        stream.paused = false;
+        stream.progress = System.nanoTime();
+        if(!stream.remoteClosed && stream.receiveWindow <= initialWindowSize / 2){
+            writeWindowUpdate(streamId, initialWindowSize - stream.receiveWindow);
+            stream.receiveWindow = initialWindowSize;
+            flushIfNeeded();
+        }
+    }
+
+    /**
+     * Tells {@link ServerHandler} that a streamed request body will not be finished.
+     */
+    private void abortBody(Stream stream, Throwable cause){
+        if(stream.streaming && !stream.remoteClosed){
+            stream.remoteClosed = true;
+            ctx.fireUserEventTriggered(new StreamAborted(stream.id, cause == null ? new ClosedChannelException() : cause));
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment){
+        ByteBuf frame = ctx.alloc().buffer(FRAME_HEADER_LENGTH + 4);
+        writeFrameHeader(frame, 4, WINDOW_UPDATE, 0, streamId);
+        frame.writeInt(increment);
+        write(frame);
+    }
+
+    private void connectionError(Http2Exception ex){
+        if(broken)
+            return;
+        broken = true;
+        writeGoAway(ex.error, ex.getMessage());
+        ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void writeGoAway(int error, String debug){
+        if(goAwaySent)
+            return;
+        goAwaySent = true;
+        byte[] data = debug == null ? new byte[0] : debug.getBytes(CharsetUtil.UTF_8);
+        ByteBuf frame = ctx.alloc().buffer(FRAME_HEADER_LENGTH + 8 + data.length);
+        writeFrameHeader(frame, 8 + data.length, GOAWAY, 0, 0);
+        frame.writeInt(lastStreamId).writeInt(error).writeBytes(data);
+        write(frame);
+    }
+
+    private void write(ByteBuf frame){
+        // Not the void promise: the idle and write timeout handlers in front add listeners to every write.
+        ctx.write(frame, ctx.newPromise());
+        pendingFlush = true;
+    }
+
+    private void flushIfNeeded(){
+        if(pendingFlush){
+            pendingFlush = false;
+            ctx.flush();
+        }
+    }
+
+    private static void writeFrameHeader(ByteBuf out, int length, int type, int flags, int streamId){
+        out.writeMedium(length).writeByte(type).writeByte(flags).writeInt(streamId);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        flushData();
+        pendingFlush = false;
+        ctx.flush();
+    }
+
+    @Override
+    public void close(final ChannelHandlerContext ctx, final ChannelPromise promise) throws Exception {
+        if(goAwaySent || !ctx.channel().isActive() || !(ctx.channel() instanceof SocketChannel)){
+            ctx.close(promise);
+            return;
+        }
+        // Closing outright would have the client's kernel answer anything the client still sends, such as a
+        // WINDOW_UPDATE for a response it is still reading, with a reset that discards the unread response.
+        // So the GOAWAY ends the output instead, and the client is given some time to read it and close.
+        writeGoAway(NO_ERROR, null);
+        pendingFlush = false;
+        ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if(future.isSuccess())
+                    ((SocketChannel) ctx.channel()).shutdownOutput();
+            }
+        });
+        ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                ctx.close(promise);
+            }
+        }, SHUTDOWN_GRACE, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if(ctx.channel().isWritable()){
+            flushData();
+            flushIfNeeded();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if(evt instanceof IdleStateEvent){
+            boolean sending = dataWritten;
+            dataWritten = false;
+            if(sending || awaitingResponse())
+                return;
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    /**
+     * @return whether a stream is held up by this side: its whole request is in and nothing of the response has
+     *         been written yet, or its module has paused the body
+     */
+    private boolean awaitingResponse(){
+        for(Stream stream : streams.values(Stream.class))
+            if((stream.remoteClosed && !stream.reset && !stream.responding) || stream.paused)
+                return true;
+        return false;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        release();
+        metrics.http2Closed();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        release();
+    }
+
+    private void release(){
+        if(timer != null){
+            timer.cancel(false);
+            timer = null;
+        }
+        if(cumulation != null){
+            cumulation.release();
+            cumulation = null;
+        }
+        if(headerBlock != null){
+            headerBlock.release();
+            headerBlock = null;
+        }
+        for(Stream stream : streams.values(Stream.class))
+            closeStream(stream, null);
+        streams.clear();
+        writable.clear();
+    }
+
+    private static final class Stream{
+        final int id;
+        int sendWindow;
+        int receiveWindow;
+        boolean head;
+        boolean remoteClosed;
+        boolean localClosed;
+        /**
+         * Answered early and reset with NO_ERROR; whatever the client had already sent is ignored.
+         */
+        boolean reset;
+        boolean responding;
+        boolean queued;
+        /**
+         * The body goes to a streaming module as it arrives instead of into {@link #request}.
+         */
+        boolean streaming;
+        boolean paused;
+        /**
+         * {@link System#nanoTime()} of the last DATA frame received, for the body timeout.
+         */
+        long progress;
+        FullHttpRequest request;
+        ByteBuf data;
+        ChunkedInput<ByteBuf> input;
+        HttpHeaders trailers;
+        ChannelPromise promise;
+
+        Stream(int id, int sendWindow, int receiveWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+            this.receiveWindow = receiveWindow;
+        }
+    }
+
+    static final class StreamContent extends DefaultHttpContent{
+        final int streamId;
+
+        StreamContent(int streamId, ByteBuf content) {
+            super(content);
+            this.streamId = streamId;
+        }
+    }
+
+    static final class LastStreamContent extends DefaultLastHttpContent{
+        final int streamId;
+
+        LastStreamContent(int streamId, ByteBuf content) {
+            super(content);
+            this.streamId = streamId;
+        }
+    }
+
+    /**
+     * User event for a streamed request body that was cut off, by a reset or the connection closing.
+     */
+    static final class StreamAborted{
+        final int streamId;
+        final Throwable cause;
+
+        StreamAborted(int streamId, Throwable cause) {
+            this.streamId = streamId;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * An error code with the stream it applies to, {@code 0} for the whole connection.
+     */
+    static final class Http2Exception extends Exception{
+        private static final long serialVersionUID = 1L;
+
+        final int error;
+        final int streamId;
+
+        Http2Exception(int error, String message) {
+            this(error, 0, message);
+        }
+
+        Http2Exception(int error, int streamId, String message) {
+            super(message, null, false, false);
+            this.error = error;
+            this.streamId = streamId;
+        }
+    }
+
+    /**
+     * Sits in front of the HTTP/1 decoder on a cleartext connection and hands it over to HTTP/2 if the client
+     * opens with the HTTP/2 connection preface. Otherwise it steps aside after the first bytes that differ,
+     * which for every HTTP/1 method is within the first two.
+     */
+    static final class PriorKnowledge extends ChannelInboundHandlerAdapter{
+        private final Main plugin;
+        private ByteBuf buffered;
+
+        PriorKnowledge(Main plugin) {
+            this.plugin = plugin;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if(!(msg instanceof ByteBuf)){
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            ByteBuf in = (ByteBuf) msg;
+            if(buffered != null){
+                ByteBuf joined = ctx.alloc().buffer(buffered.readableBytes() + in.readableBytes());
+                joined.writeBytes(buffered).writeBytes(in);
+                buffered.release();
+                in.release();
+                in = joined;
+                buffered = null;
+            }
+            int length = Math.min(PREFACE.length, in.readableBytes());
+            for(int i = 0; i < length; i++)
+                if(in.getByte(in.readerIndex() + i) != PREFACE[i]){
+                    ctx.pipeline().remove(this);
+                    ctx.fireChannelRead(in);
+                    return;
+                }
+            if(length < PREFACE.length){
+                buffered = in;
+                return;
+            }
+            ChannelPipeline pipeline = ctx.pipeline();
+            removeHttp1Handlers(pipeline, true);
+            Http2Handler handler = new Http2Handler(plugin);
+            pipeline.addAfter(ctx.name(), "http2", handler);
+            handler.start();
+            pipeline.remove(this);
+            ctx.fireChannelRead(in);
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+            if(buffered != null){
+                buffered.release();
+                buffered = null;
+            }
+        }
+    }
+}
@@ -17,68 +17,111 @@
 package net.andylizi.webinterface;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.*;
-import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
+import io.netty.handler.codec.http.multipart.HttpDataFactory;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.MultithreadEventExecutorGroup;
 
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.activation.MimetypesFileTypeMap;
 
 import net.andylizi.webinterface.api.API;
+import net.andylizi.webinterface.http.FileDescriptorCache;
+import net.andylizi.webinterface.http.MetricsModule;
+import net.andylizi.webinterface.http.StaticFileModule;
+import net.andylizi.webinterface.websocket.RetainedMessage;
 import org.bukkit.scheduler.BukkitRunnable;
 
 public final class Main extends JavaPlugin{
     private static Main instance;
     private static MimetypesFileTypeMap mimeTypesMap;
     
-    private final EventLoopGroup group;
-    private final ServerBootstrap bootstrap;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
     private ChannelFuture channel;
+    private ExecutorService workerExecutor;
+    private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private HttpDataFactory httpDataFactory = new DefaultHttpDataFactory(DefaultHttpDataFactory.MINSIZE);
+    private String staticModuleId;
+    private StaticFileModule staticModule;
+    private ResponseCache responseCache;
+    private RateLimiter rateLimiter;
+    private WebSocketCompression webSocketCompression;
+    private WebSocketHandshakers webSocketHandshakers = new WebSocketHandshakers(new WebSocketHandshakers.Limits(65536, 1024 * 1024));
+    private TlsContext tlsContext;
+    private final ServerMetrics serverMetrics = new ServerMetrics();
+    private String metricsModuleId;
     
     public String accessControlAllowOrigin;
+    public boolean keepAlive;
+    public int maxKeepAliveRequests;
+    public int keepAliveTimeout;
+    public int maxPipelinedRequests;
+    public int maxContentLength;
+    public int headerTimeout;
+    public int bodyTimeout;
+    public int webSocketIdleTimeout;
+    public int webSocketHighWaterMark;
+    public int webSocketLowWaterMark;
+    public int writeTimeout;
+    public int maxConnections;
+    /**
+     * Open connections allowed per client address, 0 for no limit. Every client behind a reverse proxy shares
+     * the proxy's address, so this is only safe to enable when clients connect directly.
+     */
+    public int maxConnectionsPerAddress;
+    public final Set<String> workerModules = new HashSet<>();
+    /**
+     * Whether cleartext connections may switch to HTTP/2, with prior knowledge or {@code Upgrade: h2c}.
+     */
+    public boolean http2;
+    public int http2MaxConcurrentStreams;
+    public int http2InitialWindowSize;
+    public int http2MaxHeaderListSize;
+    public boolean compression;
+    public int compressionLevel;
+    public int compressionMinSize;
+    public final List<String> compressionSkipTypes = new ArrayList<>();
 
     public Main() {
-        group = new NioEventLoopGroup(2, new ThreadFactory() {
-            private final AtomicInteger counter = new AtomicInteger();
-            private final ThreadGroup threadGroup = new ThreadGroup("WebInterface-EventGroup");
-            
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread thread = new Thread(threadGroup, r, "WebInterface-EventGroup-#"+counter.getAndIncrement());
-                return thread;
-            }
-        });
-        try{
-            bootstrap = new ServerBootstrap()
-                    .group(group)
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_KEEPALIVE, true)
-                    .option(ChannelOption.SO_BACKLOG, 1024)
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel channel) throws Exception {
-                            channel.pipeline()
-                                    .addLast("http-decoder", new HttpRequestDecoder())
-                                    .addLast("http-aggregator", new HttpObjectAggregator(65536))
-                                    .addLast("http-encoder", new HttpResponseEncoder())
-                                    .addLast("http-chunked", new ChunkedWriteHandler())
-                                    .addLast("http-handler", new ServerHandler(Main.this));
-                        }
-                    });
-        }catch(Throwable t){
-            group.shutdownGracefully();
-            throw t;
-        }
+        instance = this;
+    }
+
+    /**
+     * Creates the plugin outside of a Bukkit plugin class loader, for the benchmarks and load tests under bench/,
+     * which reach it through their own factory in this package.
+     */
+    Main(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
         instance = this;
     }
 
@@ -89,6 +132,101 @@ public final class Main extends JavaPlugin{
         accessControlAllowOrigin = getConfig().getString("accessControlAllowOrigin", null);
         if(accessControlAllowOrigin != null && accessControlAllowOrigin.trim().isEmpty())
             accessControlAllowOrigin = null;
+        keepAlive = getConfig().getBoolean("http.keepAlive", true);
+        maxKeepAliveRequests = getConfig().getInt("http.maxKeepAliveRequests", 100);
+        keepAliveTimeout = getConfig().getInt("http.keepAliveTimeout", 15);
+        maxPipelinedRequests = getConfig().getInt("http.maxPipelinedRequests", 16);
+        maxContentLength = getConfig().getInt("http.maxContentLength", 65536);
+        headerTimeout = getConfig().getInt("http.headerTimeout", 10);
+        bodyTimeout = getConfig().getInt("http.bodyTimeout", 60);
+        http2 = getConfig().getBoolean("http2.enabled", true);
+        http2MaxConcurrentStreams = Math.max(1, getConfig().getInt("http2.maxConcurrentStreams", 100));
+        http2InitialWindowSize = Math.max(65535, getConfig().getInt("http2.initialWindowSize", 65535));
+        http2MaxHeaderListSize = getConfig().getInt("http2.maxHeaderListSize", 16384);
+        webSocketIdleTimeout = getConfig().getInt("websocket.idleTimeout", 300);
+        webSocketHighWaterMark = getConfig().getInt("websocket.writeBufferHighWaterMark", 256 * 1024);
+        webSocketLowWaterMark = Math.min(getConfig().getInt("websocket.writeBufferLowWaterMark", 128 * 1024), webSocketHighWaterMark);
+        writeTimeout = getConfig().getInt("network.writeTimeout", 30);
+        String leakDetection = getConfig().getString("network.leakDetection", "");
+        if(leakDetection != null && !leakDetection.isEmpty())
+            try{
+                ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.valueOf(leakDetection.toUpperCase()));
+            }catch(IllegalArgumentException ex){
+                getLogger().warning("无效的内存泄漏检测级别: "+leakDetection);
+            }
+        maxConnections = getConfig().getInt("network.maxConnections", 4096);
+        maxConnectionsPerAddress = getConfig().getInt("network.maxConnectionsPerAddress", 0);
+        httpDataFactory = new DefaultHttpDataFactory(getConfig().getLong("http.multipartMemoryThreshold", 16384));
+        workerModules.clear();
+        for(String id : getConfig().getStringList("worker.modules"))
+            workerModules.add(id.toLowerCase());
+        compression = getConfig().getBoolean("compression.enabled", true);
+        compressionLevel = Math.max(0, Math.min(9, getConfig().getInt("compression.level", 6)));
+        compressionMinSize = getConfig().getInt("compression.minSize", 1024);
+        compressionSkipTypes.clear();
+        compressionSkipTypes.addAll(getConfig().getStringList("compression.skipTypes"));
+        if(getConfig().getBoolean("cache.enabled", false)){
+            responseCache = new ResponseCache(getConfig().getLong("cache.maxMemory", 16 * 1024 * 1024),
+                    compression ? compressionLevel : 0, compressionMinSize, compressionSkipTypes);
+            ConfigurationSection modules = getConfig().getConfigurationSection("cache.modules");
+            if(modules != null)
+                for(String id : modules.getKeys(false))
+                    responseCache.setPolicy(id, new ResponseCache.Policy(modules.getLong(id+".ttl", 1),
+                            modules.isList(id+".params") ? modules.getStringList(id+".params") : null));
+            API.addRegistrationListener(responseCache);
+        }
+        if(getConfig().getBoolean("rateLimit.enabled", false)){
+            rateLimiter = new RateLimiter(new RateLimiter.Limit(getConfig().getDouble("rateLimit.requestsPerSecond", 20),
+                    getConfig().getInt("rateLimit.burst", 40)), getConfig().getBoolean("rateLimit.perModule", false),
+                    getConfig().getInt("rateLimit.maxClients", 10000));
+            ConfigurationSection modules = getConfig().getConfigurationSection("rateLimit.modules");
+            if(modules != null)
+                for(String id : modules.getKeys(false))
+                    rateLimiter.setLimit(id, new RateLimiter.Limit(modules.getDouble(id+".requestsPerSecond", 0),
+                            modules.getInt(id+".burst", 1)));
+        }
+        int maxFrameSize = getConfig().getInt("websocket.maxFrameSize", 65536);
+        webSocketHandshakers = new WebSocketHandshakers(new WebSocketHandshakers.Limits(maxFrameSize,
+                getConfig().getInt("websocket.maxMessageSize", 1024 * 1024)));
+        ConfigurationSection webSocketModules = getConfig().getConfigurationSection("websocket.modules");
+        if(webSocketModules != null)
+            for(String id : webSocketModules.getKeys(false))
+                webSocketHandshakers.setLimits(id, new WebSocketHandshakers.Limits(webSocketModules.getInt(id+".maxFrameSize", maxFrameSize),
+                        webSocketModules.getInt(id+".maxMessageSize", 0)));
+        API.addRegistrationListener(webSocketHandshakers);
+        webSocketCompression = null;
+        if(getConfig().getBoolean("websocket.compression.enabled", true)){
+            webSocketCompression = new WebSocketCompression(Math.max(0, Math.min(9, getConfig().getInt("websocket.compression.level", 6))),
+                    getConfig().getInt("websocket.compression.minSize", 256),
+                    getConfig().getBoolean("websocket.compression.serverNoContextTakeover", false),
+                    getConfig().getBoolean("websocket.compression.clientNoContextTakeover", false));
+            ConfigurationSection modules = getConfig().getConfigurationSection("websocket.compression.modules");
+            if(modules != null)
+                for(String id : modules.getKeys(false))
+                    webSocketCompression.setEnabled(id, modules.getBoolean(id, true));
+        }
+        tlsContext = null;
+        if(getConfig().getBoolean("tls.enabled", false)){
+            long sessionCacheSize = getConfig().getLong("tls.sessionCacheSize", 0);
+            long sessionTimeout = getConfig().getLong("tls.sessionTimeout", 0);
+            String keyStore = getConfig().getString("tls.keyStore", "");
+            try{
+                if(keyStore != null && !keyStore.isEmpty())
+                    tlsContext = TlsContext.fromKeyStore(new File(getDataFolder(), keyStore), getConfig().getString("tls.keyStoreType", "JKS"),
+                            getConfig().getString("tls.password", ""), sessionCacheSize, sessionTimeout);
+                else
+                    tlsContext = TlsContext.fromPem(new File(getDataFolder(), getConfig().getString("tls.certificate", "cert.pem")),
+                            new File(getDataFolder(), getConfig().getString("tls.privateKey", "key.pem")),
+                            emptyToNull(getConfig().getString("tls.password", "")), sessionCacheSize, sessionTimeout);
+                getLogger().info("TLS 已启用: "+tlsContext.getProvider());
+            }catch(GeneralSecurityException | IOException ex){
+                getLogger().warning("无法加载 TLS 证书, 插件无法加载!");
+                ex.printStackTrace();
+                setEnabled(false);
+                return;
+            }
+        }
+        workerExecutor = createWorkerExecutor(getConfig().getString("worker.type", "fixed"), getConfig().getInt("worker.threads", 4));
         String ip = getConfig().getString("network.ip", "").trim();
         int port = getConfig().getInt("network.port");
         InetSocketAddress address;
@@ -109,6 +247,82 @@ public final class Main extends JavaPlugin{
             setEnabled(false);
             return;
         }
+        int bossThreads = getConfig().getInt("network.bossThreads", 1);
+        int workerThreads = getConfig().getInt("network.workerThreads", 0);
+        boolean epoll = getConfig().getBoolean("network.nativeTransport", true) && Epoll.isAvailable();
+        Class<? extends ServerSocketChannel> channelClass;
+        if(epoll){
+            bossGroup = new EpollEventLoopGroup(bossThreads, newThreadFactory("WebInterface-Boss", false));
+            workerGroup = new EpollEventLoopGroup(workerThreads, newThreadFactory("WebInterface-EventGroup", false));
+            channelClass = EpollServerSocketChannel.class;
+        }else{
+            bossGroup = new NioEventLoopGroup(bossThreads, newThreadFactory("WebInterface-Boss", false));
+            workerGroup = new NioEventLoopGroup(workerThreads, newThreadFactory("WebInterface-EventGroup", false));
+            channelClass = NioServerSocketChannel.class;
+        }
+        allocator = getConfig().getBoolean("network.pooledAllocator", true) ? PooledByteBufAllocator.DEFAULT : ByteBufAllocator.DEFAULT;
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(channelClass)
+                .option(ChannelOption.SO_BACKLOG, getConfig().getInt("network.backlog", 1024))
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.TCP_NODELAY, getConfig().getBoolean("network.tcpNoDelay", true))
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childHandler(new ServerInitializer(this));
+        int receiveBuffer = getConfig().getInt("network.receiveBufferSize", 0);
+        int sendBuffer = getConfig().getInt("network.sendBufferSize", 0);
+        if(receiveBuffer > 0)
+            bootstrap.childOption(ChannelOption.SO_RCVBUF, receiveBuffer);
+        if(sendBuffer > 0)
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, sendBuffer);
+        int highWaterMark = getConfig().getInt("network.writeBufferHighWaterMark", 64 * 1024);
+        int lowWaterMark = Math.min(getConfig().getInt("network.writeBufferLowWaterMark", 32 * 1024), highWaterMark);
+        if(highWaterMark < 32 * 1024)
+            bootstrap.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, lowWaterMark)
+                    .childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, highWaterMark);
+        else
+            bootstrap.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, highWaterMark)
+                    .childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, lowWaterMark);
+        bossGroup.scheduleAtFixedRate(DateHeader.INSTANCE, 1000 - System.currentTimeMillis() % 1000, 1000, TimeUnit.MILLISECONDS);
+        if(rateLimiter != null)
+            bossGroup.scheduleWithFixedDelay(rateLimiter, 10, 10, TimeUnit.SECONDS);
+        bossGroup.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                RetainedMessage.pollLeaks();
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+        getLogger().info("网络传输: "+(epoll ? "epoll" : "nio")
+                +", boss 线程: "+((MultithreadEventExecutorGroup) bossGroup).executorCount()
+                +", worker 线程: "+((MultithreadEventExecutorGroup) workerGroup).executorCount()
+                +", TCP_NODELAY: "+getConfig().getBoolean("network.tcpNoDelay", true)
+                +", SO_RCVBUF: "+(receiveBuffer > 0 ? receiveBuffer : "默认")
+                +", SO_SNDBUF: "+(sendBuffer > 0 ? sendBuffer : "默认")
+                +", 写缓冲水位: "+lowWaterMark+'-'+highWaterMark);
+        if(getConfig().getBoolean("static.enabled", false)){
+            File directory = new File(getDataFolder(), getConfig().getString("static.directory", "web"));
+            if(!directory.isDirectory() && !directory.mkdirs())
+                getLogger().warning("无法创建静态文件目录 "+directory);
+            staticModuleId = getConfig().getString("static.module", "static");
+            staticModule = new StaticFileModule(directory, getConfig().getString("static.index", "index.html"),
+                    getConfig().getInt("static.maxAge", 3600), new FileDescriptorCache(getConfig().getInt("static.fileCacheSize", 64)));
+            try{
+                API.registerModule(staticModuleId, staticModule);
+            }catch(IllegalArgumentException ex){
+                getLogger().warning("无法注册静态文件模块: "+ex.getMessage());
+                staticModule.close();
+                staticModule = null;
+            }
+        }
+        if(getConfig().getBoolean("metrics.enabled", false)){
+            metricsModuleId = getConfig().getString("metrics.module", "metrics");
+            try{
+                API.registerModule(metricsModuleId, new MetricsModule(serverMetrics));
+            }catch(IllegalArgumentException ex){
+                getLogger().warning("无法注册监控模块: "+ex.getMessage());
+                metricsModuleId = null;
+            }
+        }
         try{
             channel = bootstrap.bind(address).sync();
             getLogger().warning("在 "+ip+':'+port+" 开始监听...");
@@ -164,8 +378,113 @@ public final class Main extends JavaPlugin{
 
     @Override
     public void onDisable() {
-        if(group != null)
-            group.shutdownGracefully();
+        if(metricsModuleId != null){
+            API.unregisterModule(metricsModuleId);
+            metricsModuleId = null;
+        }
+        if(responseCache != null){
+            API.removeRegistrationListener(responseCache);
+            responseCache.clear();
+            responseCache = null;
+        }
+        rateLimiter = null;
+        webSocketCompression = null;
+        API.removeRegistrationListener(webSocketHandshakers);
+        if(staticModule != null){
+            API.unregisterModule(staticModuleId);
+            staticModule.close();
+            staticModule = null;
+        }
+        if(bossGroup != null)
+            bossGroup.shutdownGracefully();
+        if(workerGroup != null)
+            workerGroup.shutdownGracefully();
+        if(workerExecutor != null)
+            workerExecutor.shutdown();
+        httpDataFactory.cleanAllHttpDatas();
+    }
+    
+    private ExecutorService createWorkerExecutor(String type, int threads){
+        if(type.equalsIgnoreCase("virtual")){
+            try{
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }catch(ReflectiveOperationException ex){
+                getLogger().warning("当前 Java 版本不支持虚拟线程, 改用 cached 线程池");
+                type = "cached";
+            }
+        }
+        ThreadFactory factory = newThreadFactory("WebInterface-Worker", true);
+        if(type.equalsIgnoreCase("cached"))
+            return Executors.newCachedThreadPool(factory);
+        return Executors.newFixedThreadPool(Math.max(1, threads), factory);
+    }
+    
+    private static String emptyToNull(String s){
+        return s == null || s.isEmpty() ? null : s;
+    }
+    
+    private static ThreadFactory newThreadFactory(final String name, final boolean daemon){
+        return new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+            private final ThreadGroup threadGroup = new ThreadGroup(name);
+            
+            @Override
+            public Thread newThread(final Runnable r) {
+                // Clearing the FastThreadLocals on exit ends the Deflaters cached by the thread.
+                Thread thread = new Thread(threadGroup, new Runnable() {
+                    @Override
+                    public void run() {
+                        try{
+                            r.run();
+                        }finally{
+                            FastThreadLocal.removeAll();
+                        }
+                    }
+                }, name+"-#"+counter.getAndIncrement());
+                thread.setDaemon(daemon);
+                return thread;
+            }
+        };
+    }
+    
+    public ExecutorService getWorkerExecutor(){
+        return workerExecutor;
+    }
+    
+    public ByteBufAllocator getAllocator(){
+        return allocator;
+    }
+    
+    public HttpDataFactory getHttpDataFactory(){
+        return httpDataFactory;
+    }
+    
+    public ResponseCache getResponseCache(){
+        return responseCache;
+    }
+    
+    TlsContext getTlsContext(){
+        return tlsContext;
+    }
+    
+    public RateLimiter getRateLimiter(){
+        return rateLimiter;
+    }
+    
+    public WebSocketCompression getWebSocketCompression(){
+        return webSocketCompression;
+    }
+    
+    public WebSocketHandshakers getWebSocketHandshakers(){
+        return webSocketHandshakers;
+    }
+    
+    public ServerMetrics getServerMetrics(){
+        return serverMetrics;
+    }
+    
+    public static Main getInstance(){
+        return instance;
     }
     
     public static MimetypesFileTypeMap getMimeTypesMap(){
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiter keyed by client address, and by module for modules that have their own {@link Limit}
+ * or when {@code perModule} is set. Every bucket is a single theoretical arrival time updated with CAS, so a
+ * full bucket carries no state and can be dropped without changing behaviour. {@link #run()} drops them;
+ * clients seen while the table is full share one overflow bucket.
+ */
+public class RateLimiter implements Runnable{
+    private final Limit defaultLimit;
+    private final boolean perModule;
+    private final int maxClients;
+
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Key, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Bucket overflow = new Bucket();
+
+    public RateLimiter(Limit defaultLimit, boolean perModule, int maxClients) {
+        this.defaultLimit = defaultLimit;
+        this.perModule = perModule;
+        this.maxClients = maxClients;
+    }
+
+    public void setLimit(String moduleId, Limit limit){
+        moduleId = moduleId.toLowerCase();
+        if(limit == null)
+            limits.remove(moduleId);
+        else
+            limits.put(moduleId, limit);
+    }
+
+    public Limit getLimit(String moduleId){
+        return limits.get(moduleId);
+    }
+
+    /**
+     * Takes one token for a request from {@code address} to {@code moduleId}, which is {@code ""} for paths that
+     * did not match a registered module.
+     * @return {@code 0} if the request may proceed, otherwise the nanoseconds until the next token
+     */
+    public long acquire(InetAddress address, String moduleId){
+        Limit limit = limits.get(moduleId);
+        boolean moduleKey = perModule || limit != null;
+        if(limit == null)
+            limit = defaultLimit;
+        if(limit.interval <= 0)
+            return 0;
+        Key key = new Key(address, moduleKey ? moduleId : null);
+        Bucket bucket = buckets.get(key);
+        if(bucket == null){
+            if(size.get() >= maxClients)
+                bucket = overflow;
+            else{
+                Bucket created = new Bucket();
+                bucket = buckets.putIfAbsent(key, created);
+                if(bucket == null){
+                    bucket = created;
+                    size.incrementAndGet();
+                }
+            }
+        }
+        return bucket.acquire(System.nanoTime(), limit);
+    }
+
+    /**
+     * Drops the buckets that have refilled completely.
+     */
+    @Override
+    public void run(){
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Key, Bucket>> it = buckets.entrySet().iterator();
+        while(it.hasNext()){
+            Map.Entry<Key, Bucket> entry = it.next();
+            if(now - entry.getValue().arrival.get() >= 0 && buckets.remove(entry.getKey(), entry.getValue()))
+                size.decrementAndGet();
+        }
+    }
+
+    public int getClientCount(){
+        return size.get();
+    }
+
+    public static final class Limit{
+        private final long interval;
+        private final long tolerance;
+
+        /**
+         * @param requestsPerSecond sustained rate, {@code 0} or less disables the limit
+         * @param burst requests a client may send at once before the sustained rate applies
+         */
+        public Limit(double requestsPerSecond, int burst) {
+            this.interval = requestsPerSecond <= 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+            this.tolerance = interval * Math.max(1, burst);
+        }
+    }
+
+    private static final class Bucket{
+        final AtomicLong arrival = new AtomicLong(System.nanoTime());
+
+        long acquire(long now, Limit limit){
+            for(;;){
+                long current = arrival.get();
+                long next = (now - current > 0 ? now : current) + limit.interval;
+                long wait = next - now - limit.tolerance;
+                if(wait > 0)
+                    return wait;
+                if(arrival.compareAndSet(current, next))
+                    return 0;
+            }
+        }
+    }
+
+    private static final class Key{
+        final InetAddress address;
+        final String moduleId;
+
+        Key(InetAddress address, String moduleId) {
+            this.address = address;
+            this.moduleId = moduleId;
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode() * 31 + (moduleId == null ? 0 : moduleId.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return address.equals(other.address) && (moduleId == null ? other.moduleId == null : moduleId.equals(other.moduleId));
+        }
+    }
+}
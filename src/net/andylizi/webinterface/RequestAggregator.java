@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import net.andylizi.webinterface.api.API;
+import net.andylizi.webinterface.api.ModuleRouter;
+import net.andylizi.webinterface.http.StreamingHttpModule;
+
+public class RequestAggregator extends HttpObjectAggregator{
+    static final AttributeKey<ModuleRouter.Match> ROUTE = AttributeKey.valueOf("WebInterface-Route");
+
+    private boolean streaming;
+    private Attribute<ModuleRouter.Match> route;
+
+    public RequestAggregator(int maxContentLength) {
+        super(maxContentLength);
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        if(msg instanceof HttpRequest && !(msg instanceof FullHttpRequest)){
+            HttpRequest request = (HttpRequest) msg;
+            ModuleRouter.Match match = API.getRouter().route(request.getUri());
+            streaming = !ServerHandler.isWebSocketUpgrade(request) && match.getHttpModule() instanceof StreamingHttpModule;
+            route.set(match);
+        }
+        if(streaming){
+            if(msg instanceof LastHttpContent)
+                streaming = false;
+            return false;
+        }
+        return super.acceptInboundMessage(msg);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        super.handlerAdded(ctx);
+        route = ctx.channel().attr(ROUTE);
+    }
+}
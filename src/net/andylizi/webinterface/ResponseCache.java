@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import net.andylizi.webinterface.api.API;
+import net.andylizi.webinterface.api.Module;
+import net.andylizi.webinterface.http.FileHttpResponse;
+import net.andylizi.webinterface.http.HttpParams;
+
+/**
+ * Memory bounded LRU cache of full responses, keyed by module id, normalized module uri and the selected
+ * query parameters. Only modules that have a {@link Policy} are cached. Entries keep their body in a pooled
+ * buffer, plus a gzip variant when compression is enabled, and are served as retained duplicates.
+ * <p>
+ * The cache is shared by all clients, so requests with credentials or cookies bypass it, and responses that
+ * vary on anything but Accept-Encoding are not stored.
+ */
+public class ResponseCache implements API.RegistrationListener{
+    private final long maxMemory;
+    private final int compressionLevel;
+    private final int compressionMinSize;
+    private final List<String> compressionSkipTypes;
+
+    private final Map<String, Policy> policies = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+    private long memory;
+
+    public ResponseCache(long maxMemory, int compressionLevel, int compressionMinSize, List<String> compressionSkipTypes) {
+        this.maxMemory = maxMemory;
+        this.compressionLevel = compressionLevel;
+        this.compressionMinSize = compressionMinSize;
+        this.compressionSkipTypes = compressionSkipTypes;
+    }
+
+    public void setPolicy(String moduleId, Policy policy){
+        moduleId = moduleId.toLowerCase();
+        if(policy == null)
+            policies.remove(moduleId);
+        else
+            policies.put(moduleId, policy);
+        invalidate(moduleId);
+    }
+
+    public Policy getPolicy(String moduleId){
+        return policies.get(moduleId);
+    }
+
+    /**
+     * @param query the raw query string of a GET or HEAD request without a body, or {@code null}. Form and
+     *              multipart parameters never take part in the key.
+     * @return {@code null} if the request may neither be answered from nor stored in the cache
+     */
+    String key(String moduleId, String uri, String query, HttpHeaders requestHeaders){
+        Policy policy = policies.get(moduleId);
+        if(policy == null || requestHeaders.contains(AUTHORIZATION) || requestHeaders.contains(COOKIE))
+            return null;
+        StringBuilder key = new StringBuilder(moduleId.length() + uri.length() + 16).append(moduleId).append(' ');
+        int end = uri.indexOf('?');
+        if(end < 0)
+            end = uri.length();
+        char last = 0;
+        for(int i = 0; i < end; i++){
+            char c = uri.charAt(i);
+            if(c != '/' || last != '/')
+                key.append(c);
+            last = c;
+        }
+        if(key.charAt(key.length() - 1) != '/')
+            key.append('/');
+        if(query == null || query.isEmpty())
+            return key.toString();
+        HttpParams params = new HttpParams(query, Unpooled.EMPTY_BUFFER, CharsetUtil.UTF_8, null, Collections.<String, String>emptyMap());
+        String[] names = policy.params;
+        if(names == null){
+            Map<String, String> all = params.params();
+            names = all.keySet().toArray(new String[all.size()]);
+            Arrays.sort(names);
+        }
+        // Decoded names and values may contain anything, so each is length-prefixed rather than delimited.
+        key.append('?');
+        for(String name : names)
+            for(String value : params.getAll(name))
+                key.append(name.length()).append(':').append(name).append('=')
+                        .append(value.length()).append(':').append(value).append('&');
+        return key.toString();
+    }
+
+    /**
+     * @param head whether to answer a HEAD request, with the headers of the cached GET response and no body
+     */
+    FullHttpResponse get(String key, String acceptEncoding, boolean head){
+        boolean gzip = acceptEncoding != null && "gzip".equals(ContentCompressor.negotiate(acceptEncoding));
+        Entry entry;
+        ByteBuf content;
+        synchronized(entries){
+            entry = entries.get(key);
+            if(entry == null)
+                return null;
+            if(System.nanoTime() - entry.expires >= 0){
+                remove(key);
+                return null;
+            }
+            gzip &= entry.gzip != null;
+            content = (gzip ? entry.gzip : entry.identity).duplicate();
+            if(!head)
+                content.retain();
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, entry.status,
+                head ? Unpooled.EMPTY_BUFFER : content);
+        response.headers().set(entry.headers).set(CONTENT_LENGTH, content.readableBytes());
+        if(gzip)
+            response.headers().set(CONTENT_ENCODING, HttpHeaders.Values.GZIP);
+        return response;
+    }
+
+    void put(String key, String moduleId, FullHttpResponse response, ByteBufAllocator alloc){
+        Policy policy = policies.get(moduleId);
+        if(policy == null || !isCacheable(response))
+            return;
+        int length = response.content().readableBytes();
+        if(length > maxMemory / 8)
+            return;
+        ByteBuf identity = alloc.directBuffer(length).writeBytes(response.content(), response.content().readerIndex(), length);
+        ByteBuf gzip = null;
+        if(compressionLevel > 0 && length >= compressionMinSize
+                && !ContentCompressor.isSkippedType(response.headers().get(CONTENT_TYPE), compressionSkipTypes)){
+            ByteBuf encoded = ContentCompressor.encode(alloc, response.content().duplicate(), true, compressionLevel);
+            try{
+                if(encoded.readableBytes() < length)
+                    gzip = alloc.directBuffer(encoded.readableBytes()).writeBytes(encoded);
+            }finally{
+                encoded.release();
+            }
+        }
+        HttpHeaders headers = new DefaultHttpHeaders().set(response.headers());
+        headers.remove(DATE).remove(CONTENT_LENGTH).remove(CONNECTION);
+        if(gzip != null){
+            String vary = headers.get(VARY);
+            if(vary == null)
+                headers.set(VARY, ACCEPT_ENCODING);
+            else if(!vary.equals("*") && !vary.toLowerCase().contains("accept-encoding"))
+                headers.set(VARY, vary+", "+ACCEPT_ENCODING);
+        }
+        Entry entry = new Entry(moduleId, response.getStatus(), headers, identity, gzip,
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(policy.ttl));
+        List<Entry> evicted = new ArrayList<>(1);
+        synchronized(entries){
+            Entry existing = entries.put(key, entry);
+            memory += entry.size();
+            if(existing != null){
+                memory -= existing.size();
+                evicted.add(existing);
+            }
+            Iterator<Entry> it = entries.values().iterator();
+            while(memory > maxMemory && it.hasNext()){
+                Entry eldest = it.next();
+                it.remove();
+                memory -= eldest.size();
+                evicted.add(eldest);
+            }
+        }
+        for(Entry e : evicted)
+            e.release();
+    }
+
+    private static boolean isCacheable(FullHttpResponse response){
+        if(response.getStatus().code() != 200 || response instanceof FileHttpResponse)
+            return false;
+        HttpHeaders headers = response.headers();
+        if(headers.contains(SET_COOKIE) || headers.contains(CONTENT_ENCODING))
+            return false;
+        // Only the Accept-Encoding variants are kept apart; any other Vary means the body may be per client.
+        for(String vary : headers.getAll(VARY))
+            for(String field : vary.split(","))
+                if(!field.trim().isEmpty() && !field.trim().equalsIgnoreCase(ACCEPT_ENCODING))
+                    return false;
+        String cacheControl = headers.get(CACHE_CONTROL);
+        if(cacheControl != null){
+            cacheControl = cacheControl.toLowerCase();
+            if(cacheControl.contains("no-store") || cacheControl.contains("no-cache") || cacheControl.contains("private"))
+                return false;
+        }
+        return true;
+    }
+
+    private void remove(String key){
+        Entry entry = entries.remove(key);
+        if(entry != null){
+            memory -= entry.size();
+            entry.release();
+        }
+    }
+
+    public void invalidate(String moduleId){
+        List<Entry> removed = new ArrayList<>();
+        synchronized(entries){
+            Iterator<Entry> it = entries.values().iterator();
+            while(it.hasNext()){
+                Entry entry = it.next();
+                if(entry.moduleId.equals(moduleId)){
+                    it.remove();
+                    memory -= entry.size();
+                    removed.add(entry);
+                }
+            }
+        }
+        for(Entry entry : removed)
+            entry.release();
+    }
+
+    public void clear(){
+        Entry[] removed;
+        synchronized(entries){
+            removed = entries.values().toArray(new Entry[entries.size()]);
+            entries.clear();
+            memory = 0;
+        }
+        for(Entry entry : removed)
+            entry.release();
+    }
+
+    public long getMemoryUsage(){
+        synchronized(entries){
+            return memory;
+        }
+    }
+
+    @Override
+    public void moduleRegistered(String id, Module module) {
+        invalidate(id);
+    }
+
+    @Override
+    public void moduleUnregistered(String id, Module module) {
+        invalidate(id);
+    }
+
+    public static final class Policy{
+        private final long ttl;
+        private final String[] params;
+
+        /**
+         * @param ttl seconds an entry stays fresh
+         * @param params query parameters that are part of the key, or {@code null} to use all of them
+         */
+        public Policy(long ttl, List<String> params) {
+            this.ttl = ttl;
+            this.params = params == null ? null : params.toArray(new String[params.size()]);
+        }
+
+        public long getTtl() {
+            return ttl;
+        }
+    }
+
+    private static final class Entry{
+        final String moduleId;
+        final HttpResponseStatus status;
+        final HttpHeaders headers;
+        final ByteBuf identity;
+        final ByteBuf gzip;
+        final long expires;
+
+        Entry(String moduleId, HttpResponseStatus status, HttpHeaders headers, ByteBuf identity, ByteBuf gzip, long expires) {
+            this.moduleId = moduleId;
+            this.status = status;
+            this.headers = headers;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.expires = expires;
+        }
+
+        long size(){
+            return identity.capacity() + (gzip == null ? 0 : gzip.capacity()) + 256;
+        }
+
+        void release(){
+            identity.release();
+            if(gzip != null)
+                gzip.release();
+        }
+    }
+}
@@ -16,135 +16,259 @@
  */
 package net.andylizi.webinterface;
 
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
 import io.netty.handler.codec.http.websocketx.*;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
-import java.io.ByteArrayOutputStream;
-import java.net.URLDecoder;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import net.andylizi.webinterface.api.API;
 import net.andylizi.webinterface.api.Module;
+import net.andylizi.webinterface.api.ModuleRouter;
 import net.andylizi.webinterface.api.Utils;
 import net.andylizi.webinterface.api.events.ModuleRequestEvent;
+import net.andylizi.webinterface.http.AsyncHttpModule;
+import net.andylizi.webinterface.http.BlockingHttpModule;
+import net.andylizi.webinterface.http.BodyFlowControl;
+import net.andylizi.webinterface.http.FileHttpResponse;
 import net.andylizi.webinterface.http.HttpModule;
 import net.andylizi.webinterface.http.HttpParams;
+import net.andylizi.webinterface.http.RequestBodyHandler;
+import net.andylizi.webinterface.http.StreamingHttpModule;
+import net.andylizi.webinterface.websocket.ServerHandshakerFactory;
 import net.andylizi.webinterface.websocket.WebSocketConnection;
 import net.andylizi.webinterface.websocket.WebSocketModule;
 import org.bukkit.Bukkit;
 
-public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>{
+public class ServerHandler extends SimpleChannelInboundHandler<HttpObject>{
     static int HTTP_REQUEST_COUNTER = 0;
     static long lastHttpRequestTime;
-    
+
     static int WEBSOCKET_REQUEST_COUNTER = 0;
     static long lastWebsocketRequestTime;
-    
+
+    private static final CharSequence SERVER = HttpHeaders.newEntity("Server");
+    private static final CharSequence X_POWERED_BY = HttpHeaders.newEntity("X-Powered-By");
+    private static final CharSequence MODULE = HttpHeaders.newEntity("Module");
+    private static final CharSequence DATE = HttpHeaders.newEntity(HttpHeaders.Names.DATE);
+    private static final CharSequence ACCESS_CONTROL_ALLOW_ORIGIN = HttpHeaders.newEntity("Access-Control-Allow-Origin");
+
+    /**
+     * An empty SETTINGS frame followed by GOAWAY with HTTP_1_1_REQUIRED, the reply to an HTTP/2 connection
+     * preface that reaches the HTTP/1 decoder. That happens when HTTP/2 is disabled, or over TLS, where h2
+     * would need ALPN.
+     */
+    private static final byte[] HTTP2_REFUSAL = {
+        0, 0, 0, 0x4, 0, 0, 0, 0, 0,
+        0, 0, 8, 0x7, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0xd
+    };
+
+    private static final long FILE_REGION_SIZE = 256 * 1024;
+
     private final Main plugin;
-    private final String SERVER;
-    private final String X_POWERED_BY;
+    private final CharSequence serverHeader;
+    private final CharSequence poweredByHeader;
+    private final CharSequence allowOriginHeader;
+
+    private int handledRequests;
+    private final ArrayDeque<PendingResponse> pendingResponses = new ArrayDeque<>();
+    private boolean closed;
+    private StreamingBody body;
+    private IntObjectMap<StreamingBody> streamBodies;
+    private FileTransfer transfer;
 
     public ServerHandler(Main plugin) {
+        this(plugin, HttpHeaders.newEntity(plugin.getDescription().getName()),
+                HttpHeaders.newEntity(plugin.getDescription().getName()+'/'+plugin.getDescription().getVersion()),
+                plugin.accessControlAllowOrigin == null ? null : HttpHeaders.newEntity(plugin.accessControlAllowOrigin));
+    }
+
+    ServerHandler(Main plugin, CharSequence serverHeader, CharSequence poweredByHeader, CharSequence allowOriginHeader) {
         this.plugin = plugin;
-        this.SERVER = plugin.getDescription().getName();
-        this.X_POWERED_BY = SERVER+'/'+plugin.getDescription().getVersion();
+        this.serverHeader = serverHeader;
+        this.poweredByHeader = poweredByHeader;
+        this.allowOriginHeader = allowOriginHeader;
     }
 
-    private static final Pattern MODULE_NAME_PATTERN = Pattern.compile("(?!/)(?<module>[^/\\?]*)");
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+        if(msg instanceof HttpRequest)
+            handleRequest(ctx, (HttpRequest) msg);
+        else if(msg instanceof HttpContent){
+            int streamId = Http2Handler.streamId((HttpContent) msg);
+            StreamingBody target = streamId == 0 ? body : streamBodies == null ? null : streamBodies.get(streamId);
+            if(target != null)
+                target.handleContent(ctx, (HttpContent) msg);
+        }
+    }
+
+    private void handleRequest(ChannelHandlerContext ctx, HttpRequest request) throws Exception {
+        int streamId = Http2Handler.streamId(ctx.pipeline(), request);
+        if(streamId == 0 && plugin.http2 && request instanceof FullHttpRequest && request.getDecoderResult().isSuccess()
+                && pendingResponses.isEmpty() && body == null && transfer == null && ctx.pipeline().get(SslHandler.class) == null
+                && Http2Handler.isUpgrade(request) && new Http2Handler(plugin).upgrade(ctx, (FullHttpRequest) request))
+            streamId = 1;
+        boolean keepAlive = streamId != 0 || (plugin.keepAlive && request.getDecoderResult().isSuccess() && HttpHeaders.isKeepAlive(request)
+                && (plugin.maxKeepAliveRequests <= 0 || ++handledRequests < plugin.maxKeepAliveRequests));
+        ctx.channel().attr(Utils.KEEP_ALIVE).set(keepAlive);
+        ModuleRouter.Match match = ctx.channel().attr(RequestAggregator.ROUTE).getAndRemove();
         if(!request.getDecoderResult().isSuccess()){
-            Utils.INSTANCE.sendError(BAD_REQUEST, ctx);
+            respond(ctx, streamId, keepAlive, Utils.INSTANCE.sendError(BAD_REQUEST));
             return;
         }
+        if(request.getProtocolVersion().majorVersion() == 2 && request.getMethod().name().equals("PRI")){
+            closed = true;
+            ChannelHandlerContext encoder = ctx.pipeline().context(HttpResponseEncoder.class);
+            (encoder == null ? ctx : encoder).writeAndFlush(Unpooled.wrappedBuffer(HTTP2_REFUSAL)).addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+
+        if(match == null)
+            match = API.getRouter().route(request.getUri());
+        String moduleId = match.getModuleId();
 
-        Matcher matcher = MODULE_NAME_PATTERN.matcher(request.getUri());
-        String moduleId = matcher.find() ? moduleId = matcher.group() : null;
+        RateLimiter limiter = plugin.getRateLimiter();
+        if(limiter != null && ctx.channel().remoteAddress() instanceof InetSocketAddress){
+            // Unmatched paths share one key, otherwise random 404s would fill the client table.
+            boolean registered = match.getHttpModule() != null || match.getWebSocketModule() != null;
+            long wait = limiter.acquire(((InetSocketAddress) ctx.channel().remoteAddress()).getAddress(), registered ? moduleId : "");
+            if(wait > 0){
+                plugin.getServerMetrics().requestRateLimited();
+                FullHttpResponse response = Utils.INSTANCE.sendError(TOO_MANY_REQUESTS);
+                response.headers().set(HttpHeaders.Names.RETRY_AFTER, (wait + 999999999) / 1000000000);
+                respond(ctx, streamId, keepAlive, response);
+                return;
+            }
+        }
         
         {
             ModuleRequestEvent event = new ModuleRequestEvent(moduleId, ctx.channel().remoteAddress());
             Bukkit.getPluginManager().callEvent(event);
             if(event.isCancelled()){
-                Utils.INSTANCE.sendError(FORBIDDEN, "The request has been canceled by an event listener", ctx);
+                respond(ctx, streamId, keepAlive, Utils.INSTANCE.sendError(FORBIDDEN, "The request has been canceled by an event listener"));
                 return;
             }
-            moduleId = event.getModuleId();
+            if(!moduleId.equals(event.getModuleId())){
+                match = API.getRouter().route(request.getUri(), event.getModuleId());
+                moduleId = match.getModuleId();
+            }
         }
         
-        Module module = API.lookupModule(moduleId);
+        boolean upgrade = isWebSocketUpgrade(request);
+        Module module = upgrade ? match.getWebSocketModule() : match.getHttpModule();
+        if(module == null)
+            module = upgrade ? match.getHttpModule() : match.getWebSocketModule();
         if(module == null){
-            Utils.INSTANCE.sendError(NOT_FOUND, ctx);
+            respond(ctx, streamId, keepAlive, Utils.INSTANCE.sendError(NOT_FOUND));
             return;
         }
-        String uri = request.getUri().substring(matcher.end());
-        if(uri.isEmpty() || uri.charAt(0) != '/')
-            uri = '/'+uri;
+        String uri = match.getModuleUri();
 
-        Map<String, String> params = null;
-        String[] temp = request.getUri().split("\\?", 2);
-        if(temp.length < 2)
-            params = Collections.EMPTY_MAP;
-        else
-            params = HttpParams.parseParams(URLDecoder.decode(temp[1], "UTF-8"), new HashMap<String, String>());
-        
-        if(module instanceof HttpModule && !request.headers().contains("Upgrade")){
-            FullHttpResponse response;
+        String query = match.getQueryString();
+
+        // A streaming module may still get a whole request, over HTTP/2 when it has no body, or after an event
+        // listener rerouted it. It is then given the body in one piece.
+        if(!(request instanceof FullHttpRequest) || (streamId != 0 && module instanceof StreamingHttpModule)){
+            if(!(module instanceof StreamingHttpModule) || upgrade){
+                respond(ctx, streamId, false, Utils.INSTANCE.sendError(INTERNAL_SERVER_ERROR, "The module does not accept streamed request bodies"));
+                return;
+            }
+            PendingResponse pending = new PendingResponse(moduleId, match.getModuleHeader(), streamId, keepAlive);
+            if(streamId == 0){
+                // The interim response waits for the responses queued ahead of this request.
+                pending.expectContinue = HttpHeaders.is100ContinueExpected(request);
+                pendingResponses.add(pending);
+                sendContinue(ctx);
+            }
+            StreamingBody streamingBody = new StreamingBody(ctx, pending);
             try{
-                response = ((HttpModule) module).handleRequest(uri, new HttpParams(request.content(), CharsetUtil.UTF_8, params), request);
+                streamingBody.handler = ((StreamingHttpModule) module).handleRequest(uri,
+                        new HttpParams(query, request, Unpooled.EMPTY_BUFFER, CharsetUtil.UTF_8, match.getRoute(), match.getPathParams()),
+                        request, streamingBody);
+                if(streamingBody.handler == null)
+                    throw new NullPointerException("RequestBodyHandler");
+                if(request instanceof FullHttpRequest)
+                    streamingBody.handleContent(ctx, (FullHttpRequest) request);
+                else if(streamId == 0)
+                    body = streamingBody;
+                else{
+                    if(streamBodies == null)
+                        streamBodies = new IntObjectHashMap<>();
+                    streamBodies.put(streamId, streamingBody);
+                }
             }catch(Exception ex){
-                Utils.INSTANCE.sendError(INTERNAL_SERVER_ERROR, ctx);
-                ex.printStackTrace();
-                return;
+                streamingBody.fail(ex);
             }
-            HTTP_REQUEST_COUNTER++;
-            if(System.currentTimeMillis() - lastHttpRequestTime > 60 * 1000)
-                HTTP_REQUEST_COUNTER = 0;
-            lastHttpRequestTime = System.currentTimeMillis();
-            if(response == null){
-                ctx.writeAndFlush(new DefaultFullHttpResponse(HTTP_1_1, NO_CONTENT)).addListener(ChannelFutureListener.CLOSE);
-                return;
+            countHttpRequest();
+            return;
+        }
+
+        FullHttpRequest fullRequest = (FullHttpRequest) request;
+        if((module instanceof HttpModule || module instanceof AsyncHttpModule) && !upgrade){
+            PendingResponse pending = new PendingResponse(moduleId, match.getModuleHeader(), streamId, keepAlive);
+            pending.bytesIn = fullRequest.content().readableBytes();
+            if(streamId == 0){
+                pendingResponses.add(pending);
+                if(plugin.maxPipelinedRequests > 0 && pendingResponses.size() >= plugin.maxPipelinedRequests)
+                    ctx.channel().config().setAutoRead(false);
             }
+            countHttpRequest();
+            HttpParams params = new HttpParams(query, fullRequest, fullRequest.content(), CharsetUtil.UTF_8, match.getRoute(), match.getPathParams());
 
-            if(!response.setProtocolVersion(HTTP_1_1)
-                    .headers()
-                        .set("Server", SERVER)
-                        .set("X-Powered-By", X_POWERED_BY)
-                        .set("Module", moduleId)
-                    .contains("Content-Encoding"))
-                for(String str : request.headers().getAll("Accept-Encoding"))
-                    if(str.toLowerCase().contains("gzip"))
-                        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                            try (GZIPOutputStream out = new GZIPOutputStream(baos)) {
-                                out.write(response.content().copy().array());
-                            }
-                            byte[] data = baos.toByteArray();
-                            response.content().clear()
-                                    .capacity(data.length).writeBytes(data);
-                            response.headers()
-                                    .set("Content-Encoding", "gzip")
-                                    .add("Very", "Accept-Encoding")
-                                    .set("Content-Length", data.length);
-                        }
-            if(!response.headers().contains("Date"))
-                response.headers().add("Date", new Date());
-            if(plugin.accessControlAllowOrigin != null &&
-                    !response.headers().contains("Access-Control-Allow-Origin"))
-                response.headers().add("Access-Control-Allow-Origin", plugin.accessControlAllowOrigin);
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-        }else if(module instanceof WebSocketModule){
-            WebSocketServerHandshaker handshaker = new WebSocketServerHandshakerFactory(
-                    getWebSocketLocation(ctx.pipeline(), request), null, false).newHandshaker(request);
+            ResponseCache cache = plugin.getResponseCache();
+            boolean head = request.getMethod().equals(HttpMethod.HEAD);
+            String cacheKey;
+            if(cache != null && (head || request.getMethod().equals(HttpMethod.GET)) && !fullRequest.content().isReadable()
+                    && (cacheKey = cache.key(moduleId, uri, query, request.headers())) != null){
+                FullHttpResponse cached = cache.get(cacheKey, request.headers().get(HttpHeaders.Names.ACCEPT_ENCODING), head);
+                if(cached != null){
+                    params.destroy();
+                    complete(ctx, pending, cached);
+                    return;
+                }
+                // Only a GET response has the body a later GET would need.
+                if(!head)
+                    pending.cacheKey = cacheKey;
+            }
+
+            fullRequest.retain();
+            Future<FullHttpResponse> future;
+            try{
+                future = dispatch(ctx, moduleId, module, uri, params, fullRequest);
+            }catch(Exception ex){
+                future = ctx.executor().newFailedFuture(ex);
+            }
+            if(future == null)
+                future = ctx.executor().newFailedFuture(new NullPointerException("Future"));
+            future.addListener(new ResponseListener(ctx, pending, fullRequest, params));
+        }else if(module instanceof WebSocketModule && streamId == 0){
+            WebSocketCompression compression = plugin.getWebSocketCompression();
+            WebSocketCompression.Parameters deflate = compression == null || !"13".equals(request.headers().get(HttpHeaders.Names.SEC_WEBSOCKET_VERSION)) ?
+                    null : compression.negotiate(moduleId, request.headers().get(WebSocketCompression.SEC_WEBSOCKET_EXTENSIONS));
+            ServerHandshakerFactory factory = plugin.getWebSocketHandshakers().get(moduleId, getWebSocketLocation(ctx.pipeline(), request));
+            WebSocketServerHandshaker handshaker = factory.newHandshaker(request, deflate != null);
             if(handshaker == null)
                 WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
             else{
@@ -152,10 +276,38 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>{
                 if(System.currentTimeMillis() - lastWebsocketRequestTime > 60 * 1000)
                     WEBSOCKET_REQUEST_COUNTER = 0;
                 lastWebsocketRequestTime = System.currentTimeMillis();
-                
-                handshaker.handshake(ctx.channel(), request);
+
+                final ServerMetrics metrics = plugin.getServerMetrics();
+                if(deflate != null){
+                    handshaker.handshake(ctx.channel(), fullRequest, new DefaultHttpHeaders()
+                            .set(WebSocketCompression.SEC_WEBSOCKET_EXTENSIONS, deflate.toString()), ctx.channel().newPromise());
+                    ctx.pipeline().addBefore(ctx.name(), "websocket-deflate",
+                            compression.newHandler(deflate, factory.getMaxMessageLength(), metrics));
+                }else
+                    handshaker.handshake(ctx.channel(), fullRequest);
+                metrics.webSocketOpened();
+                ctx.channel().closeFuture().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        metrics.webSocketClosed();
+                    }
+                });
+                if(ctx.pipeline().get("http-idle") != null)
+                    ctx.pipeline().remove("http-idle");
+                if(plugin.webSocketIdleTimeout > 0)
+                    ctx.pipeline().addFirst("websocket-idle", new IdleStateHandler(plugin.webSocketIdleTimeout, 0, 0, TimeUnit.SECONDS){
+                        @Override
+                        protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) throws Exception {
+                            metrics.connectionExpired(ServerMetrics.EXPIRED_WEBSOCKET_IDLE);
+                            ctx.channel().writeAndFlush(new CloseWebSocketFrame(1001, "Idle timeout")).addListener(ChannelFutureListener.CLOSE);
+                        }
+                    });
+                if(ctx.pipeline().get("http-compressor") != null)
+                    ctx.pipeline().remove("http-compressor");
                 WebSocketConnection conn = ((WebSocketModule) module)
-                        .newConnect(ctx, handshaker, uri, new HttpParams(request.content(), CharsetUtil.UTF_8, params), request);
+                        .newConnect(ctx, handshaker, uri, new HttpParams(query, fullRequest.content(), CharsetUtil.UTF_8, match.getRoute(), match.getPathParams()), fullRequest);
+                if(plugin.webSocketHighWaterMark > 0)
+                    conn.setWriteBufferWaterMarks(plugin.webSocketLowWaterMark, plugin.webSocketHighWaterMark);
                 try{
                     conn.register();
                 }catch(Exception ex){
@@ -163,9 +315,153 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>{
                 }
             }
         }else{
-            Utils.INSTANCE.sendError(NOT_FOUND, ctx);
+            respond(ctx, streamId, keepAlive, Utils.INSTANCE.sendError(NOT_FOUND));
+        }
+    }
+
+    /**
+     * An {@code h2c} upgrade is taken up earlier, see {@link Http2Handler#isUpgrade}; other tokens are ignored
+     * and the request is served over HTTP/1.1.
+     */
+    static boolean isWebSocketUpgrade(HttpRequest request){
+        String upgrade = request.headers().get(HttpHeaders.Names.UPGRADE);
+        return upgrade != null && upgrade.toLowerCase().contains(HttpHeaders.Values.WEBSOCKET.toLowerCase());
+    }
+
+    private static void countHttpRequest(){
+        HTTP_REQUEST_COUNTER++;
+        if(System.currentTimeMillis() - lastHttpRequestTime > 60 * 1000)
+            HTTP_REQUEST_COUNTER = 0;
+        lastHttpRequestTime = System.currentTimeMillis();
+    }
+
+    private Future<FullHttpResponse> dispatch(ChannelHandlerContext ctx, String moduleId, Module module,
+            final String uri, final HttpParams params, final FullHttpRequest request) throws Exception{
+        if(module instanceof AsyncHttpModule)
+            return ((AsyncHttpModule) module).handleRequest(uri, params, request, ctx.executor().<FullHttpResponse>newPromise());
+
+        final HttpModule httpModule = (HttpModule) module;
+        if(!(module instanceof BlockingHttpModule) && !plugin.workerModules.contains(moduleId))
+            return ctx.executor().newSucceededFuture(httpModule.handleRequest(uri, params, request));
+
+        final Promise<FullHttpResponse> promise = ctx.executor().newPromise();
+        try{
+            plugin.getWorkerExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        promise.setSuccess(httpModule.handleRequest(uri, params, request));
+                    }catch(Throwable t){
+                        promise.setFailure(t);
+                    }
+                }
+            });
+        }catch(RejectedExecutionException ex){
+            promise.setFailure(ex);
+        }
+        return promise;
+    }
+
+    private void complete(ChannelHandlerContext ctx, PendingResponse pending, FullHttpResponse response) throws Exception {
+        if(response == null)
+            response = new DefaultFullHttpResponse(HTTP_1_1, NO_CONTENT);
+        else
+            response.setProtocolVersion(HTTP_1_1)
+                    .headers()
+                        .set(SERVER, serverHeader)
+                        .set(X_POWERED_BY, poweredByHeader)
+                        .set(MODULE, pending.moduleHeader);
+        if(!response.headers().contains(DATE))
+            response.headers().add(DATE, DateHeader.get());
+        if(allowOriginHeader != null && !response.headers().contains(ACCESS_CONTROL_ALLOW_ORIGIN))
+            response.headers().add(ACCESS_CONTROL_ALLOW_ORIGIN, allowOriginHeader);
+        pending.response = response;
+        ready(ctx, pending);
+    }
+
+    private void respond(ChannelHandlerContext ctx, int streamId, boolean keepAlive, FullHttpResponse response){
+        PendingResponse pending = new PendingResponse(null, null, streamId, keepAlive);
+        pending.response = response;
+        if(streamId == 0)
+            pendingResponses.add(pending);
+        ready(ctx, pending);
+    }
+
+    /**
+     * Called once {@code pending} has its response. HTTP/1 responses go out in request order, while an HTTP/2
+     * stream's response is written as soon as it is ready.
+     */
+    private void ready(ChannelHandlerContext ctx, PendingResponse pending){
+        if(pending.streamId == 0){
+            flushResponses(ctx);
             return;
         }
+        FullHttpResponse response = pending.response;
+        recordRequest(pending);
+        response.headers().set(Http2Handler.STREAM_ID, pending.streamId);
+        if(!(response instanceof FileHttpResponse) && !response.headers().contains(HttpHeaders.Names.CONTENT_LENGTH))
+            HttpHeaders.setContentLength(response, response.content().readableBytes());
+        ctx.writeAndFlush(response);
+    }
+
+    private void recordRequest(PendingResponse pending){
+        FullHttpResponse response = pending.response;
+        plugin.getServerMetrics().recordRequest(pending.moduleId == null ? "" : pending.moduleId, response.getStatus().code(),
+                System.nanoTime() - pending.started, pending.bytesIn, response instanceof FileHttpResponse ?
+                        HttpHeaders.getContentLength(response, 0) : response.content().readableBytes());
+    }
+
+    private void flushResponses(ChannelHandlerContext ctx){
+        PendingResponse head;
+        while((transfer == null || closed) && (head = pendingResponses.peek()) != null && head.response != null){
+            pendingResponses.poll();
+            if(closed){
+                ReferenceCountUtil.release(head.response);
+                continue;
+            }
+            recordRequest(head);
+            // A module can end the connection with Connection: close, which also drops the responses queued behind.
+            boolean keepAlive = head.keepAlive
+                    && !HttpHeaders.Values.CLOSE.equalsIgnoreCase(head.response.headers().get(HttpHeaders.Names.CONNECTION));
+            if(head.response instanceof FileHttpResponse)
+                sendFile(ctx, (FileHttpResponse) head.response, keepAlive);
+            else
+                Utils.INSTANCE.sendResponse(head.response, keepAlive, ctx);
+            if(!keepAlive)
+                closed = true;
+        }
+        sendContinue(ctx);
+        if(!closed && !ctx.channel().config().isAutoRead() && (body == null || !body.paused) &&
+                (plugin.maxPipelinedRequests <= 0 || pendingResponses.size() < plugin.maxPipelinedRequests))
+            ctx.channel().config().setAutoRead(true);
+    }
+
+    private void sendContinue(ChannelHandlerContext ctx){
+        PendingResponse head;
+        if(!closed && transfer == null && (head = pendingResponses.peek()) != null && head.expectContinue){
+            head.expectContinue = false;
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HTTP_1_1, CONTINUE));
+        }
+    }
+
+    private void sendFile(ChannelHandlerContext ctx, FileHttpResponse response, boolean keepAlive){
+        HttpResponse head = new DefaultHttpResponse(response.getProtocolVersion(), response.getStatus());
+        head.headers().set(response.headers());
+        head.headers().set(HttpHeaders.Names.CONNECTION, keepAlive ? HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
+        ContentCompressor compressor = ctx.pipeline().get(ContentCompressor.class);
+        FileTransfer transfer = new FileTransfer(ctx, response, keepAlive);
+        this.transfer = transfer;
+        try{
+            ctx.write(head);
+            if(ctx.pipeline().get(SslHandler.class) != null || (compressor != null && compressor.willCompress(head))){
+                transfer.chunked = true;
+                ctx.writeAndFlush(new HttpChunkedInput(response.newChunkedInput(8192))).addListener(transfer);
+            }else
+                transfer.next();
+        }catch(RuntimeException ex){
+            transfer.finish();
+            throw ex;
+        }
     }
 
     private static String getWebSocketLocation(ChannelPipeline pipeline, HttpRequest request){
@@ -175,9 +471,279 @@ public class ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>{
         return protocol + "://" + request.headers().get("Host") + request.getUri();
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        closed = true;
+        if(body != null)
+            body.abort(new ClosedChannelException());
+        if(streamBodies != null)
+            for(StreamingBody streamBody : streamBodies.values(StreamingBody.class))
+                streamBody.abort(new ClosedChannelException());
+        flushResponses(ctx);
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if(evt instanceof IdleStateEvent){
+            if(pendingResponses.isEmpty() && transfer == null){
+                plugin.getServerMetrics().connectionExpired(ServerMetrics.EXPIRED_IDLE);
+                ctx.close();
+            }
+        }else if(evt instanceof Http2Handler.StreamAborted){
+            Http2Handler.StreamAborted aborted = (Http2Handler.StreamAborted) evt;
+            StreamingBody streamBody = streamBodies == null ? null : streamBodies.get(aborted.streamId);
+            if(streamBody != null)
+                streamBody.abort(aborted.cause);
+        }else
+            super.userEventTriggered(ctx, evt);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable ex) throws Exception {
         ex.printStackTrace();
         ctx.close();
     }
+
+    private static final class PendingResponse{
+        final String moduleId;
+        final CharSequence moduleHeader;
+        final int streamId;
+        final boolean keepAlive;
+        final long started = System.nanoTime();
+        long bytesIn;
+        String cacheKey;
+        boolean expectContinue;
+        FullHttpResponse response;
+
+        PendingResponse(String moduleId, CharSequence moduleHeader, int streamId, boolean keepAlive) {
+            this.moduleId = moduleId;
+            this.moduleHeader = moduleHeader;
+            this.streamId = streamId;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    /**
+     * Writes a file body one bounded region at a time, each after the previous one has been sent, so a
+     * large download is a series of short writes rather than one that outlives the write timeout.
+     * Responses pipelined behind it are held until it completes.
+     */
+    private final class FileTransfer implements ChannelFutureListener{
+        private final ChannelHandlerContext ctx;
+        private final FileHttpResponse response;
+        private final boolean keepAlive;
+        boolean chunked;
+        long offset;
+
+        FileTransfer(ChannelHandlerContext ctx, FileHttpResponse response, boolean keepAlive) {
+            this.ctx = ctx;
+            this.response = response;
+            this.keepAlive = keepAlive;
+        }
+
+        void next(){
+            if(offset < response.count()){
+                long length = Math.min(FILE_REGION_SIZE, response.count() - offset);
+                ChannelFuture future = ctx.writeAndFlush(response.newFileRegion(offset, length));
+                offset += length;
+                future.addListener(this);
+            }else
+                complete(ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT));
+        }
+
+        void complete(ChannelFuture future){
+            finish();
+            if(!keepAlive)
+                future.addListener(ChannelFutureListener.CLOSE);
+            else
+                flushResponses(ctx);
+        }
+
+        void finish(){
+            if(transfer == this){
+                transfer = null;
+                response.release();
+            }
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if(transfer != this)
+                return;
+            if(!future.isSuccess()){
+                finish();
+                ctx.close();
+                flushResponses(ctx);
+            }else if(chunked)
+                complete(future);
+            else
+                next();
+        }
+    }
+
+    private final class StreamingBody implements BodyFlowControl{
+        private final ChannelHandlerContext ctx;
+        private final PendingResponse pending;
+        RequestBodyHandler handler;
+        volatile boolean paused;
+        boolean finished;
+
+        StreamingBody(ChannelHandlerContext ctx, PendingResponse pending) {
+            this.ctx = ctx;
+            this.pending = pending;
+        }
+
+        void handleContent(ChannelHandlerContext ctx, HttpContent content){
+            try{
+                pending.bytesIn += content.content().readableBytes();
+                if(content.content().isReadable())
+                    handler.handleContent(content.content());
+                if(content instanceof LastHttpContent){
+                    detach();
+                    resume();
+                    Future<FullHttpResponse> future = handler.handleEnd(((LastHttpContent) content).trailingHeaders(),
+                            ctx.executor().<FullHttpResponse>newPromise());
+                    if(future == null)
+                        future = ctx.executor().newFailedFuture(new NullPointerException("Future"));
+                    future.addListener(new ResponseListener(ctx, pending, null, null));
+                }
+            }catch(Exception ex){
+                abort(ex);
+                fail(ex);
+            }
+        }
+
+        void abort(Throwable cause){
+            detach();
+            resume();
+            try{
+                handler.handleAbort(cause);
+            }catch(Throwable t){
+                t.printStackTrace();
+            }
+        }
+
+        void fail(Throwable cause){
+            cause.printStackTrace();
+            pending.response = Utils.INSTANCE.sendError(INTERNAL_SERVER_ERROR);
+            ready(ctx, pending);
+        }
+
+        private void detach(){
+            finished = true;
+            if(pending.streamId == 0)
+                body = null;
+            else if(streamBodies != null)
+                streamBodies.remove(pending.streamId);
+        }
+
+        /**
+         * Over HTTP/2 only this stream is held back, by not replenishing its window. Calls from other threads
+         * are carried out on the event loop.
+         */
+        @Override
+        public void pause() {
+            if(!ctx.executor().inEventLoop()){
+                ctx.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pause();
+                    }
+                });
+                return;
+            }
+            if(finished || paused)
+                return;
+            paused = true;
+            Http2Handler http2 = pending.streamId == 0 ? null : ctx.pipeline().get(Http2Handler.class);
+            if(http2 != null)
+                http2.pause(pending.streamId);
+            else if(pending.streamId == 0)
+                ctx.channel().config().setAutoRead(false);
+        }
+
+        @Override
+        public void resume() {
+            if(!ctx.executor().inEventLoop()){
+                ctx.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resume();
+                    }
+                });
+                return;
+            }
+            if(paused){
+                paused = false;
+                Http2Handler http2 = pending.streamId == 0 ? null : ctx.pipeline().get(Http2Handler.class);
+                if(http2 != null)
+                    http2.resume(pending.streamId);
+                else if(pending.streamId == 0)
+                    ctx.channel().config().setAutoRead(true);
+            }
+        }
+
+        @Override
+        public boolean isPaused() {
+            return paused;
+        }
+
+        @Override
+        public EventExecutor executor() {
+            return ctx.executor();
+        }
+    }
+
+    private final class ResponseListener implements GenericFutureListener<Future<FullHttpResponse>>, Runnable{
+        private final ChannelHandlerContext ctx;
+        private final PendingResponse pending;
+        private final FullHttpRequest request;
+        private final HttpParams params;
+        private Future<FullHttpResponse> future;
+
+        ResponseListener(ChannelHandlerContext ctx, PendingResponse pending, FullHttpRequest request, HttpParams params) {
+            this.ctx = ctx;
+            this.pending = pending;
+            this.request = request;
+            this.params = params;
+        }
+
+        @Override
+        public void operationComplete(Future<FullHttpResponse> future) throws Exception {
+            this.future = future;
+            if(ctx.executor().inEventLoop())
+                run();
+            else
+                ctx.executor().execute(this);
+        }
+
+        @Override
+        public void run() {
+            if(params != null)
+                params.destroy();
+            if(request != null)
+                request.release();
+            FullHttpResponse response;
+            if(future.isSuccess()){
+                response = future.getNow();
+                // The cache may have been disabled by a reload while the module was running.
+                ResponseCache cache = plugin.getResponseCache();
+                if(cache != null && pending.cacheKey != null && response != null)
+                    cache.put(pending.cacheKey, pending.moduleId, response, ctx.alloc());
+            }else{
+                if(future.cause() != null)
+                    future.cause().printStackTrace();
+                response = Utils.INSTANCE.sendError(INTERNAL_SERVER_ERROR);
+            }
+            try{
+                complete(ctx, pending, response);
+            }catch(Exception ex){
+                ReferenceCountUtil.release(response);
+                pending.response = Utils.INSTANCE.sendError(INTERNAL_SERVER_ERROR);
+                ready(ctx, pending);
+                ex.printStackTrace();
+            }
+        }
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.handler.timeout.WriteTimeoutHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+public class ServerInitializer extends ChannelInitializer<Channel>{
+    private final Main plugin;
+    private final CharSequence serverHeader;
+    private final CharSequence poweredByHeader;
+    private final CharSequence allowOriginHeader;
+    private final ConnectionLimiter limiter;
+
+    public ServerInitializer(Main plugin) {
+        this.plugin = plugin;
+        this.serverHeader = HttpHeaders.newEntity(plugin.getDescription().getName());
+        this.poweredByHeader = HttpHeaders.newEntity(plugin.getDescription().getName()+'/'+plugin.getDescription().getVersion());
+        this.allowOriginHeader = plugin.accessControlAllowOrigin == null ? null : HttpHeaders.newEntity(plugin.accessControlAllowOrigin);
+        this.limiter = new ConnectionLimiter(plugin.maxConnections, plugin.maxConnectionsPerAddress);
+    }
+
+    @Override
+    protected void initChannel(Channel channel) throws Exception {
+        final ServerMetrics metrics = plugin.getServerMetrics();
+        final InetAddress address = channel.remoteAddress() instanceof InetSocketAddress ?
+                ((InetSocketAddress) channel.remoteAddress()).getAddress() : null;
+        int rejected = limiter.acquire(address);
+        if(rejected != ConnectionLimiter.ACCEPTED){
+            metrics.connectionRejected(rejected);
+            channel.close();
+            return;
+        }
+        metrics.connectionOpened();
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                limiter.release(address);
+                metrics.connectionClosed();
+            }
+        });
+        TlsContext tls = plugin.getTlsContext();
+        if(tls != null){
+            SslHandler ssl = tls.newHandler(channel.alloc());
+            final long started = System.nanoTime();
+            ssl.handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+                @Override
+                public void operationComplete(Future<Channel> future) throws Exception {
+                    metrics.tlsHandshake(future.isSuccess(), System.nanoTime() - started);
+                }
+            });
+            channel.pipeline().addLast("tls", ssl);
+        }
+        if(plugin.writeTimeout > 0)
+            channel.pipeline().addLast("write-timeout", new WriteTimeoutHandler(plugin.writeTimeout, TimeUnit.SECONDS){
+                @Override
+                public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+                    // A void promise cannot take the timeout's listener, so those writes go untimed.
+                    if(promise == ctx.voidPromise())
+                        ctx.write(msg, promise);
+                    else
+                        super.write(ctx, msg, promise);
+                }
+
+                @Override
+                protected void writeTimedOut(ChannelHandlerContext ctx) throws Exception {
+                    metrics.connectionExpired(ServerMetrics.EXPIRED_WRITE);
+                    ctx.close();
+                }
+            });
+        if(plugin.keepAliveTimeout > 0)
+            channel.pipeline().addLast("http-idle", new IdleStateHandler(plugin.keepAliveTimeout, 0, 0, TimeUnit.SECONDS));
+        if(plugin.http2 && tls == null)
+            channel.pipeline().addLast("http2-preface", new Http2Handler.PriorKnowledge(plugin));
+        channel.pipeline()
+                .addLast("http-decoder", new TimedRequestDecoder(metrics,
+                        TimeUnit.SECONDS.toMillis(plugin.headerTimeout), TimeUnit.SECONDS.toMillis(plugin.bodyTimeout)))
+                // Responses the aggregator writes itself have to pass through the encoder. They skip the
+                // compressor, as do the requests they answer.
+                .addLast("http-encoder", new HttpResponseEncoder())
+                .addLast("http-aggregator", new RequestAggregator(plugin.maxContentLength));
+        if(plugin.compression)
+            channel.pipeline().addLast("http-compressor",
+                    new ContentCompressor(plugin.compressionLevel, plugin.compressionMinSize, plugin.compressionSkipTypes));
+        channel.pipeline()
+                .addLast("http-chunked", new ChunkedWriteHandler())
+                .addLast("http-handler", new ServerHandler(plugin, serverHeader, poweredByHeader, allowOriginHeader));
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.andylizi.webinterface.api.API;
+import net.andylizi.webinterface.websocket.RetainedMessage;
+import net.andylizi.webinterface.websocket.Topic;
+
+/**
+ * Request counters and latency histograms per module. Every recording thread owns its own cells, so
+ * recording is a plain single-writer store; readers sum the cells of all threads.
+ */
+public class ServerMetrics {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int BUCKETS = 40 << SUB_BUCKET_BITS;
+    private static final int STATUS_CODES = 600;
+    private static final int BYTES_IN = 0, BYTES_OUT = 1, LATENCY_SUM = 2;
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    public static final int REJECTED_TOTAL = 0, REJECTED_ADDRESS = 1;
+    public static final int EXPIRED_HEADER = 0, EXPIRED_BODY = 1, EXPIRED_IDLE = 2, EXPIRED_WEBSOCKET_IDLE = 3, EXPIRED_WRITE = 4;
+    private static final String[] REJECTED_REASONS = {"total", "address"};
+    private static final String[] EXPIRED_REASONS = {"header", "body", "idle", "websocket_idle", "write"};
+    private static final int DEFLATE_IN = 0, DEFLATE_OUT = 1, INFLATE_IN = 2, INFLATE_OUT = 3;
+
+    private final ConcurrentMap<String, ModuleMetrics> modules = new ConcurrentHashMap<>();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger webSocketSessions = new AtomicInteger();
+    private final AtomicInteger http2Connections = new AtomicInteger();
+    private final AtomicLong http2Streams = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLongArray rejectedConnections = new AtomicLongArray(REJECTED_REASONS.length);
+    private final AtomicLongArray expiredConnections = new AtomicLongArray(EXPIRED_REASONS.length);
+    private final AtomicLongArray handshakeLatency = new AtomicLongArray(BUCKETS);
+    private final AtomicLong handshakeLatencySum = new AtomicLong();
+    private final AtomicLong handshakeFailures = new AtomicLong();
+    private final AtomicLongArray compression = new AtomicLongArray(4);
+
+    public void recordRequest(String moduleId, int status, long latencyNanos, long bytesIn, long bytesOut){
+        ModuleMetrics module = modules.get(moduleId);
+        if(module == null){
+            ModuleMetrics created = new ModuleMetrics();
+            module = modules.putIfAbsent(moduleId, created);
+            if(module == null)
+                module = created;
+        }
+        Cells cells = module.cells.get();
+        if(status >= 0 && status < STATUS_CODES)
+            increment(cells.statuses, status, 1);
+        increment(cells.latency, bucket(latencyNanos / 1000), 1);
+        increment(cells.totals, LATENCY_SUM, latencyNanos);
+        increment(cells.totals, BYTES_IN, bytesIn);
+        increment(cells.totals, BYTES_OUT, bytesOut);
+    }
+
+    private static void increment(AtomicLongArray array, int index, long delta){
+        array.lazySet(index, array.get(index) + delta);
+    }
+
+    static int bucket(long micros){
+        if(micros < (1 << SUB_BUCKET_BITS))
+            return (int) Math.max(0, micros);
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int index = ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS)
+                + (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1));
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    static long bucketUpperBound(int bucket){
+        if(bucket < (1 << SUB_BUCKET_BITS))
+            return bucket + 1;
+        int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long sub = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((1L << SUB_BUCKET_BITS) + sub + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public void connectionOpened(){
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed(){
+        activeConnections.decrementAndGet();
+    }
+
+    public void webSocketOpened(){
+        webSocketSessions.incrementAndGet();
+    }
+
+    public void webSocketClosed(){
+        webSocketSessions.decrementAndGet();
+    }
+
+    public void http2Opened(){
+        http2Connections.incrementAndGet();
+    }
+
+    public void http2Closed(){
+        http2Connections.decrementAndGet();
+    }
+
+    public void http2Stream(){
+        http2Streams.incrementAndGet();
+    }
+
+    public void connectionRejected(int reason){
+        rejectedConnections.incrementAndGet(reason);
+    }
+
+    public void connectionExpired(int reason){
+        expiredConnections.incrementAndGet(reason);
+    }
+
+    public void tlsHandshake(boolean success, long latencyNanos){
+        if(success){
+            handshakeLatency.incrementAndGet(bucket(latencyNanos / 1000));
+            handshakeLatencySum.addAndGet(latencyNanos);
+        }else
+            handshakeFailures.incrementAndGet();
+    }
+
+    public void webSocketDeflated(long uncompressed, long compressed){
+        compression.addAndGet(DEFLATE_IN, uncompressed);
+        compression.addAndGet(DEFLATE_OUT, compressed);
+    }
+
+    public void webSocketInflated(long compressed, long uncompressed){
+        compression.addAndGet(INFLATE_IN, compressed);
+        compression.addAndGet(INFLATE_OUT, uncompressed);
+    }
+
+    public void requestRateLimited(){
+        rateLimited.incrementAndGet();
+    }
+
+    public int getActiveConnections(){
+        return activeConnections.get();
+    }
+
+    public int getWebSocketSessions(){
+        return webSocketSessions.get();
+    }
+
+    public long getRateLimitedRequests(){
+        return rateLimited.get();
+    }
+
+    public long getRejectedConnections(int reason){
+        return rejectedConnections.get(reason);
+    }
+
+    public long getExpiredConnections(int reason){
+        return expiredConnections.get(reason);
+    }
+
+    /**
+     * @return the latency of the successful TLS handshakes
+     */
+    public Snapshot handshakeSnapshot(){
+        long[] latency = new long[BUCKETS];
+        for(int i = 0; i < latency.length; i++)
+            latency[i] = handshakeLatency.get(i);
+        return new Snapshot(new long[0], latency, handshakeLatencySum.get(), 0, 0);
+    }
+
+    public long getHandshakeFailures(){
+        return handshakeFailures.get();
+    }
+
+    /**
+     * @return compressed bytes sent per uncompressed byte, {@code 1} before anything was compressed
+     */
+    public double getWebSocketCompressionRatio(){
+        long uncompressed = compression.get(DEFLATE_IN);
+        return uncompressed == 0 ? 1 : (double) compression.get(DEFLATE_OUT) / uncompressed;
+    }
+
+    public Map<String, Snapshot> snapshot(){
+        Map<String, Snapshot> snapshot = new HashMap<>();
+        for(Map.Entry<String, ModuleMetrics> entry : modules.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        return snapshot;
+    }
+
+    public void writePrometheus(StringBuilder out){
+        List<String> ids = new ArrayList<>(modules.keySet());
+        Collections.sort(ids);
+        List<Snapshot> snapshots = new ArrayList<>(ids.size());
+        for(String id : ids)
+            snapshots.add(modules.get(id).snapshot());
+
+        out.append("# HELP webinterface_http_requests_total HTTP requests by module and status.\n")
+           .append("# TYPE webinterface_http_requests_total counter\n");
+        for(int i = 0; i < ids.size(); i++){
+            long[] statuses = snapshots.get(i).statuses;
+            for(int status = 0; status < statuses.length; status++)
+                if(statuses[status] != 0)
+                    label(out.append("webinterface_http_requests_total"), ids.get(i))
+                            .append(",status=\"").append(status).append("\"} ").append(statuses[status]).append('\n');
+        }
+
+        out.append("# HELP webinterface_http_request_duration_seconds HTTP request latency by module.\n")
+           .append("# TYPE webinterface_http_request_duration_seconds summary\n");
+        for(int i = 0; i < ids.size(); i++){
+            Snapshot snapshot = snapshots.get(i);
+            for(double quantile : QUANTILES)
+                label(out.append("webinterface_http_request_duration_seconds"), ids.get(i))
+                        .append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(snapshot.getLatencyMicros(quantile) / 1e6).append('\n');
+            label(out.append("webinterface_http_request_duration_seconds_sum"), ids.get(i))
+                    .append("} ").append(snapshot.latencySumNanos / 1e9).append('\n');
+            label(out.append("webinterface_http_request_duration_seconds_count"), ids.get(i))
+                    .append("} ").append(snapshot.count).append('\n');
+        }
+
+        out.append("# HELP webinterface_http_request_bytes_total Request body bytes received by module.\n")
+           .append("# TYPE webinterface_http_request_bytes_total counter\n");
+        for(int i = 0; i < ids.size(); i++)
+            label(out.append("webinterface_http_request_bytes_total"), ids.get(i))
+                    .append("} ").append(snapshots.get(i).bytesIn).append('\n');
+        out.append("# HELP webinterface_http_response_bytes_total Response body bytes sent by module.\n")
+           .append("# TYPE webinterface_http_response_bytes_total counter\n");
+        for(int i = 0; i < ids.size(); i++)
+            label(out.append("webinterface_http_response_bytes_total"), ids.get(i))
+                    .append("} ").append(snapshots.get(i).bytesOut).append('\n');
+
+        out.append("# HELP webinterface_active_connections Open client connections.\n")
+           .append("# TYPE webinterface_active_connections gauge\n")
+           .append("webinterface_active_connections ").append(activeConnections.get()).append('\n')
+           .append("# HELP webinterface_http2_connections Open HTTP/2 connections.\n")
+           .append("# TYPE webinterface_http2_connections gauge\n")
+           .append("webinterface_http2_connections ").append(http2Connections.get()).append('\n')
+           .append("# HELP webinterface_http2_streams_total HTTP/2 streams opened by clients.\n")
+           .append("# TYPE webinterface_http2_streams_total counter\n")
+           .append("webinterface_http2_streams_total ").append(http2Streams.get()).append('\n')
+           .append("# HELP webinterface_websocket_sessions Open WebSocket sessions.\n")
+           .append("# TYPE webinterface_websocket_sessions gauge\n")
+           .append("webinterface_websocket_sessions ").append(webSocketSessions.get()).append('\n')
+           .append("# HELP webinterface_http_rate_limited_total Requests rejected by the rate limiter.\n")
+           .append("# TYPE webinterface_http_rate_limited_total counter\n")
+           .append("webinterface_http_rate_limited_total ").append(rateLimited.get()).append('\n');
+        out.append("# HELP webinterface_connections_rejected_total Connections refused by the connection limits.\n")
+           .append("# TYPE webinterface_connections_rejected_total counter\n");
+        for(int i = 0; i < REJECTED_REASONS.length; i++)
+            out.append("webinterface_connections_rejected_total{reason=\"").append(REJECTED_REASONS[i]).append("\"} ")
+               .append(rejectedConnections.get(i)).append('\n');
+        out.append("# HELP webinterface_connections_expired_total Connections closed by a timeout.\n")
+           .append("# TYPE webinterface_connections_expired_total counter\n");
+        for(int i = 0; i < EXPIRED_REASONS.length; i++)
+            out.append("webinterface_connections_expired_total{reason=\"").append(EXPIRED_REASONS[i]).append("\"} ")
+               .append(expiredConnections.get(i)).append('\n');
+
+        List<Topic> topics = new ArrayList<>(API.getTopics().values());
+        out.append("# HELP webinterface_websocket_topic_subscribers WebSocket connections subscribed to a topic.\n")
+           .append("# TYPE webinterface_websocket_topic_subscribers gauge\n");
+        for(Topic topic : topics)
+            label(out.append("webinterface_websocket_topic_subscribers"), "topic", topic.getName())
+                    .append("} ").append(topic.getSubscriberCount()).append('\n');
+        out.append("# HELP webinterface_websocket_topic_messages_total Messages published to a topic.\n")
+           .append("# TYPE webinterface_websocket_topic_messages_total counter\n");
+        for(Topic topic : topics)
+            label(out.append("webinterface_websocket_topic_messages_total"), "topic", topic.getName())
+                    .append("} ").append(topic.getPublishedCount()).append('\n');
+        out.append("# HELP webinterface_websocket_topic_dropped_total Topic messages skipped for subscribers that were not writable.\n")
+           .append("# TYPE webinterface_websocket_topic_dropped_total counter\n");
+        for(Topic topic : topics)
+            label(out.append("webinterface_websocket_topic_dropped_total"), "topic", topic.getName())
+                    .append("} ").append(topic.getDroppedCount()).append('\n');
+
+        out.append("# HELP webinterface_websocket_uncompressed_bytes_total Payload of permessage-deflate messages before compression or after inflation.\n")
+           .append("# TYPE webinterface_websocket_uncompressed_bytes_total counter\n")
+           .append("webinterface_websocket_uncompressed_bytes_total{direction=\"sent\"} ").append(compression.get(DEFLATE_IN)).append('\n')
+           .append("webinterface_websocket_uncompressed_bytes_total{direction=\"received\"} ").append(compression.get(INFLATE_OUT)).append('\n')
+           .append("# HELP webinterface_websocket_compressed_bytes_total Payload of permessage-deflate messages on the wire.\n")
+           .append("# TYPE webinterface_websocket_compressed_bytes_total counter\n")
+           .append("webinterface_websocket_compressed_bytes_total{direction=\"sent\"} ").append(compression.get(DEFLATE_OUT)).append('\n')
+           .append("webinterface_websocket_compressed_bytes_total{direction=\"received\"} ").append(compression.get(INFLATE_IN)).append('\n');
+
+        out.append("# HELP webinterface_websocket_retained_messages WebSocket messages retained by modules and not yet released.\n")
+           .append("# TYPE webinterface_websocket_retained_messages gauge\n")
+           .append("webinterface_websocket_retained_messages ").append(RetainedMessage.getRetainedCount()).append('\n')
+           .append("# HELP webinterface_websocket_leaked_messages_total Retained WebSocket messages garbage collected without being released.\n")
+           .append("# TYPE webinterface_websocket_leaked_messages_total counter\n")
+           .append("webinterface_websocket_leaked_messages_total ").append(RetainedMessage.getLeakCount()).append('\n');
+
+        Snapshot handshakes = handshakeSnapshot();
+        out.append("# HELP webinterface_tls_handshakes_total TLS handshakes by result.\n")
+           .append("# TYPE webinterface_tls_handshakes_total counter\n")
+           .append("webinterface_tls_handshakes_total{result=\"success\"} ").append(handshakes.count).append('\n')
+           .append("webinterface_tls_handshakes_total{result=\"failure\"} ").append(handshakeFailures.get()).append('\n')
+           .append("# HELP webinterface_tls_handshake_duration_seconds Time from accepting a connection to a completed TLS handshake.\n")
+           .append("# TYPE webinterface_tls_handshake_duration_seconds summary\n");
+        for(double quantile : QUANTILES)
+            out.append("webinterface_tls_handshake_duration_seconds{quantile=\"").append(quantile).append("\"} ")
+               .append(handshakes.getLatencyMicros(quantile) / 1e6).append('\n');
+        out.append("webinterface_tls_handshake_duration_seconds_sum ").append(handshakes.latencySumNanos / 1e9).append('\n')
+           .append("webinterface_tls_handshake_duration_seconds_count ").append(handshakes.count).append('\n');
+    }
+
+    private static StringBuilder label(StringBuilder out, String moduleId){
+        return label(out, "module", moduleId);
+    }
+
+    private static StringBuilder label(StringBuilder out, String name, String value){
+        out.append('{').append(name).append("=\"");
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c == '\\' || c == '"')
+                out.append('\\').append(c);
+            else if(c == '\n')
+                out.append("\\n");
+            else
+                out.append(c);
+        }
+        return out.append('"');
+    }
+
+    public static final class Snapshot{
+        private final long[] statuses;
+        private final long[] latency;
+        private final long count;
+        private final long latencySumNanos;
+        private final long bytesIn;
+        private final long bytesOut;
+
+        Snapshot(long[] statuses, long[] latency, long latencySumNanos, long bytesIn, long bytesOut) {
+            this.statuses = statuses;
+            this.latency = latency;
+            long count = 0;
+            for(long n : latency)
+                count += n;
+            this.count = count;
+            this.latencySumNanos = latencySumNanos;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getCount(int status){
+            return status >= 0 && status < statuses.length ? statuses[status] : 0;
+        }
+
+        public long getLatencyMicros(double quantile){
+            if(count == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for(int i = 0; i < latency.length; i++)
+                if((seen += latency[i]) >= rank)
+                    return bucketUpperBound(i);
+            return bucketUpperBound(latency.length - 1);
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+    }
+
+    private static final class ModuleMetrics{
+        final List<Cells> all = new CopyOnWriteArrayList<>();
+        final ThreadLocal<Cells> cells = new ThreadLocal<Cells>(){
+            @Override
+            protected Cells initialValue() {
+                Cells cells = new Cells();
+                all.add(cells);
+                return cells;
+            }
+        };
+
+        Snapshot snapshot(){
+            long[] statuses = new long[STATUS_CODES];
+            long[] latency = new long[BUCKETS];
+            long[] totals = new long[3];
+            for(Cells cell : all){
+                for(int i = 0; i < statuses.length; i++)
+                    statuses[i] += cell.statuses.get(i);
+                for(int i = 0; i < latency.length; i++)
+                    latency[i] += cell.latency.get(i);
+                for(int i = 0; i < totals.length; i++)
+                    totals[i] += cell.totals.get(i);
+            }
+            return new Snapshot(statuses, latency, totals[LATENCY_SUM], totals[BYTES_IN], totals[BYTES_OUT]);
+        }
+    }
+
+    private static final class Cells{
+        final AtomicLongArray statuses = new AtomicLongArray(STATUS_CODES);
+        final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+        final AtomicLongArray totals = new AtomicLongArray(3);
+    }
+}
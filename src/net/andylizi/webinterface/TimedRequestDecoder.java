@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request decoder with a deadline for the head of a request, counted from its first byte, and an inactivity
+ * timeout for its body, restarted whenever body bytes arrive. A client that misses either is disconnected.
+ * While the server has paused reading, the clock does not run. Time spent between requests is left to the
+ * keep-alive idle timeout.
+ */
+class TimedRequestDecoder extends HttpRequestDecoder{
+    private final ServerMetrics metrics;
+    private final long headerTimeout;
+    private final long bodyTimeout;
+
+    private ScheduledFuture<?> deadline;
+    private long progress;
+    private boolean readingHead;
+    private boolean readingBody;
+
+    /**
+     * @param headerTimeout milliseconds allowed for the request line and headers, {@code 0} to disable
+     * @param bodyTimeout milliseconds allowed between two reads of the body, {@code 0} to disable
+     */
+    TimedRequestDecoder(ServerMetrics metrics, long headerTimeout, long bodyTimeout) {
+        this.metrics = metrics;
+        this.headerTimeout = headerTimeout;
+        this.bodyTimeout = bodyTimeout;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf buffer, List<Object> out) throws Exception {
+        if(!readingHead && !readingBody && buffer.isReadable()){
+            readingHead = true;
+            schedule(ctx, headerTimeout);
+        }
+        int size = out.size();
+        super.decode(ctx, buffer, out);
+        for(int i = size; i < out.size(); i++){
+            Object msg = out.get(i);
+            if(msg instanceof HttpRequest){
+                readingHead = false;
+                readingBody = true;
+                schedule(ctx, bodyTimeout);
+            }
+            if(msg instanceof LastHttpContent){
+                readingHead = readingBody = false;
+                schedule(ctx, 0);
+            }else if(readingBody && msg instanceof HttpContent)
+                progress = System.nanoTime();
+        }
+    }
+
+    private void schedule(final ChannelHandlerContext ctx, long timeout){
+        if(deadline != null){
+            deadline.cancel(false);
+            deadline = null;
+        }
+        if(timeout <= 0)
+            return;
+        progress = System.nanoTime();
+        arm(ctx, timeout, timeout);
+    }
+
+    private void arm(final ChannelHandlerContext ctx, final long timeout, long delay){
+        final boolean head = readingHead;
+        deadline = ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                deadline = null;
+                // Reads paused by the server, for a module or a full pipeline, are not the client's delay.
+                if(!ctx.channel().config().isAutoRead())
+                    progress = System.nanoTime();
+                long remaining = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - progress);
+                if(remaining > 0){
+                    arm(ctx, timeout, remaining);
+                    return;
+                }
+                metrics.connectionExpired(head ? ServerMetrics.EXPIRED_HEADER : ServerMetrics.EXPIRED_BODY);
+                ctx.close();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        schedule(ctx, 0);
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        schedule(ctx, 0);
+        super.handlerRemoved0(ctx);
+    }
+}
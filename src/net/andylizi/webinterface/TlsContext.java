@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Server side TLS, loaded either from a PEM certificate chain and PKCS#8 key through Netty, which uses
+ * OpenSSL when netty-tcnative is present, or from a JKS/PKCS#12 key store through the JDK provider.
+ */
+final class TlsContext {
+    private final SslContext nettyContext;
+    private final SSLContext jdkContext;
+
+    private TlsContext(SslContext nettyContext, SSLContext jdkContext) {
+        this.nettyContext = nettyContext;
+        this.jdkContext = jdkContext;
+    }
+
+    /**
+     * @param sessionCacheSize sessions kept for resumption, {@code 0} for the provider default
+     * @param sessionTimeout seconds a cached session stays valid, {@code 0} for the provider default
+     */
+    static TlsContext fromPem(File certificate, File privateKey, String password, long sessionCacheSize, long sessionTimeout)
+            throws SSLException{
+        return new TlsContext(SslContext.newServerContext(certificate, privateKey, password,
+                null, null, sessionCacheSize, sessionTimeout), null);
+    }
+
+    static TlsContext fromKeyStore(File file, String type, String password, long sessionCacheSize, long sessionTimeout)
+            throws GeneralSecurityException, IOException{
+        char[] secret = password == null ? null : password.toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(type);
+        try(InputStream in = new FileInputStream(file)){
+            keyStore.load(in, secret);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, secret);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        if(sessionCacheSize > 0)
+            sessions.setSessionCacheSize((int) Math.min(Integer.MAX_VALUE, sessionCacheSize));
+        if(sessionTimeout > 0)
+            sessions.setSessionTimeout((int) Math.min(Integer.MAX_VALUE, sessionTimeout));
+        return new TlsContext(null, context);
+    }
+
+    SslHandler newHandler(ByteBufAllocator alloc){
+        if(nettyContext != null)
+            return nettyContext.newHandler(alloc);
+        SSLEngine engine = jdkContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new SslHandler(engine);
+    }
+
+    String getProvider(){
+        return nettyContext != null ? nettyContext.getClass().getSimpleName() : jdkContext.getProvider().getName();
+    }
+}
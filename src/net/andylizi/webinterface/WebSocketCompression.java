@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.*;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * RFC 7692 permessage-deflate. {@link #negotiate(String, String)} picks the first acceptable offer of a
+ * handshake and {@link #newHandler(Parameters, int, ServerMetrics)} compresses outbound text and binary
+ * messages of at least {@code minSize} bytes and inflates inbound ones. The JDK deflater always uses a
+ * 32K window, so offers that limit {@code server_max_window_bits} below 15 are declined.
+ */
+public class WebSocketCompression {
+    public static final String EXTENSION = "permessage-deflate";
+    public static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+    private static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+    private static final int RSV1 = 4;
+    private static final FastThreadLocal<Deflater> DEFLATERS = new FastThreadLocal<Deflater>(){
+        @Override
+        protected void onRemoval(Deflater deflater) {
+            if(deflater != null)
+                deflater.end();
+        }
+    };
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>(){
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    private final int level;
+    private final int minSize;
+    private final boolean serverNoContextTakeover;
+    private final boolean clientNoContextTakeover;
+    private final Map<String, Boolean> modules = new ConcurrentHashMap<>();
+
+    /**
+     * @param serverNoContextTakeover compress every message on its own, trading ratio for a deflater that
+     * is shared per thread instead of kept per connection
+     * @param clientNoContextTakeover ask clients to do the same, so the inflater is reset after every message
+     */
+    public WebSocketCompression(int level, int minSize, boolean serverNoContextTakeover, boolean clientNoContextTakeover) {
+        if(level < 0 || level > 9)
+            throw new IllegalArgumentException("level: "+level+" (expected: 0-9)");
+        this.level = level;
+        this.minSize = minSize;
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+    }
+
+    /**
+     * @param enabled whether connections of {@code moduleId} may negotiate compression, {@code null} for the default
+     */
+    public void setEnabled(String moduleId, Boolean enabled){
+        moduleId = moduleId.toLowerCase();
+        if(enabled == null)
+            modules.remove(moduleId);
+        else
+            modules.put(moduleId, enabled);
+    }
+
+    public boolean isEnabled(String moduleId){
+        Boolean enabled = modules.get(moduleId);
+        return enabled == null || enabled;
+    }
+
+    /**
+     * @param offers the {@code Sec-WebSocket-Extensions} request header
+     * @return the accepted parameters, whose {@code toString()} is the response header, or {@code null}
+     */
+    public Parameters negotiate(String moduleId, String offers){
+        if(offers == null || !isEnabled(moduleId))
+            return null;
+        for(String offer : offers.split(",")){
+            String[] params = offer.split(";");
+            if(!params[0].trim().equalsIgnoreCase(EXTENSION))
+                continue;
+            boolean serverNoTakeover = serverNoContextTakeover, clientNoTakeover = clientNoContextTakeover;
+            boolean serverWindowBits = false, valid = true;
+            Set<String> seen = new HashSet<>();
+            for(int i = 1; i < params.length && valid; i++){
+                String param = params[i].trim();
+                int equals = param.indexOf('=');
+                String name = (equals < 0 ? param : param.substring(0, equals)).trim().toLowerCase();
+                String value = equals < 0 ? null : unquote(param.substring(equals + 1).trim());
+                if(!seen.add(name)){
+                    valid = false;
+                    break;
+                }
+                switch(name){
+                    case "server_no_context_takeover":
+                        serverNoTakeover = true;
+                        valid = value == null;
+                        break;
+                    case "client_no_context_takeover":
+                        clientNoTakeover = true;
+                        valid = value == null;
+                        break;
+                    case "server_max_window_bits":
+                        serverWindowBits = true;
+                        valid = "15".equals(value);
+                        break;
+                    case "client_max_window_bits":
+                        valid = value == null || isWindowBits(value);
+                        break;
+                    default:
+                        valid = false;
+                }
+            }
+            if(valid)
+                return new Parameters(serverNoTakeover, clientNoTakeover, serverWindowBits);
+        }
+        return null;
+    }
+
+    private static String unquote(String value){
+        return value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"' ?
+                value.substring(1, value.length() - 1) : value;
+    }
+
+    private static boolean isWindowBits(String value){
+        try{
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= 15;
+        }catch(NumberFormatException ex){
+            return false;
+        }
+    }
+
+    /**
+     * @param maxMessageLength limit of an inflated message, larger ones close the connection with 1009
+     */
+    public ChannelHandler newHandler(Parameters parameters, int maxMessageLength, ServerMetrics metrics){
+        return new Handler(parameters, maxMessageLength, metrics);
+    }
+
+    public static final class Parameters{
+        private final boolean serverNoContextTakeover;
+        private final boolean clientNoContextTakeover;
+        private final boolean serverMaxWindowBits;
+
+        Parameters(boolean serverNoContextTakeover, boolean clientNoContextTakeover, boolean serverMaxWindowBits) {
+            this.serverNoContextTakeover = serverNoContextTakeover;
+            this.clientNoContextTakeover = clientNoContextTakeover;
+            this.serverMaxWindowBits = serverMaxWindowBits;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder header = new StringBuilder(EXTENSION);
+            if(serverNoContextTakeover)
+                header.append("; server_no_context_takeover");
+            if(clientNoContextTakeover)
+                header.append("; client_no_context_takeover");
+            if(serverMaxWindowBits)
+                header.append("; server_max_window_bits=15");
+            return header.toString();
+        }
+    }
+
+    private final class Handler extends ChannelDuplexHandler{
+        private final Parameters parameters;
+        private final int maxMessageLength;
+        private final ServerMetrics metrics;
+
+        private Deflater deflater;
+        private Inflater inflater;
+        private boolean inflating;
+        private long inflated;
+
+        Handler(Parameters parameters, int maxMessageLength, ServerMetrics metrics) {
+            this.parameters = parameters;
+            this.maxMessageLength = maxMessageLength;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if(!(msg instanceof WebSocketFrame)){
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            WebSocketFrame frame = (WebSocketFrame) msg;
+            if((frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame) && (frame.rsv() & RSV1) != 0){
+                inflating = true;
+                inflated = 0;
+            }else if(!inflating || !(frame instanceof ContinuationWebSocketFrame)){
+                ctx.fireChannelRead(msg);
+                return;
+            }
+
+            int compressedLength = frame.content().readableBytes();
+            ByteBuf out = ctx.alloc().heapBuffer(Math.max(64, compressedLength * 2));
+            boolean fin = frame.isFinalFragment();
+            int code = 0;
+            try{
+                inflate(frame.content(), out);
+                if(fin)
+                    inflate(TAIL, 0, TAIL.length, out);
+            }catch(DataFormatException ex){
+                code = 1007;
+            }catch(TooBigException ex){
+                code = 1009;
+            }finally{
+                frame.release();
+            }
+            if(code != 0){
+                out.release();
+                inflating = false;
+                ctx.channel().writeAndFlush(new CloseWebSocketFrame(code, code == 1009 ? "Message too big" : "Invalid compressed data"))
+                        .addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            metrics.webSocketInflated(compressedLength, out.readableBytes());
+            if(fin){
+                inflating = false;
+                if(parameters.clientNoContextTakeover || inflater.finished())
+                    inflater.reset();
+            }
+            int rsv = frame.rsv() & ~RSV1;
+            if(frame instanceof TextWebSocketFrame)
+                ctx.fireChannelRead(new TextWebSocketFrame(fin, rsv, out));
+            else if(frame instanceof BinaryWebSocketFrame)
+                ctx.fireChannelRead(new BinaryWebSocketFrame(fin, rsv, out));
+            else
+                ctx.fireChannelRead(new ContinuationWebSocketFrame(fin, rsv, out));
+        }
+
+        private void inflate(ByteBuf in, ByteBuf out) throws DataFormatException, TooBigException{
+            if(in.hasArray()){
+                inflate(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes(), out);
+                return;
+            }
+            byte[] scratch = SCRATCH.get();
+            for(int index = in.readerIndex(); index < in.writerIndex(); index += scratch.length){
+                int length = Math.min(scratch.length, in.writerIndex() - index);
+                in.getBytes(index, scratch, 0, length);
+                inflate(scratch, 0, length, out);
+            }
+        }
+
+        private void inflate(byte[] data, int offset, int length, ByteBuf out) throws DataFormatException, TooBigException{
+            if(inflater == null)
+                inflater = new Inflater(true);
+            inflater.setInput(data, offset, length);
+            for(;;){
+                out.ensureWritable(512);
+                int written = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                out.writerIndex(out.writerIndex() + written);
+                if((inflated += written) > maxMessageLength)
+                    throw new TooBigException();
+                if(written == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+                    return;
+            }
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if(!(msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame)){
+                ctx.write(msg, promise);
+                return;
+            }
+            WebSocketFrame frame = (WebSocketFrame) msg;
+            int length = frame.content().readableBytes();
+            if(!frame.isFinalFragment() || frame.rsv() != 0 || length < minSize){
+                ctx.write(msg, promise);
+                return;
+            }
+
+            Deflater deflater = deflater();
+            ByteBuf out = ctx.alloc().heapBuffer(Math.max(64, length / 2));
+            try{
+                deflate(deflater, frame.content(), out);
+                int space;
+                do{
+                    out.ensureWritable(512);
+                    space = out.writableBytes();
+                }while(deflate(deflater, out, Deflater.SYNC_FLUSH) == space);
+                if(out.readableBytes() >= 4 && out.getInt(out.writerIndex() - 4) == 0xFFFF)
+                    out.writerIndex(out.writerIndex() - 4);
+            }catch(Throwable t){
+                out.release();
+                throw t;
+            }finally{
+                if(parameters.serverNoContextTakeover)
+                    deflater.reset();
+            }
+            if(parameters.serverNoContextTakeover && out.readableBytes() >= length){
+                out.release();
+                ctx.write(msg, promise);
+                return;
+            }
+            metrics.webSocketDeflated(length, out.readableBytes());
+            WebSocketFrame compressed = frame instanceof TextWebSocketFrame ?
+                    new TextWebSocketFrame(true, RSV1, out) : new BinaryWebSocketFrame(true, RSV1, out);
+            frame.release();
+            ctx.write(compressed, promise);
+        }
+
+        private Deflater deflater(){
+            if(!parameters.serverNoContextTakeover){
+                if(deflater == null)
+                    deflater = new Deflater(level, true);
+                return deflater;
+            }
+            Deflater shared = DEFLATERS.get();
+            if(shared == null)
+                DEFLATERS.set(shared = new Deflater(level, true));
+            shared.setLevel(level);
+            return shared;
+        }
+
+        private void deflate(Deflater deflater, ByteBuf in, ByteBuf out){
+            if(in.hasArray()){
+                deflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+                while(!deflater.needsInput())
+                    deflate(deflater, out, Deflater.NO_FLUSH);
+                return;
+            }
+            byte[] scratch = SCRATCH.get();
+            for(int index = in.readerIndex(); index < in.writerIndex(); index += scratch.length){
+                int length = Math.min(scratch.length, in.writerIndex() - index);
+                in.getBytes(index, scratch, 0, length);
+                deflater.setInput(scratch, 0, length);
+                while(!deflater.needsInput())
+                    deflate(deflater, out, Deflater.NO_FLUSH);
+            }
+        }
+
+        private int deflate(Deflater deflater, ByteBuf out, int flush){
+            out.ensureWritable(512);
+            int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes(), flush);
+            out.writerIndex(out.writerIndex() + written);
+            return written;
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+            if(deflater != null){
+                deflater.end();
+                deflater = null;
+            }
+            if(inflater != null){
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+
+    private static final class TooBigException extends Exception{
+        private static final long serialVersionUID = 1L;
+
+        TooBigException() {
+            super(null, null, false, false);
+        }
+    }
+}
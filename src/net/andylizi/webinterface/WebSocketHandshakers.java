@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.andylizi.webinterface.api.API;
+import net.andylizi.webinterface.api.Module;
+import net.andylizi.webinterface.websocket.ServerHandshakerFactory;
+
+/**
+ * Handshaker factories per module and location, built with the module's {@link Limits}. Locations come from
+ * the Host header, so at most {@code MAX_FACTORIES} are kept, the least recently used being dropped first.
+ */
+public class WebSocketHandshakers implements API.RegistrationListener{
+    private static final int MAX_FACTORIES = 256;
+
+    private final Limits defaultLimits;
+    private final Map<String, Limits> limits = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, ServerHandshakerFactory> factories = new LinkedHashMap<String, ServerHandshakerFactory>(16, 0.75F, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ServerHandshakerFactory> eldest) {
+            return size() > MAX_FACTORIES;
+        }
+    };
+
+    public WebSocketHandshakers(Limits defaultLimits) {
+        this.defaultLimits = defaultLimits;
+    }
+
+    public void setLimits(String moduleId, Limits limits){
+        moduleId = moduleId.toLowerCase();
+        if(limits == null)
+            this.limits.remove(moduleId);
+        else
+            this.limits.put(moduleId, limits);
+        invalidate(moduleId);
+    }
+
+    public Limits getLimits(String moduleId){
+        Limits limits = this.limits.get(moduleId);
+        return limits == null ? defaultLimits : limits;
+    }
+
+    ServerHandshakerFactory get(String moduleId, String location){
+        String key = moduleId+' '+location;
+        synchronized(factories){
+            ServerHandshakerFactory factory = factories.get(key);
+            if(factory == null){
+                Limits limits = getLimits(moduleId);
+                factory = new ServerHandshakerFactory(location, null, limits.maxFrameSize, limits.maxMessageSize);
+                factories.put(key, factory);
+            }
+            return factory;
+        }
+    }
+
+    public void invalidate(String moduleId){
+        String prefix = moduleId+' ';
+        synchronized(factories){
+            Iterator<String> it = factories.keySet().iterator();
+            while(it.hasNext())
+                if(it.next().startsWith(prefix))
+                    it.remove();
+        }
+    }
+
+    @Override
+    public void moduleRegistered(String id, Module module) {
+        invalidate(id);
+    }
+
+    @Override
+    public void moduleUnregistered(String id, Module module) {
+        invalidate(id);
+    }
+
+    public static final class Limits{
+        private final int maxFrameSize;
+        private final int maxMessageSize;
+
+        /**
+         * @param maxFrameSize largest frame payload a client may send
+         * @param maxMessageSize largest message, summed over its fragments and measured after inflation
+         */
+        public Limits(int maxFrameSize, int maxMessageSize) {
+            if(maxFrameSize <= 0)
+                throw new IllegalArgumentException("maxFrameSize: "+maxFrameSize);
+            this.maxFrameSize = maxFrameSize;
+            this.maxMessageSize = Math.max(maxFrameSize, maxMessageSize);
+        }
+
+        public int getMaxFrameSize() {
+            return maxFrameSize;
+        }
+
+        public int getMaxMessageSize() {
+            return maxMessageSize;
+        }
+    }
+}
@@ -16,68 +16,216 @@
  */
 package net.andylizi.webinterface.api;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.multipart.HttpDataFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.activation.MimetypesFileTypeMap;
 import net.andylizi.webinterface.Main;
 
+import net.andylizi.webinterface.http.AsyncHttpModule;
 import net.andylizi.webinterface.http.HttpModule;
+import net.andylizi.webinterface.http.StreamingHttpModule;
+import net.andylizi.webinterface.websocket.Topic;
 import net.andylizi.webinterface.websocket.WebSocketModule;
 
 public abstract class API {
-    static final Map<String, HttpModule> httpRegistry = new HashMap<>();
-    static final Map<String, WebSocketModule> websocketRegistry = new HashMap<>();
+    private static final AtomicReference<Registry> registry = new AtomicReference<>(Registry.EMPTY);
+    private static final List<RegistrationListener> listeners = new CopyOnWriteArrayList<>();
+    private static final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<>();
+    private static final Map<String, Topic> topicsView = Collections.unmodifiableMap(topics);
 
     public static void registerModule(String id, Module module) throws NullPointerException, IllegalArgumentException{
+        registerModule(id, module, new String[0]);
+    }
+    
+    public static void registerModule(String id, Module module, String... routes) throws NullPointerException, IllegalArgumentException{
         id = Objects.requireNonNull(id).toLowerCase();
-        boolean success = false;
-        if(Objects.requireNonNull(module) instanceof HttpModule){
-            if(httpRegistry.containsKey(id))
-                throw new IllegalArgumentException("Module Id already exists");
-            httpRegistry.put(id, (HttpModule) module);
-            success = true;
-        }
-        if(module instanceof WebSocketModule){
-            if(websocketRegistry.containsKey(id))
-                throw new IllegalArgumentException("Module Id already exists");
-            websocketRegistry.put(id, (WebSocketModule) module);
-            success = true;
-        }
-        if(!success)
+        boolean http = Objects.requireNonNull(module) instanceof HttpModule || module instanceof AsyncHttpModule
+                || module instanceof StreamingHttpModule;
+        boolean websocket = module instanceof WebSocketModule;
+        if(!http && !websocket)
             throw new IllegalArgumentException("Invalid module type");
+        List<String> routeList = Arrays.asList(Objects.requireNonNull(routes).clone());
+        for(String route : routeList)
+            Objects.requireNonNull(route);
+        Registry current, updated;
+        do{
+            current = registry.get();
+            if((http && current.http.containsKey(id)) || (websocket && current.websocket.containsKey(id)))
+                throw new IllegalArgumentException("Module Id already exists");
+            Map<String, Module> httpModules = current.http;
+            Map<String, WebSocketModule> websocketModules = current.websocket;
+            Map<String, List<String>> routeMap = current.routes;
+            if(http){
+                httpModules = new HashMap<>(httpModules);
+                httpModules.put(id, module);
+            }
+            if(websocket){
+                websocketModules = new HashMap<>(websocketModules);
+                websocketModules.put(id, (WebSocketModule) module);
+            }
+            if(!routeList.isEmpty()){
+                routeMap = new HashMap<>(routeMap);
+                routeMap.put(id, routeList);
+            }
+            updated = new Registry(httpModules, websocketModules, routeMap);
+        }while(!registry.compareAndSet(current, updated));
+        for(RegistrationListener listener : listeners)
+            try{
+                listener.moduleRegistered(id, module);
+            }catch(Throwable t){
+                t.printStackTrace();
+            }
     }
     
     public static boolean unregisterModule(String id) throws NullPointerException{
         id = Objects.requireNonNull(id).toLowerCase();
-        if(httpRegistry.remove(id) == null)
-            return websocketRegistry.remove(id) != null;
-        else
-            return true;
+        Registry current, updated;
+        Module removed;
+        do{
+            current = registry.get();
+            Map<String, Module> httpModules = current.http;
+            Map<String, WebSocketModule> websocketModules = current.websocket;
+            if((removed = httpModules.get(id)) != null){
+                httpModules = new HashMap<>(httpModules);
+                httpModules.remove(id);
+            }else if((removed = websocketModules.get(id)) != null){
+                websocketModules = new HashMap<>(websocketModules);
+                websocketModules.remove(id);
+            }else
+                return false;
+            Map<String, List<String>> routeMap = current.routes;
+            if(routeMap.containsKey(id) && !httpModules.containsKey(id) && !websocketModules.containsKey(id)){
+                routeMap = new HashMap<>(routeMap);
+                routeMap.remove(id);
+            }
+            updated = new Registry(httpModules, websocketModules, routeMap);
+        }while(!registry.compareAndSet(current, updated));
+        for(RegistrationListener listener : listeners)
+            try{
+                listener.moduleUnregistered(id, removed);
+            }catch(Throwable t){
+                t.printStackTrace();
+            }
+        return true;
+    }
+    
+    public static void addRegistrationListener(RegistrationListener listener){
+        listeners.add(Objects.requireNonNull(listener));
+    }
+    
+    public static boolean removeRegistrationListener(RegistrationListener listener){
+        return listeners.remove(listener);
+    }
+    
+    public static ModuleRouter getRouter(){
+        return registry.get().router;
+    }
+    
+    public static Map<String, Module> getHttpModules(){
+        return Collections.unmodifiableMap(registry.get().http);
+    }
+    
+    public static Map<String, WebSocketModule> getWebSocketModules(){
+        return Collections.unmodifiableMap(registry.get().websocket);
     }
     
     public static Module lookupModule(String id) {
         if(id == null)
             return null;
-        id = id.toLowerCase();
-        StringTokenizer tokenizer = new StringTokenizer(id, "?");
-        if(tokenizer.hasMoreTokens())
-            id = tokenizer.nextToken();
-        Module module;
-        return (module = httpRegistry.get(id)) == null ? websocketRegistry.get(id) : module;
+        int query = id.indexOf('?');
+        return registry.get().router.lookup(query < 0 ? id : id.substring(0, query));
+    }
+    
+    /**
+     * Returns the WebSocket topic named {@code name}, creating it on first use. A topic is dropped once its
+     * last subscriber leaves; a reference kept after that still works, as its publishes and subscriptions go
+     * to the topic registered under the same name.
+     */
+    public static Topic getTopic(String name) throws NullPointerException{
+        Topic topic = topics.get(Objects.requireNonNull(name));
+        if(topic == null){
+            Topic created = new Topic(name);
+            topic = topics.putIfAbsent(name, created);
+            if(topic == null)
+                topic = created;
+        }
+        return topic;
+    }
+    
+    public static Map<String, Topic> getTopics(){
+        return topicsView;
+    }
+
+    /**
+     * Drops {@code topic} if it is the one registered under its name and has no subscribers. This happens on
+     * its own when the last subscriber leaves.
+     *
+     * @return whether the topic was removed
+     */
+    public static boolean removeTopic(Topic topic) throws NullPointerException{
+        synchronized(topic){
+            return topic.getSubscriberCount() == 0 && topics.remove(topic.getName(), topic);
+        }
     }
     
     public static MimetypesFileTypeMap getMimeTypesMap(){
         return Main.getMimeTypesMap();
     }
     
+    public static ByteBufAllocator getAllocator(){
+        Main main = Main.getInstance();
+        return main == null ? ByteBufAllocator.DEFAULT : main.getAllocator();
+    }
+    
+    public static HttpDataFactory getHttpDataFactory(){
+        return Main.getInstance().getHttpDataFactory();
+    }
+    
+    public static ExecutorService getWorkerExecutor(){
+        return Main.getInstance().getWorkerExecutor();
+    }
+    
     public static int getHttpModuleCount(){
-        return httpRegistry.size();
+        return registry.get().http.size();
     }
     
     public static int getWebSocketModuleCount(){
-        return websocketRegistry.size();
+        return registry.get().websocket.size();
+    }
+
+    public static interface RegistrationListener{
+        public void moduleRegistered(String id, Module module);
+        
+        public void moduleUnregistered(String id, Module module);
+    }
+    
+    private static final class Registry{
+        static final Registry EMPTY = new Registry(Collections.<String, Module>emptyMap(), 
+                Collections.<String, WebSocketModule>emptyMap(), Collections.<String, List<String>>emptyMap());
+        
+        final Map<String, Module> http;
+        final Map<String, WebSocketModule> websocket;
+        final Map<String, List<String>> routes;
+        final ModuleRouter router;
+
+        Registry(Map<String, Module> http, Map<String, WebSocketModule> websocket, Map<String, List<String>> routes) throws IllegalArgumentException{
+            this.http = http;
+            this.websocket = websocket;
+            this.routes = routes;
+            this.router = ModuleRouter.build(http, websocket, routes);
+        }
     }
 
     private API() throws AssertionError{ throw new AssertionError(); }
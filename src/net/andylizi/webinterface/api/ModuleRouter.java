@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.api;
+
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.andylizi.webinterface.websocket.WebSocketModule;
+
+/**
+ * Immutable prefix trie over path segments. The first segment selects the module (case-insensitive),
+ * the following ones are matched against the routes registered for it, where {@code {name}} matches
+ * any single segment.
+ */
+public final class ModuleRouter {
+    public static final ModuleRouter EMPTY = new ModuleRouter(new Node[0]);
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final Comparator<Node> LABEL_ORDER = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            return a.label.compareTo(b.label);
+        }
+    };
+
+    private final Node[] modules;
+
+    private ModuleRouter(Node[] modules) {
+        this.modules = modules;
+    }
+
+    static ModuleRouter build(Map<String, Module> httpModules, Map<String, WebSocketModule> websocketModules,
+            Map<String, List<String>> routes){
+        Map<String, Node> nodes = new HashMap<>();
+        for(Map.Entry<String, Module> entry : httpModules.entrySet())
+            moduleNode(nodes, entry.getKey()).httpModule = entry.getValue();
+        for(Map.Entry<String, WebSocketModule> entry : websocketModules.entrySet())
+            moduleNode(nodes, entry.getKey()).webSocketModule = entry.getValue();
+        for(Map.Entry<String, List<String>> entry : routes.entrySet()){
+            Node node = nodes.get(entry.getKey());
+            if(node != null)
+                for(String route : entry.getValue())
+                    addRoute(node, route);
+        }
+        Node[] modules = nodes.values().toArray(new Node[nodes.size()]);
+        for(Node node : modules)
+            seal(node);
+        Arrays.sort(modules, LABEL_ORDER);
+        return new ModuleRouter(modules);
+    }
+
+    private static Node moduleNode(Map<String, Node> nodes, String id){
+        Node node = nodes.get(id);
+        if(node == null){
+            char[] label = id.toCharArray();
+            for(int i = 0; i < label.length; i++)
+                label[i] = Character.toLowerCase(label[i]);
+            nodes.put(id, node = new Node(new String(label), null));
+            node.moduleId = id;
+            node.moduleHeader = HttpHeaders.newEntity(id);
+        }
+        return node;
+    }
+
+    static void addRoute(Node node, String route) throws IllegalArgumentException{
+        int start = 0, length = route.length();
+        while(start < length){
+            int end = route.indexOf('/', start);
+            if(end < 0)
+                end = length;
+            if(end > start){
+                String segment = route.substring(start, end);
+                if(segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}'){
+                    String name = segment.substring(1, segment.length() - 1);
+                    if(node.param == null)
+                        node.param = new Node(null, name);
+                    else if(!node.param.paramName.equals(name))
+                        throw new IllegalArgumentException("Conflicting path parameter {"+name+"} in route "+route);
+                    node = node.param;
+                }else{
+                    Node child = null;
+                    for(Node candidate : node.children)
+                        if(candidate.label.equals(segment))
+                            child = candidate;
+                    if(child == null){
+                        child = new Node(segment, null);
+                        node.children = Arrays.copyOf(node.children, node.children.length + 1);
+                        node.children[node.children.length - 1] = child;
+                    }
+                    node = child;
+                }
+            }
+            start = end + 1;
+        }
+        if(node.route != null && !node.route.equals(route))
+            throw new IllegalArgumentException("Route "+route+" conflicts with "+node.route);
+        node.route = route;
+    }
+
+    private static void seal(Node node){
+        Arrays.sort(node.children, LABEL_ORDER);
+        for(Node child : node.children)
+            seal(child);
+        if(node.param != null)
+            seal(node.param);
+    }
+
+    public Match route(String uri){
+        int end = uri.indexOf('?');
+        if(end < 0)
+            end = uri.length();
+        int start = 0;
+        while(start < end && uri.charAt(start) == '/')
+            start++;
+        int moduleEnd = start;
+        while(moduleEnd < end && uri.charAt(moduleEnd) != '/')
+            moduleEnd++;
+        Node module = find(modules, uri, start, moduleEnd, true);
+        if(module == null)
+            return new Match(uri, uri.substring(start, moduleEnd), null, moduleEnd, end, null, null);
+
+        ArrayList<String> values = null;
+        Node terminal = null;
+        if(module.children.length != 0 || module.param != null || module.route != null){
+            values = new ArrayList<>(2);
+            terminal = match(module, uri, moduleEnd, end, values);
+        }
+        return new Match(uri, module.moduleId, module, moduleEnd, end, terminal, values);
+    }
+
+    public Match route(String uri, String moduleId){
+        Node module = find(modules, moduleId, 0, moduleId.length(), true);
+        Match match = route(uri);
+        if(module == match.node)
+            return match;
+        return new Match(uri, module == null ? moduleId : module.moduleId, module, match.pathStart, match.pathEnd, null, null);
+    }
+
+    public Module lookup(String id){
+        Node node = find(modules, id, 0, id.length(), true);
+        if(node == null)
+            return null;
+        return node.httpModule == null ? node.webSocketModule : node.httpModule;
+    }
+
+    private static Node match(Node node, String uri, int start, int end, List<String> values){
+        while(start < end && uri.charAt(start) == '/')
+            start++;
+        if(start >= end)
+            return node.route == null ? null : node;
+        int segmentEnd = start;
+        while(segmentEnd < end && uri.charAt(segmentEnd) != '/')
+            segmentEnd++;
+        Node child = find(node.children, uri, start, segmentEnd, false);
+        if(child != null){
+            Node terminal = match(child, uri, segmentEnd, end, values);
+            if(terminal != null)
+                return terminal;
+        }
+        if(node.param != null){
+            values.add(node.param.paramName);
+            values.add(uri.substring(start, segmentEnd));
+            Node terminal = match(node.param, uri, segmentEnd, end, values);
+            if(terminal != null)
+                return terminal;
+            values.remove(values.size() - 1);
+            values.remove(values.size() - 1);
+        }
+        return null;
+    }
+
+    private static Node find(Node[] nodes, String s, int start, int end, boolean ignoreCase){
+        int low = 0, high = nodes.length - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int cmp = compare(nodes[mid].label, s, start, end, ignoreCase);
+            if(cmp < 0)
+                low = mid + 1;
+            else if(cmp > 0)
+                high = mid - 1;
+            else
+                return nodes[mid];
+        }
+        return null;
+    }
+
+    private static int compare(String label, String s, int start, int end, boolean ignoreCase){
+        int length = end - start;
+        int n = Math.min(label.length(), length);
+        for(int i = 0; i < n; i++){
+            char a = label.charAt(i);
+            char b = s.charAt(start + i);
+            if(ignoreCase)
+                b = Character.toLowerCase(b);
+            if(a != b)
+                return a - b;
+        }
+        return label.length() - length;
+    }
+
+    static final class Node{
+        final String label;
+        final String paramName;
+        Node[] children = NO_CHILDREN;
+        Node param;
+        String route;
+
+        String moduleId;
+        CharSequence moduleHeader;
+        Module httpModule;
+        WebSocketModule webSocketModule;
+
+        Node(String label, String paramName) {
+            this.label = label;
+            this.paramName = paramName;
+        }
+    }
+
+    public static final class Match{
+        private final String uri;
+        private final String moduleId;
+        private final Node node;
+        private final int pathStart;
+        private final int pathEnd;
+        private final Node terminal;
+        private final List<String> values;
+
+        Match(String uri, String moduleId, Node node, int pathStart, int pathEnd, Node terminal, List<String> values) {
+            this.uri = uri;
+            this.moduleId = moduleId;
+            this.node = node;
+            this.pathStart = pathStart;
+            this.pathEnd = pathEnd;
+            this.terminal = terminal;
+            this.values = values;
+        }
+
+        public String getModuleId() {
+            return moduleId;
+        }
+
+        /**
+         * @return the module id pre-encoded for the {@code Module} response header, or {@code null} if no module matched
+         */
+        public CharSequence getModuleHeader() {
+            return node == null ? null : node.moduleHeader;
+        }
+
+        public Module getHttpModule() {
+            return node == null ? null : node.httpModule;
+        }
+
+        public WebSocketModule getWebSocketModule() {
+            return node == null ? null : node.webSocketModule;
+        }
+
+        public String getModuleUri(){
+            if(pathStart < uri.length() && uri.charAt(pathStart) == '/')
+                return uri.substring(pathStart);
+            return '/'+uri.substring(pathStart);
+        }
+
+        public String getQueryString(){
+            return pathEnd < uri.length() ? uri.substring(pathEnd + 1) : null;
+        }
+
+        public String getRoute() {
+            return terminal == null ? null : terminal.route;
+        }
+
+        public Map<String, String> getPathParams(){
+            if(terminal == null || values.isEmpty())
+                return Collections.emptyMap();
+            Map<String, String> params = new LinkedHashMap<>(values.size());
+            for(int i = 0; i < values.size(); i += 2)
+                params.put(values.get(i), values.get(i + 1));
+            return params;
+        }
+    }
+}
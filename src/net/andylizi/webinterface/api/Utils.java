@@ -17,21 +17,56 @@
 package net.andylizi.webinterface.api;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AttributeKey;
 import static io.netty.util.CharsetUtil.UTF_8;
 
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
 public class Utils {
     public static final Utils INSTANCE = new Utils();
     
     public static final String MIME_TEXT = "text/plain";
     public static final String MIME_HTML = "text/html";
     public static final String MIME_JSON = "application/json";
+    
+    public static final AttributeKey<Boolean> KEEP_ALIVE = AttributeKey.valueOf("WebInterface-KeepAlive");
+    
+    private static final CharSequence CONNECTION = HttpHeaders.newEntity(HttpHeaders.Names.CONNECTION);
+    private static final CharSequence CONNECTION_KEEP_ALIVE = HttpHeaders.newEntity(HttpHeaders.Values.KEEP_ALIVE);
+    private static final CharSequence CONNECTION_CLOSE = HttpHeaders.newEntity(HttpHeaders.Values.CLOSE);
+    
+    public ChannelFuture sendResponse(FullHttpResponse response, ChannelHandlerContext ctx){
+        Boolean keepAlive = ctx.channel().attr(KEEP_ALIVE).get();
+        return sendResponse(response, keepAlive != null && keepAlive, ctx);
+    }
+    
+    public ChannelFuture sendResponse(FullHttpResponse response, boolean keepAlive, ChannelHandlerContext ctx){
+        HttpHeaders headers = response.headers();
+        if(!headers.contains(HttpHeaders.Names.CONTENT_LENGTH))
+            HttpHeaders.setContentLength(response, response.content().readableBytes());
+        if(keepAlive && HttpHeaders.Values.CLOSE.equalsIgnoreCase(headers.get(HttpHeaders.Names.CONNECTION)))
+            keepAlive = false;
+        headers.set(CONNECTION, keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if(!keepAlive)
+            future.addListener(ChannelFutureListener.CLOSE);
+        return future;
+    }
 
     public FullHttpResponse sendError(HttpResponseStatus status, String msg, ChannelHandlerContext ctx){
         FullHttpResponse response = builder(status)
@@ -39,7 +74,7 @@ public class Utils {
                 .contentTypePlainText()
                 .build();
         if(ctx != null)
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            sendResponse(response, ctx);
         return response;
     }
     
@@ -60,7 +95,7 @@ public class Utils {
                 .header("Location", url)
                 .build();
         if(ctx != null)
-            ctx.writeAndFlush(response);
+            sendResponse(response, ctx);
         return response;
     }
     
@@ -84,30 +119,127 @@ public class Utils {
         return builder(HttpResponseStatus.OK);
     }
     
+    /**
+     * Builds a {@link FullHttpResponse} whose body is allocated from the server's allocator. Text is encoded
+     * straight into the buffer, and buffers passed in are taken over without copying: the builder, and later
+     * the response, owns them. Content-Length is set by {@link #build()} unless a header was given.
+     */
     public static class ResponseBuilder{
-        private FullHttpResponse response;
+        private final ByteBufAllocator alloc;
+        private final HttpResponseStatus status;
+        private final FullHttpResponse response;
+        private final HttpHeaders headers;
+        private ByteBuf content;
 
         public ResponseBuilder(HttpResponseStatus status) {
-            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+            this(API.getAllocator(), status);
+        }
+
+        public ResponseBuilder(ByteBufAllocator alloc, HttpResponseStatus status) {
+            this.alloc = alloc;
+            this.status = status;
+            this.response = null;
+            this.headers = new DefaultHttpHeaders(false);
         }
 
         public ResponseBuilder(FullHttpResponse response) {
+            this.alloc = API.getAllocator();
+            this.status = response.getStatus();
             this.response = response;
+            this.headers = response.headers();
         }
         
         public ResponseBuilder content(String str){
-            byte[] data = str.getBytes(UTF_8);
-            this.response.content().clear().capacity(data.length).writeBytes(data);
-            return header("Content-Length", data.length);
+            return content((CharSequence) str);
+        }
+        
+        public ResponseBuilder content(CharSequence text){
+            return content(encode(text, UTF_8));
         }
         
+        public ResponseBuilder content(CharSequence text, Charset charset){
+            return content(encode(text, charset));
+        }
+        
+        /**
+         * Replaces the body with {@code data}. The builder takes ownership of the buffer.
+         */
         public ResponseBuilder content(ByteBuf data){
-            this.response.content().clear().capacity(data.readableBytes()).writeBytes(data);
-            return header("Content-Length", data.readableBytes());
+            if(content != null)
+                content.release();
+            content = data;
+            return this;
+        }
+        
+        public ResponseBuilder append(CharSequence text){
+            return append(encode(text, UTF_8));
+        }
+        
+        /**
+         * Adds {@code data} after the current body as a component of a composite buffer, without copying.
+         * The builder takes ownership of the buffer.
+         */
+        public ResponseBuilder append(ByteBuf data){
+            if(content == null){
+                content = data;
+                return this;
+            }
+            CompositeByteBuf composite;
+            if(content instanceof CompositeByteBuf)
+                composite = (CompositeByteBuf) content;
+            else{
+                composite = alloc.compositeBuffer();
+                composite.addComponent(content).writerIndex(content.readableBytes());
+                content = composite;
+            }
+            composite.addComponent(data).writerIndex(composite.writerIndex() + data.readableBytes());
+            return this;
+        }
+        
+        private ByteBuf encode(CharSequence text, Charset charset){
+            if(!charset.equals(UTF_8))
+                return ByteBufUtil.encodeString(alloc, CharBuffer.wrap(text), charset);
+            int length = text.length(), size = 0;
+            for(int i = 0; i < length; i++){
+                char c = text.charAt(i);
+                if(c < 0x80)
+                    size++;
+                else if(c < 0x800)
+                    size += 2;
+                else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))){
+                    size += 4;
+                    i++;
+                }else if(Character.isSurrogate(c))
+                    size++;
+                else
+                    size += 3;
+            }
+            ByteBuf buffer = alloc.buffer(size);
+            for(int i = 0; i < length; i++){
+                char c = text.charAt(i);
+                if(c < 0x80)
+                    buffer.writeByte(c);
+                else if(c < 0x800)
+                    buffer.writeByte(0xC0 | (c >> 6))
+                          .writeByte(0x80 | (c & 0x3F));
+                else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))){
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    buffer.writeByte(0xF0 | (codePoint >> 18))
+                          .writeByte(0x80 | ((codePoint >> 12) & 0x3F))
+                          .writeByte(0x80 | ((codePoint >> 6) & 0x3F))
+                          .writeByte(0x80 | (codePoint & 0x3F));
+                }else if(Character.isSurrogate(c))
+                    buffer.writeByte('?');
+                else
+                    buffer.writeByte(0xE0 | (c >> 12))
+                          .writeByte(0x80 | ((c >> 6) & 0x3F))
+                          .writeByte(0x80 | (c & 0x3F));
+            }
+            return buffer;
         }
 
         public ResponseBuilder header(String header, Object value){
-            response.headers().add(header, value);
+            headers.add(header, value);
             return this;
         }
         
@@ -131,7 +263,22 @@ public class Utils {
         }
         
         public FullHttpResponse build(){
-            return response;
+            ByteBuf body = content == null ? Unpooled.EMPTY_BUFFER : content;
+            content = null;
+            FullHttpResponse built;
+            if(response != null){
+                if(body != Unpooled.EMPTY_BUFFER){
+                    response.content().clear().writeBytes(body);
+                    body.release();
+                }
+                built = response;
+            }else{
+                built = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, body, false);
+                built.headers().set(headers);
+            }
+            // The body may have been replaced, so a length carried over from the response would be stale.
+            HttpHeaders.setContentLength(built, built.content().readableBytes());
+            return built;
         }
     }
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import net.andylizi.webinterface.api.Module;
+
+/**
+ * A module whose response is produced asynchronously.
+ * <p>
+ * The given promise belongs to the connection's event loop and may be completed from any thread;
+ * implementations usually hand the work to {@link net.andylizi.webinterface.api.API#getWorkerExecutor()}
+ * and return the promise. The request stays valid until the returned future completes.
+ */
+public abstract interface AsyncHttpModule extends Module{
+    public Future<FullHttpResponse> handleRequest(String uri, HttpParams param, FullHttpRequest request, Promise<FullHttpResponse> promise);
+}
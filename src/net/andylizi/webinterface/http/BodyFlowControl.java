@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * Lets a {@link StreamingHttpModule} stop reading from the connection while it catches up.
+ * May be called from any thread; the calls take effect on the event loop of {@link #executor()}.
+ */
+public abstract interface BodyFlowControl{
+    public void pause();
+    
+    public void resume();
+    
+    public boolean isPaused();
+    
+    public EventExecutor executor();
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of open {@link FileHandle}s. Handles returned by {@link #acquire(File)} must be released
+ * by the caller; evicted handles stay open until their last user releases them.
+ */
+public class FileDescriptorCache {
+    private final int maxSize;
+    private final LinkedHashMap<String, FileHandle> handles;
+
+    public FileDescriptorCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.handles = new LinkedHashMap<>(16, 0.75F, true);
+    }
+    
+    public FileHandle acquire(File file) throws IOException{
+        if(maxSize <= 0)
+            return FileHandle.open(file);
+        String key = file.getPath();
+        FileHandle stale = null;
+        synchronized(handles){
+            FileHandle handle = handles.get(key);
+            if(handle != null){
+                if(!handle.isStale())
+                    return handle.retain();
+                stale = handles.remove(key);
+            }
+        }
+        if(stale != null)
+            stale.release();
+        FileHandle handle = FileHandle.open(file);
+        FileHandle evicted = null;
+        synchronized(handles){
+            FileHandle existing = handles.put(key, handle.retain());
+            if(existing != null)
+                evicted = existing;
+            else if(handles.size() > maxSize){
+                Iterator<Map.Entry<String, FileHandle>> it = handles.entrySet().iterator();
+                evicted = it.next().getValue();
+                it.remove();
+            }
+        }
+        if(evicted != null)
+            evicted.release();
+        return handle;
+    }
+    
+    public void clear(){
+        FileHandle[] removed;
+        synchronized(handles){
+            removed = handles.values().toArray(new FileHandle[handles.size()]);
+            handles.clear();
+        }
+        for(FileHandle handle : removed)
+            handle.release();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import io.netty.util.AbstractReferenceCounted;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * An open, reference counted file. The channel is closed when the last reference is released.
+ */
+public final class FileHandle extends AbstractReferenceCounted{
+    private final File file;
+    private final FileChannel channel;
+    private final long length;
+    private final long lastModified;
+
+    private FileHandle(File file, FileChannel channel, long length, long lastModified) {
+        this.file = file;
+        this.channel = channel;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+    
+    public static FileHandle open(File file) throws IOException{
+        long lastModified = file.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try{
+            return new FileHandle(file, raf.getChannel(), raf.length(), lastModified);
+        }catch(IOException ex){
+            raf.close();
+            throw ex;
+        }
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public FileChannel channel() {
+        return channel;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long lastModified() {
+        return lastModified;
+    }
+    
+    public boolean isStale(){
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    @Override
+    public FileHandle retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public FileHandle retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        try{
+            channel.close();
+        }catch(IOException ex){
+            ex.printStackTrace();
+        }
+    }
+}
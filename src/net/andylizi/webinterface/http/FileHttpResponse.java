@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.stream.ChunkedInput;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+
+/**
+ * A response whose body is a region of a file. It is written with zero-copy {@link FileRegion}s where the
+ * transport allows it and as chunks otherwise. The response owns the given {@link FileHandle}.
+ */
+public class FileHttpResponse extends DefaultFullHttpResponse{
+    private final FileHandle handle;
+    private final long position;
+    private final long count;
+
+    public FileHttpResponse(HttpResponseStatus status, FileHandle handle, long position, long count) {
+        super(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER);
+        if(position < 0 || count < 0 || position + count > handle.length())
+            throw new IllegalArgumentException("position: "+position+", count: "+count+", length: "+handle.length());
+        this.handle = handle;
+        this.position = position;
+        this.count = count;
+        HttpHeaders.setContentLength(this, count);
+    }
+
+    public FileHandle handle() {
+        return handle;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public long count() {
+        return count;
+    }
+    
+    public FileRegion newFileRegion(){
+        return new Region(handle.retain(), position, count);
+    }
+
+    /**
+     * A region covering {@code length} bytes starting {@code offset} bytes into this response's body.
+     */
+    public FileRegion newFileRegion(long offset, long length){
+        if(offset < 0 || length < 0 || offset + length > count)
+            throw new IndexOutOfBoundsException("offset: "+offset+", length: "+length+", count: "+count);
+        return new Region(handle.retain(), position + offset, length);
+    }
+    
+    public ChunkedInput<ByteBuf> newChunkedInput(int chunkSize){
+        return new Chunks(handle.retain(), position, count, chunkSize);
+    }
+
+    @Override
+    public int refCnt() {
+        return handle.refCnt();
+    }
+
+    @Override
+    public FileHttpResponse retain() {
+        handle.retain();
+        return this;
+    }
+
+    @Override
+    public FileHttpResponse retain(int increment) {
+        handle.retain(increment);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return handle.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return handle.release(decrement);
+    }
+    
+    private static final class Region extends DefaultFileRegion{
+        private final FileHandle handle;
+
+        Region(FileHandle handle, long position, long count) {
+            super(handle.channel(), position, count);
+            this.handle = handle;
+        }
+
+        @Override
+        protected void deallocate() {
+            handle.release();
+        }
+    }
+    
+    private static final class Chunks implements ChunkedInput<ByteBuf>{
+        private final FileHandle handle;
+        private final long end;
+        private final int chunkSize;
+        private long offset;
+        private boolean closed;
+
+        Chunks(FileHandle handle, long position, long count, int chunkSize) {
+            this.handle = handle;
+            this.offset = position;
+            this.end = position + count;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean isEndOfInput() throws Exception {
+            return offset >= end;
+        }
+
+        @Override
+        public void close() throws Exception {
+            if(!closed){
+                closed = true;
+                handle.release();
+            }
+        }
+
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+            if(offset >= end)
+                return null;
+            int size = (int) Math.min(chunkSize, end - offset);
+            ByteBuf buffer = ctx.alloc().buffer(size);
+            try{
+                ByteBuffer nioBuffer = buffer.nioBuffer(buffer.writerIndex(), size);
+                while(nioBuffer.hasRemaining())
+                    if(handle.channel().read(nioBuffer, offset + size - nioBuffer.remaining()) < 0)
+                        throw new EOFException(handle.file().getPath());
+                buffer.writerIndex(buffer.writerIndex() + size);
+                offset += size;
+                return buffer;
+            }catch(Throwable t){
+                buffer.release();
+                throw t;
+            }
+        }
+    }
+}
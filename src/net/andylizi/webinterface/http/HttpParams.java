@@ -16,43 +16,334 @@
  */
 package net.andylizi.webinterface.http;
 
+import com.google.gson.stream.JsonReader;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.multipart.Attribute;
+import io.netty.handler.codec.http.multipart.FileUpload;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
 import io.netty.util.CharsetUtil;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
+import net.andylizi.webinterface.api.API;
+
+/**
+ * Query string and {@code application/x-www-form-urlencoded} body parameters of a request. Both are indexed
+ * in place on first access and single names and values are decoded on demand. When a name occurs more than
+ * once the single value accessors return the last occurrence, body parameters taking precedence over the
+ * query string, just like {@link #params()}.
+ * <p>
+ * {@code multipart/form-data} bodies are decoded with the server's {@link API#getHttpDataFactory() data factory}
+ * the first time they are looked at, so large file parts go to disk; their fields are returned by the same
+ * accessors and files by {@link #getFile(String)}. JSON bodies are read through {@link #json()}.
+ */
 public class HttpParams {
     private Map<String, String> params;
     
     private ByteBuf content;
     private Charset charset;
-    private Map<String, String> apply;
+    private Map<String, String> apply = Collections.emptyMap();
+    private UrlEncodedIndex query;
+    private UrlEncodedIndex form;
+    private HttpRequest request;
+    private HttpPostRequestDecoder multipart;
+    private String route;
+    private Map<String, String> pathParams = Collections.emptyMap();
 
     public HttpParams(Map<String, String> params) {
         this.params = Objects.requireNonNull(params);
+        this.apply = params;
     }
     
     public HttpParams(ByteBuf content, Charset charset, Map<String, String> apply) {
         this.content = Objects.requireNonNull(content);
         this.charset = charset == null ? CharsetUtil.UTF_8 : charset;
-        this.apply = apply == null ? new HashMap<String, String>(0) : apply;
+        if(apply != null)
+            this.apply = apply;
+    }
+    
+    public HttpParams(ByteBuf content, Charset charset, Map<String, String> apply, String route, Map<String, String> pathParams) {
+        this(content, charset, apply);
+        this.route = route;
+        this.pathParams = Objects.requireNonNull(pathParams);
+    }
+    
+    /**
+     * @param query the raw, still percent-encoded query string, or {@code null}
+     */
+    public HttpParams(String query, ByteBuf content, Charset charset, String route, Map<String, String> pathParams) {
+        this(content, charset, null, route, pathParams);
+        if(query != null && !query.isEmpty())
+            this.query = new UrlEncodedIndex(query, this.charset);
+    }
+    
+    public HttpParams(String query, HttpRequest request, ByteBuf content, Charset charset, String route, Map<String, String> pathParams) {
+        this(query, content, charset, route, pathParams);
+        this.request = request;
+    }
+    
+    public String route(){
+        return route;
+    }
+    
+    public Map<String, String> pathParams(){
+        return pathParams;
+    }
+    
+    public String pathParam(String name){
+        return pathParams.get(name);
+    }
+    
+    private boolean isContentType(String type){
+        String contentType = request == null ? null : request.headers().get(HttpHeaders.Names.CONTENT_TYPE);
+        return contentType != null && contentType.regionMatches(true, 0, type, 0, type.length());
+    }
+    
+    public boolean isMultipart(){
+        return isContentType("multipart/form-data");
+    }
+    
+    public boolean isJson(){
+        return isContentType("application/json");
+    }
+    
+    private UrlEncodedIndex form(){
+        if(form == null && content != null && content.isReadable()
+                && (request == null || !request.headers().contains(HttpHeaders.Names.CONTENT_TYPE)
+                        || isContentType("application/x-www-form-urlencoded")))
+            form = new UrlEncodedIndex(content, charset);
+        return form;
+    }
+    
+    /**
+     * @return the decoder of a {@code multipart/form-data} body, or {@code null} if the body is something else
+     *         or is being streamed
+     */
+    public HttpPostRequestDecoder multipart(){
+        if(multipart == null && request instanceof HttpContent && isMultipart())
+            multipart = new HttpPostRequestDecoder(API.getHttpDataFactory(), request, charset);
+        return multipart;
+    }
+    
+    public FileUpload getFile(String name){
+        HttpPostRequestDecoder multipart = multipart();
+        if(multipart != null)
+            for(InterfaceHttpData data : multipart.getBodyHttpDatas())
+                if(data instanceof FileUpload && data.getName().equals(name))
+                    return (FileUpload) data;
+        return null;
+    }
+    
+    public List<FileUpload> getFiles(String name){
+        List<FileUpload> files = new ArrayList<>(1);
+        HttpPostRequestDecoder multipart = multipart();
+        if(multipart != null)
+            for(InterfaceHttpData data : multipart.getBodyHttpDatas())
+                if(data instanceof FileUpload && data.getName().equals(name))
+                    files.add((FileUpload) data);
+        return files;
+    }
+    
+    private static String value(Attribute attribute){
+        try{
+            return attribute.getValue();
+        }catch(IOException ex){
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Opens a streaming reader over the body. Values are only turned into strings when they are read, and
+     * skipped values are never materialized.
+     */
+    public JsonReader json(){
+        return new JsonReader(new InputStreamReader(new ByteBufInputStream(content.duplicate()), charset));
+    }
+    
+    /**
+     * Releases the decoded multipart body and deletes its temporary files. Called by the server once the
+     * response has been produced.
+     */
+    public void destroy(){
+        if(multipart != null){
+            multipart.destroy();
+            multipart = null;
+        }
+    }
+    
+    public String get(String name){
+        UrlEncodedIndex form = form();
+        int i;
+        if(form != null && (i = form.findLast(name)) >= 0)
+            return form.value(i);
+        String value = multipartValue(name);
+        if(value != null)
+            return value;
+        if(query != null && (i = query.findLast(name)) >= 0)
+            return query.value(i);
+        return apply.get(name);
+    }
+    
+    private String multipartValue(String name){
+        HttpPostRequestDecoder multipart = multipart();
+        if(multipart != null){
+            List<InterfaceHttpData> datas = multipart.getBodyHttpDatas();
+            for(int i = datas.size() - 1; i >= 0; i--)
+                if(datas.get(i) instanceof Attribute && datas.get(i).getName().equals(name))
+                    return value((Attribute) datas.get(i));
+        }
+        return null;
+    }
+    
+    public String get(String name, String def){
+        String value = get(name);
+        return value == null ? def : value;
+    }
+    
+    public List<String> getAll(String name){
+        List<String> values = new ArrayList<>(1);
+        String applied = apply.get(name);
+        if(applied != null)
+            values.add(applied);
+        collect(query, name, values);
+        HttpPostRequestDecoder multipart = multipart();
+        if(multipart != null)
+            for(InterfaceHttpData data : multipart.getBodyHttpDatas())
+                if(data instanceof Attribute && data.getName().equals(name))
+                    values.add(value((Attribute) data));
+        collect(form(), name, values);
+        return values;
+    }
+    
+    private static void collect(UrlEncodedIndex index, String name, List<String> values){
+        if(index != null)
+            for(int i = index.find(name, 0); i >= 0; i = index.find(name, i + 1))
+                values.add(index.value(i));
+    }
+    
+    public boolean contains(String name){
+        UrlEncodedIndex form = form();
+        if((form != null && form.find(name, 0) >= 0) || (query != null && query.find(name, 0) >= 0)
+                || apply.containsKey(name))
+            return true;
+        HttpPostRequestDecoder multipart = multipart();
+        if(multipart != null)
+            for(InterfaceHttpData data : multipart.getBodyHttpDatas())
+                if(data instanceof Attribute && data.getName().equals(name))
+                    return true;
+        return false;
+    }
+    
+    public int getInt(String name, int def){
+        return (int) getNumber(name, Integer.MIN_VALUE, Integer.MAX_VALUE, def);
+    }
+    
+    public long getLong(String name, long def){
+        return getNumber(name, Long.MIN_VALUE, Long.MAX_VALUE, def);
+    }
+    
+    private long getNumber(String name, long min, long max, long def){
+        UrlEncodedIndex form = form();
+        int i;
+        if(form != null && (i = form.findLast(name)) >= 0)
+            return form.parseLong(i, min, max, def);
+        String value = multipartValue(name);
+        if(value == null && query != null && (i = query.findLast(name)) >= 0)
+            return query.parseLong(i, min, max, def);
+        if(value == null)
+            value = apply.get(name);
+        if(value != null)
+            try{
+                long result = Long.parseLong(value.trim());
+                if(result >= min && result <= max)
+                    return result;
+            }catch(NumberFormatException ex){}
+        return def;
+    }
+    
+    public double getDouble(String name, double def){
+        String value = get(name);
+        if(value != null)
+            try{
+                return Double.parseDouble(value.trim());
+            }catch(NumberFormatException ex){}
+        return def;
+    }
+    
+    /**
+     * Accepts {@code true}/{@code on}/{@code yes}/{@code 1} and {@code false}/{@code off}/{@code no}/{@code 0},
+     * ignoring case.
+     */
+    public boolean getBoolean(String name, boolean def){
+        UrlEncodedIndex form = form();
+        int i, result = -1;
+        String value = null;
+        if(form != null && (i = form.findLast(name)) >= 0)
+            result = form.parseBoolean(i);
+        else if((value = multipartValue(name)) == null && query != null && (i = query.findLast(name)) >= 0)
+            result = query.parseBoolean(i);
+        else{
+            if(value == null)
+                value = apply.get(name);
+            if(value != null){
+                value = value.trim();
+                if(value.equalsIgnoreCase("true") || value.equalsIgnoreCase("on") || value.equalsIgnoreCase("yes") || value.equals("1"))
+                    result = 1;
+                else if(value.equalsIgnoreCase("false") || value.equalsIgnoreCase("off") || value.equalsIgnoreCase("no") || value.equals("0"))
+                    result = 0;
+            }
+        }
+        return result < 0 ? def : result == 1;
     }
     
     public Map<String, String> params(){
-        if(params == null)
-            params = parseParams(content.toString(charset), apply);
+        if(params == null){
+            Map<String, String> result = new LinkedHashMap<>(apply);
+            put(query, result);
+            HttpPostRequestDecoder multipart = multipart();
+            if(multipart != null)
+                for(InterfaceHttpData data : multipart.getBodyHttpDatas())
+                    if(data instanceof Attribute)
+                        result.put(data.getName(), value((Attribute) data));
+            put(form(), result);
+            params = Collections.unmodifiableMap(result);
+        }
         return params;
     }
     
+    private static void put(UrlEncodedIndex index, Map<String, String> result){
+        if(index != null)
+            for(int i = 0; i < index.size(); i++)
+                result.put(index.name(i), index.value(i));
+    }
+    
+    /**
+     * Splits already decoded {@code name=value} pairs. Pairs without a value are skipped.
+     */
     public static Map<String, String> parseParams(String params, Map<String, String> apply){
         Map<String, String> result = new HashMap<>(apply);
-        for(String param : params.split("&")){
-            String[] entry = param.split("=", 2);
-            if(entry.length > 1)
-                result.put(entry[0], entry[1]);
+        int start = 0, length = params.length();
+        while(start < length){
+            int end = params.indexOf('&', start);
+            if(end < 0)
+                end = length;
+            int equals = params.indexOf('=', start);
+            if(equals >= 0 && equals < end)
+                result.put(params.substring(start, equals), params.substring(equals + 1, end));
+            start = end + 1;
         }
         return Collections.unmodifiableMap(result);
     }
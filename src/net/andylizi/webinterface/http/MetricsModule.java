@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+
+import java.util.Objects;
+
+import net.andylizi.webinterface.ServerMetrics;
+import net.andylizi.webinterface.api.Utils;
+
+/**
+ * Exposes {@link ServerMetrics} in the Prometheus text exposition format.
+ */
+public class MetricsModule implements HttpModule{
+    private final ServerMetrics metrics;
+
+    public MetricsModule(ServerMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics);
+    }
+
+    @Override
+    public FullHttpResponse handleRequest(String uri, HttpParams param, FullHttpRequest request) {
+        StringBuilder out = new StringBuilder(4096);
+        metrics.writePrometheus(out);
+        return Utils.INSTANCE.builder()
+                .content(out.toString())
+                .header(CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8")
+                .header(CACHE_CONTROL, "no-store")
+                .build();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.multipart.HttpDataFactory;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import net.andylizi.webinterface.api.API;
+
+/**
+ * Decodes a streamed {@code multipart/form-data} or urlencoded body as it arrives and hands every completed
+ * part to {@link #handlePart(InterfaceHttpData)}. File parts above the factory's memory threshold are
+ * written to a temporary file instead of being kept in memory. A part is released, and its temporary file
+ * deleted, once {@code handlePart} returns; retain it or move it with {@code FileUpload.renameTo} to keep it.
+ */
+public abstract class MultipartBodyHandler implements RequestBodyHandler{
+    private final HttpPostRequestDecoder decoder;
+    private boolean destroyed;
+
+    public MultipartBodyHandler(HttpRequest request) {
+        this(API.getHttpDataFactory(), request);
+    }
+
+    public MultipartBodyHandler(HttpDataFactory factory, HttpRequest request) {
+        this.decoder = new HttpPostRequestDecoder(factory, request);
+    }
+
+    protected abstract void handlePart(InterfaceHttpData part) throws Exception;
+
+    protected abstract Future<FullHttpResponse> handleComplete(Promise<FullHttpResponse> promise) throws Exception;
+
+    protected void handleFailure(Throwable cause){}
+
+    @Override
+    public final void handleContent(ByteBuf content) throws Exception {
+        decoder.offer(new DefaultHttpContent(content));
+        drain();
+    }
+
+    @Override
+    public final Future<FullHttpResponse> handleEnd(HttpHeaders trailingHeaders, Promise<FullHttpResponse> promise) throws Exception {
+        try{
+            decoder.offer(LastHttpContent.EMPTY_LAST_CONTENT);
+            drain();
+            return handleComplete(promise);
+        }finally{
+            destroy();
+        }
+    }
+
+    @Override
+    public final void handleAbort(Throwable cause) {
+        try{
+            handleFailure(cause);
+        }finally{
+            destroy();
+        }
+    }
+
+    private void drain() throws Exception{
+        try{
+            while(decoder.hasNext()){
+                InterfaceHttpData part = decoder.next();
+                decoder.removeHttpDataFromClean(part);
+                try{
+                    handlePart(part);
+                }finally{
+                    part.release();
+                }
+            }
+        }catch(HttpPostRequestDecoder.EndOfDataDecoderException ex){}
+    }
+
+    private void destroy(){
+        if(!destroyed){
+            destroyed = true;
+            decoder.destroy();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * Receives the body of a streamed request on the connection's event loop.
+ * Chunks are released once {@link #handleContent(ByteBuf)} returns; retain them to keep them longer.
+ */
+public abstract interface RequestBodyHandler{
+    public void handleContent(ByteBuf content) throws Exception;
+    
+    public Future<FullHttpResponse> handleEnd(HttpHeaders trailingHeaders, Promise<FullHttpResponse> promise) throws Exception;
+    
+    public void handleAbort(Throwable cause);
+}
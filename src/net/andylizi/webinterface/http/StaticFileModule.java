@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Objects;
+
+import net.andylizi.webinterface.api.API;
+import net.andylizi.webinterface.api.Utils;
+
+/**
+ * Serves files below {@code root}. Resolving and opening a file touch the disk, so the module runs on the
+ * worker executor.
+ */
+public class StaticFileModule implements BlockingHttpModule{
+    private final File root;
+    private final String index;
+    private final int maxAge;
+    private final FileDescriptorCache cache;
+
+    public StaticFileModule(File root, String index, int maxAge, FileDescriptorCache cache) {
+        this.root = Objects.requireNonNull(root);
+        this.index = index;
+        this.maxAge = maxAge;
+        this.cache = Objects.requireNonNull(cache);
+    }
+
+    @Override
+    public FullHttpResponse handleRequest(String uri, HttpParams param, FullHttpRequest request) {
+        HttpMethod method = request.getMethod();
+        if(!method.equals(HttpMethod.GET) && !method.equals(HttpMethod.HEAD))
+            return Utils.INSTANCE.builder(METHOD_NOT_ALLOWED).header(ALLOW, "GET, HEAD").build();
+        File file = resolve(uri);
+        if(file == null)
+            return Utils.INSTANCE.sendError(NOT_FOUND);
+        
+        FileHandle handle;
+        try{
+            handle = cache.acquire(file);
+        }catch(FileNotFoundException ex){
+            return Utils.INSTANCE.sendError(NOT_FOUND);
+        }catch(IOException ex){
+            ex.printStackTrace();
+            return Utils.INSTANCE.sendError(INTERNAL_SERVER_ERROR);
+        }
+        boolean owned = true;
+        try{
+            long length = handle.length();
+            long lastModified = handle.lastModified();
+            String etag = '"'+Long.toHexString(length)+'-'+Long.toHexString(lastModified)+'"';
+            
+            if(notModified(request, etag, lastModified)){
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, NOT_MODIFIED);
+                setCacheHeaders(response, etag, lastModified);
+                return response;
+            }
+            
+            long start = 0, end = length - 1;
+            String range = request.headers().get(RANGE);
+            boolean partial = false;
+            if(range != null && range.startsWith("bytes=") && range.indexOf(',') < 0 && ifRangeMatches(request, etag, lastModified)){
+                String spec = range.substring(6).trim();
+                int dash = spec.indexOf('-');
+                try{
+                    if(dash == 0){
+                        long suffix = Long.parseLong(spec.substring(1).trim());
+                        start = Math.max(0, length - suffix);
+                        partial = suffix > 0;
+                        if(!partial || length == 0)
+                            return unsatisfiable(length);
+                    }else if(dash > 0){
+                        start = Long.parseLong(spec.substring(0, dash).trim());
+                        if(dash < spec.length() - 1)
+                            end = Math.min(end, Long.parseLong(spec.substring(dash + 1).trim()));
+                        if(start >= length || start > end)
+                            return unsatisfiable(length);
+                        partial = true;
+                    }
+                }catch(NumberFormatException ex){
+                    start = 0;
+                    end = length - 1;
+                    partial = false;
+                }
+            }
+            
+            long count = end - start + 1;
+            FullHttpResponse response;
+            if(method.equals(HttpMethod.HEAD)){
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, partial ? PARTIAL_CONTENT : OK);
+                HttpHeaders.setContentLength(response, count);
+            }else{
+                response = new FileHttpResponse(partial ? PARTIAL_CONTENT : OK, handle, start, count);
+                owned = false;
+            }
+            if(partial)
+                response.headers().set(CONTENT_RANGE, "bytes "+start+'-'+end+'/'+length);
+            response.headers()
+                    .set(CONTENT_TYPE, API.getMimeTypesMap().getContentType(file))
+                    .set(ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+            setCacheHeaders(response, etag, lastModified);
+            return response;
+        }finally{
+            if(owned)
+                handle.release();
+        }
+    }
+    
+    private File resolve(String uri){
+        int query = uri.indexOf('?');
+        String path = QueryStringDecoder.decodeComponent(query < 0 ? uri : uri.substring(0, query), CharsetUtil.UTF_8);
+        if(path.indexOf('\0') >= 0 || path.indexOf('\\') >= 0)
+            return null;
+        for(String segment : path.split("/"))
+            if(segment.equals("..") || (!segment.isEmpty() && segment.charAt(0) == '.'))
+                return null;
+        File file = new File(root, path);
+        if(file.isDirectory()){
+            if(index == null || index.isEmpty())
+                return null;
+            file = new File(file, index);
+        }
+        if(!file.isFile())
+            return null;
+        // A symbolic link below the root may still point outside of it.
+        try{
+            Path real = file.toPath().toRealPath();
+            if(!real.startsWith(root.toPath().toRealPath()))
+                return null;
+            return real.toFile();
+        }catch(IOException ex){
+            return null;
+        }
+    }
+    
+    private boolean notModified(FullHttpRequest request, String etag, long lastModified){
+        String ifNoneMatch = request.headers().get(IF_NONE_MATCH);
+        if(ifNoneMatch != null){
+            for(String tag : ifNoneMatch.split(",")){
+                tag = tag.trim();
+                if(tag.equals("*") || tag.equals(etag) || (tag.startsWith("W/") && tag.substring(2).equals(etag)))
+                    return true;
+            }
+            return false;
+        }
+        if(request.headers().contains(IF_MODIFIED_SINCE))
+            try{
+                return lastModified / 1000 <= HttpHeaders.getDateHeader(request, IF_MODIFIED_SINCE).getTime() / 1000;
+            }catch(ParseException ex){
+                return false;
+            }
+        return false;
+    }
+    
+    private boolean ifRangeMatches(FullHttpRequest request, String etag, long lastModified){
+        String ifRange = request.headers().get(IF_RANGE);
+        if(ifRange == null)
+            return true;
+        ifRange = ifRange.trim();
+        if(ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return ifRange.equals(etag);
+        try{
+            return lastModified / 1000 == HttpHeaders.getDateHeader(request, IF_RANGE).getTime() / 1000;
+        }catch(ParseException ex){
+            return false;
+        }
+    }
+    
+    private FullHttpResponse unsatisfiable(long length){
+        return Utils.INSTANCE.builder(REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(CONTENT_RANGE, "bytes */"+length)
+                .build();
+    }
+    
+    private void setCacheHeaders(HttpResponse response, String etag, long lastModified){
+        response.headers().set(ETAG, etag);
+        HttpHeaders.setDateHeader(response, LAST_MODIFIED, new Date(lastModified));
+        if(maxAge > 0)
+            response.headers().set(CACHE_CONTROL, "public, max-age="+maxAge);
+    }
+    
+    public void close(){
+        cache.clear();
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import io.netty.handler.codec.http.HttpRequest;
+import net.andylizi.webinterface.api.Module;
+
+/**
+ * A module that receives the request body chunk by chunk as it arrives instead of
+ * an aggregated {@link io.netty.handler.codec.http.FullHttpRequest}, so it is not bound by the
+ * aggregation limit and never has the whole body in memory.
+ */
+public abstract interface StreamingHttpModule extends Module{
+    public RequestBodyHandler handleRequest(String uri, HttpParams param, HttpRequest request, BodyFlowControl control) throws Exception;
+}
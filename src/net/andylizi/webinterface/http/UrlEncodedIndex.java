@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.http;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Offsets of the pairs of an {@code application/x-www-form-urlencoded} string or buffer. The source is scanned
+ * once; names and values are only decoded when they are asked for.
+ */
+final class UrlEncodedIndex {
+    private static final int[] EMPTY = new int[0];
+
+    private final String text;
+    private final ByteBuf buffer;
+    private final int start;
+    private final int end;
+    private final Charset charset;
+
+    private int[] offsets;
+    private int size;
+
+    UrlEncodedIndex(String text, Charset charset) {
+        this.text = text;
+        this.buffer = null;
+        this.start = 0;
+        this.end = text.length();
+        this.charset = charset;
+    }
+
+    UrlEncodedIndex(ByteBuf buffer, Charset charset) {
+        this.text = null;
+        this.buffer = buffer;
+        this.start = buffer.readerIndex();
+        this.end = buffer.writerIndex();
+        this.charset = charset;
+    }
+
+    private int at(int index){
+        return text != null ? text.charAt(index) : buffer.getByte(index) & 0xFF;
+    }
+
+    private void index(){
+        if(offsets != null)
+            return;
+        int[] offsets = EMPTY;
+        int size = 0;
+        int pairStart = start;
+        while(pairStart < end){
+            int equals = -1, pairEnd = pairStart;
+            for(; pairEnd < end; pairEnd++){
+                int c = at(pairEnd);
+                if(c == '&')
+                    break;
+                if(c == '=' && equals < 0)
+                    equals = pairEnd;
+            }
+            if(pairEnd > pairStart && equals != pairStart){
+                if(offsets.length == size * 3)
+                    offsets = Arrays.copyOf(offsets, Math.max(12, offsets.length * 2));
+                offsets[size * 3] = pairStart;
+                offsets[size * 3 + 1] = equals < 0 ? pairEnd : equals;
+                offsets[size * 3 + 2] = pairEnd;
+                size++;
+            }
+            pairStart = pairEnd + 1;
+        }
+        this.offsets = offsets;
+        this.size = size;
+    }
+
+    int size(){
+        index();
+        return size;
+    }
+
+    String name(int i){
+        index();
+        return decode(offsets[i * 3], offsets[i * 3 + 1]);
+    }
+
+    String value(int i){
+        index();
+        int separator = offsets[i * 3 + 1];
+        int valueEnd = offsets[i * 3 + 2];
+        return separator == valueEnd ? "" : decode(separator + 1, valueEnd);
+    }
+
+    /**
+     * @return the index of the first pair at or after {@code from} named {@code name}, or {@code -1}
+     */
+    int find(String name, int from){
+        index();
+        for(int i = from; i < size; i++)
+            if(nameEquals(i, name))
+                return i;
+        return -1;
+    }
+
+    int findLast(String name){
+        index();
+        for(int i = size - 1; i >= 0; i--)
+            if(nameEquals(i, name))
+                return i;
+        return -1;
+    }
+
+    private boolean nameEquals(int i, String name){
+        int nameStart = offsets[i * 3], nameEnd = offsets[i * 3 + 1];
+        int length = nameEnd - nameStart;
+        if(length < name.length())
+            return false;
+        if(length == name.length()){
+            for(int j = 0; j < length; j++){
+                int c = at(nameStart + j);
+                if(c == '%' || c >= 0x80)
+                    return decode(nameStart, nameEnd).equals(name);
+                if((c == '+' ? ' ' : c) != name.charAt(j))
+                    return false;
+            }
+            return true;
+        }
+        for(int j = nameStart; j < nameEnd; j++){
+            int c = at(j);
+            if(c == '%' || c >= 0x80)
+                return decode(nameStart, nameEnd).equals(name);
+        }
+        return false;
+    }
+
+    /**
+     * Parses the value of pair {@code i} as a decimal number without materializing it.
+     * Returns {@code def} when the value is empty, malformed or out of range.
+     */
+    long parseLong(int i, long min, long max, long def){
+        index();
+        int index = offsets[i * 3 + 1] + 1, valueEnd = offsets[i * 3 + 2];
+        if(index >= valueEnd)
+            return def;
+        boolean negative = false;
+        int c = at(index);
+        if(c == '-' || c == '+'){
+            if(c == '+')
+                return parseEscaped(i, min, max, def);
+            negative = true;
+            if(++index >= valueEnd)
+                return def;
+        }
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyLimit = limit / 10;
+        long result = 0;
+        for(; index < valueEnd; index++){
+            c = at(index);
+            if(c == '%')
+                return parseEscaped(i, min, max, def);
+            int digit = c - '0';
+            if(digit < 0 || digit > 9 || result < multiplyLimit)
+                return def;
+            result *= 10;
+            if(result < limit + digit)
+                return def;
+            result -= digit;
+        }
+        result = negative ? result : -result;
+        return result < min || result > max ? def : result;
+    }
+
+    private long parseEscaped(int i, long min, long max, long def){
+        try{
+            long result = Long.parseLong(value(i).trim());
+            return result < min || result > max ? def : result;
+        }catch(NumberFormatException ex){
+            return def;
+        }
+    }
+
+    /**
+     * @return {@code 1} for true/on/yes/1, {@code 0} for false/off/no/0, {@code -1} otherwise
+     */
+    int parseBoolean(int i){
+        index();
+        int valueStart = offsets[i * 3 + 1] + 1, valueEnd = offsets[i * 3 + 2];
+        if(regionMatches(valueStart, valueEnd, "true") || regionMatches(valueStart, valueEnd, "on")
+                || regionMatches(valueStart, valueEnd, "yes") || regionMatches(valueStart, valueEnd, "1"))
+            return 1;
+        if(regionMatches(valueStart, valueEnd, "false") || regionMatches(valueStart, valueEnd, "off")
+                || regionMatches(valueStart, valueEnd, "no") || regionMatches(valueStart, valueEnd, "0"))
+            return 0;
+        return -1;
+    }
+
+    private boolean regionMatches(int from, int to, String s){
+        if(to - from != s.length())
+            return false;
+        for(int j = 0; j < s.length(); j++){
+            int c = at(from + j);
+            if(c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            if(c != s.charAt(j))
+                return false;
+        }
+        return true;
+    }
+
+    private String decode(int from, int to){
+        int escape = from;
+        while(escape < to){
+            int c = at(escape);
+            if(c == '%' || c == '+' || c >= 0x80)
+                break;
+            escape++;
+        }
+        if(escape == to)
+            return text != null ? text.substring(from, to) : buffer.toString(from, to - from, charset);
+
+        byte[] bytes = new byte[to - from];
+        int length = 0;
+        for(int i = from; i < to; i++){
+            int c = at(i);
+            if(c == '+')
+                c = ' ';
+            else if(c == '%' && i + 2 < to){
+                int high = Character.digit(at(i + 1), 16);
+                int low = Character.digit(at(i + 2), 16);
+                if(high >= 0 && low >= 0){
+                    c = (high << 4) | low;
+                    i += 2;
+                }
+            }
+            bytes[length++] = (byte) c;
+        }
+        return new String(bytes, 0, length, charset);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.websocketx.*;
+
+import java.util.List;
+
+/**
+ * RFC 6455 client frame decoder. Unlike Netty's own decoder it accepts RSV1 on the first frame of a message
+ * when permessage-deflate was negotiated, leaves text validation to {@link WebSocketConnection}, which sees
+ * the payload after inflation, and rejects a frame or a fragmented message that is too large from its header
+ * alone, answering with the matching close code.
+ */
+final class FrameDecoder extends ByteToMessageDecoder implements WebSocketFrameDecoder{
+    static final int CLOSE_PROTOCOL_ERROR = 1002;
+    static final int CLOSE_INVALID_DATA = 1007;
+    static final int CLOSE_TOO_BIG = 1009;
+
+    private final int maxFramePayloadLength;
+    private final int maxMessageLength;
+    private final boolean allowDeflate;
+
+    private boolean fragmented;
+    private long messageLength;
+    private boolean corrupt;
+
+    FrameDecoder(int maxFramePayloadLength, int maxMessageLength, boolean allowDeflate) {
+        this.maxFramePayloadLength = maxFramePayloadLength;
+        this.maxMessageLength = maxMessageLength;
+        this.allowDeflate = allowDeflate;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if(corrupt){
+            in.skipBytes(in.readableBytes());
+            return;
+        }
+        if(in.readableBytes() < 2)
+            return;
+        int start = in.readerIndex();
+        int b0 = in.getUnsignedByte(start), b1 = in.getUnsignedByte(start + 1);
+        boolean fin = (b0 & 0x80) != 0;
+        int rsv = (b0 & 0x70) >> 4;
+        int opcode = b0 & 0x0F;
+        if((b1 & 0x80) == 0){
+            fail(ctx, in, CLOSE_PROTOCOL_ERROR, "Unmasked client frame");
+            return;
+        }
+        if(opcode >= 8){
+            if(opcode > 10 || !fin || rsv != 0 || (b1 & 0x7F) > 125){
+                fail(ctx, in, CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+                return;
+            }
+        }else if(opcode > 2){
+            fail(ctx, in, CLOSE_PROTOCOL_ERROR, "Reserved opcode "+opcode);
+            return;
+        }else if((opcode == 0) != fragmented){
+            fail(ctx, in, CLOSE_PROTOCOL_ERROR, fragmented ? "Expected a continuation frame" : "Unexpected continuation frame");
+            return;
+        }else if(rsv != 0 && (rsv != 4 || !allowDeflate || opcode == 0)){
+            fail(ctx, in, CLOSE_PROTOCOL_ERROR, "Unexpected RSV bits "+rsv);
+            return;
+        }
+
+        long length = b1 & 0x7F;
+        int headerLength = 2;
+        if(length == 126){
+            if(in.readableBytes() < 4)
+                return;
+            length = in.getUnsignedShort(start + 2);
+            headerLength = 4;
+        }else if(length == 127){
+            if(in.readableBytes() < 10)
+                return;
+            length = in.getLong(start + 2);
+            headerLength = 10;
+            if(length < 0){
+                fail(ctx, in, CLOSE_PROTOCOL_ERROR, "Invalid frame length");
+                return;
+            }
+        }
+        if(length > maxFramePayloadLength){
+            fail(ctx, in, CLOSE_TOO_BIG, "Frame exceeds "+maxFramePayloadLength+" bytes");
+            return;
+        }
+        if(opcode < 8 && (opcode == 0 ? messageLength : 0) + length > maxMessageLength){
+            fail(ctx, in, CLOSE_TOO_BIG, "Message exceeds "+maxMessageLength+" bytes");
+            return;
+        }
+        headerLength += 4;
+        if(in.readableBytes() < headerLength + length)
+            return;
+        int mask = in.getInt(start + headerLength - 4);
+        in.skipBytes(headerLength);
+        ByteBuf payload = unmask(ctx, in, (int) length, mask);
+
+        if(opcode == 8 && !isValidClose(payload)){
+            payload.release();
+            fail(ctx, in, CLOSE_PROTOCOL_ERROR, "Invalid close frame");
+            return;
+        }
+        if(opcode == 8 && payload.readableBytes() > 2 && !isValidReason(payload)){
+            payload.release();
+            fail(ctx, in, CLOSE_INVALID_DATA, "Invalid close reason");
+            return;
+        }
+        if(opcode < 8){
+            fragmented = !fin;
+            messageLength = fragmented ? (opcode == 0 ? messageLength : 0) + length : 0;
+        }
+        switch(opcode){
+            case 0:
+                out.add(new ContinuationWebSocketFrame(fin, rsv, payload));
+                break;
+            case 1:
+                out.add(new TextWebSocketFrame(fin, rsv, payload));
+                break;
+            case 2:
+                out.add(new BinaryWebSocketFrame(fin, rsv, payload));
+                break;
+            case 8:
+                out.add(new CloseWebSocketFrame(fin, rsv, payload));
+                break;
+            case 9:
+                out.add(new PingWebSocketFrame(fin, rsv, payload));
+                break;
+            default:
+                out.add(new PongWebSocketFrame(fin, rsv, payload));
+        }
+    }
+
+    private static ByteBuf unmask(ChannelHandlerContext ctx, ByteBuf in, int length, int mask){
+        ByteBuf payload = ctx.alloc().buffer(length);
+        int i = 0;
+        for(; i + 4 <= length; i += 4)
+            payload.writeInt(in.readInt() ^ mask);
+        for(; i < length; i++)
+            payload.writeByte(in.readByte() ^ (mask >>> (24 - 8 * (i & 3))));
+        return payload;
+    }
+
+    private static boolean isValidClose(ByteBuf payload){
+        if(payload.readableBytes() == 0)
+            return true;
+        if(payload.readableBytes() == 1)
+            return false;
+        int code = payload.getUnsignedShort(payload.readerIndex());
+        return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1014) || (code >= 3000 && code <= 4999);
+    }
+
+    private static boolean isValidReason(ByteBuf payload){
+        Utf8Validator utf8 = new Utf8Validator();
+        return utf8.update(payload.slice(payload.readerIndex() + 2, payload.readableBytes() - 2)) && utf8.finish();
+    }
+
+    private void fail(ChannelHandlerContext ctx, ByteBuf in, int code, String reason){
+        corrupt = true;
+        in.skipBytes(in.readableBytes());
+        ctx.channel().writeAndFlush(new CloseWebSocketFrame(code, reason)).addListener(ChannelFutureListener.CLOSE);
+    }
+}
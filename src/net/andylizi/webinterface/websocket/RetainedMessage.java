@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ResourceLeakDetector;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Message payload kept past the handler that received it, see {@link WebSocketConnection#retain(ByteBuf)}.
+ * It has its own reader index and must be released exactly once. A message that is garbage collected before
+ * that is found on the next {@link #pollLeaks()} and reported through
+ * {@link WebSocketConnection#handleLeak(Throwable)}. Its buffer is not released then, as a duplicate or slice
+ * of {@link #content()} may still be in use. With Netty's leak detection level at {@code ADVANCED} or above,
+ * the report carries the stack that retained the message.
+ */
+public final class RetainedMessage extends AbstractReferenceCounted{
+    private static final ReferenceQueue<RetainedMessage> QUEUE = new ReferenceQueue<>();
+    private static final Set<Tracker> TRACKERS = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+    private static final AtomicLong leaks = new AtomicLong();
+
+    private final ByteBuf content;
+    private final Tracker tracker;
+
+    RetainedMessage(ByteBuf content, WebSocketConnection connection) {
+        pollLeaks();
+        this.content = content;
+        this.tracker = new Tracker(this, connection,
+                ResourceLeakDetector.getLevel().ordinal() >= ResourceLeakDetector.Level.ADVANCED.ordinal() ?
+                        new Throwable("Message retained here") : null);
+        TRACKERS.add(tracker);
+    }
+
+    public ByteBuf content(){
+        if(refCnt() <= 0)
+            throw new IllegalReferenceCountException(refCnt());
+        return content;
+    }
+
+    public Utf8Text text(){
+        return new Utf8Text(content());
+    }
+
+    @Override
+    public RetainedMessage retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public RetainedMessage retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        TRACKERS.remove(tracker);
+        content.release();
+    }
+
+    /**
+     * Reports the messages that were collected without being released.
+     */
+    public static void pollLeaks(){
+        Tracker tracker;
+        while((tracker = (Tracker) QUEUE.poll()) != null)
+            if(TRACKERS.remove(tracker)){
+                leaks.incrementAndGet();
+                try{
+                    tracker.connection.handleLeak(tracker.createdAt);
+                }catch(Throwable t){
+                    t.printStackTrace();
+                }
+            }
+    }
+
+    public static long getLeakCount(){
+        return leaks.get();
+    }
+
+    public static int getRetainedCount(){
+        return TRACKERS.size();
+    }
+
+    private static final class Tracker extends WeakReference<RetainedMessage>{
+        final WebSocketConnection connection;
+        final Throwable createdAt;
+
+        Tracker(RetainedMessage message, WebSocketConnection connection, Throwable createdAt) {
+            super(message, QUEUE);
+            this.connection = connection;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.websocket;
+
+import io.netty.handler.codec.http.websocketx.WebSocketFrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker13;
+
+/**
+ * Version 13 handshaker that installs {@link FrameDecoder} instead of Netty's decoder.
+ */
+public class ServerHandshaker extends WebSocketServerHandshaker13{
+    private final boolean allowDeflate;
+    private final int maxMessageLength;
+
+    public ServerHandshaker(String webSocketUrl, String subprotocols, boolean allowDeflate, int maxFramePayloadLength, int maxMessageLength) {
+        super(webSocketUrl, subprotocols, allowDeflate, maxFramePayloadLength);
+        this.allowDeflate = allowDeflate;
+        this.maxMessageLength = maxMessageLength;
+    }
+
+    /**
+     * @return the limit of a message, summed over its fragments and measured after inflation
+     */
+    public int maxMessageLength(){
+        return maxMessageLength;
+    }
+
+    @Override
+    protected WebSocketFrameDecoder newWebsocketDecoder() {
+        return new FrameDecoder(maxFramePayloadLength(), maxMessageLength, allowDeflate);
+    }
+}
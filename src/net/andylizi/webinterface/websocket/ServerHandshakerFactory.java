@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.websocket;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+
+/**
+ * Creates handshakers for one location. Version 13 clients get a {@link ServerHandshaker}; the older drafts
+ * fall back to Netty, whose decoders only know the frame limit.
+ */
+public class ServerHandshakerFactory {
+    private final String webSocketUrl;
+    private final String subprotocols;
+    private final int maxFramePayloadLength;
+    private final int maxMessageLength;
+    private final WebSocketServerHandshakerFactory fallback;
+
+    public ServerHandshakerFactory(String webSocketUrl, String subprotocols, int maxFramePayloadLength, int maxMessageLength) {
+        this.webSocketUrl = webSocketUrl;
+        this.subprotocols = subprotocols;
+        this.maxFramePayloadLength = maxFramePayloadLength;
+        this.maxMessageLength = Math.max(maxFramePayloadLength, maxMessageLength);
+        this.fallback = new WebSocketServerHandshakerFactory(webSocketUrl, subprotocols, false, maxFramePayloadLength);
+    }
+
+    /**
+     * @return the handshaker, or {@code null} if the version of the request is not supported
+     */
+    public WebSocketServerHandshaker newHandshaker(HttpRequest request, boolean allowDeflate){
+        if("13".equals(request.headers().get(HttpHeaders.Names.SEC_WEBSOCKET_VERSION)))
+            return new ServerHandshaker(webSocketUrl, subprotocols, allowDeflate, maxFramePayloadLength, maxMessageLength);
+        return fallback.newHandshaker(request);
+    }
+
+    public int getMaxFramePayloadLength() {
+        return maxFramePayloadLength;
+    }
+
+    public int getMaxMessageLength() {
+        return maxMessageLength;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.nio.CharBuffer;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.andylizi.webinterface.api.API;
+
+/**
+ * Named group of WebSocket connections, obtained from {@link API#getTopic(String)}. A publish encodes the
+ * payload once into a pooled buffer and gives every event loop with subscribers a single task, which writes
+ * a retained duplicate of it to each of that loop's connections. The subscribers of an event loop are only
+ * touched on that loop, and connections leave all their topics when they close. A topic is dropped from
+ * the API once its last subscriber leaves. Changes to the subscriber count and that removal hold the topic's
+ * lock, so a subscription never lands on a topic that is no longer registered.
+ * <p>
+ * A subscriber that is not keeping up, with more than its write buffer high water mark still queued, misses
+ * the messages published until it drains; they are counted by {@link #getDroppedCount()}.
+ */
+public final class Topic {
+    private final String name;
+    private final ConcurrentMap<EventExecutor, Group> groups = new ConcurrentHashMap<>();
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public Topic(String name) throws NullPointerException{
+        this.name = Objects.requireNonNull(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSubscriberCount(){
+        return subscribers.get();
+    }
+
+    public long getPublishedCount(){
+        return published.get();
+    }
+
+    /**
+     * @return how many deliveries were skipped because the subscriber was not writable
+     */
+    public long getDroppedCount(){
+        return dropped.get();
+    }
+
+    public void subscribe(final WebSocketConnection connection){
+        EventLoop loop = connection.channel().eventLoop();
+        if(loop.inEventLoop())
+            add(connection);
+        else
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    add(connection);
+                }
+            });
+    }
+
+    public void unsubscribe(final WebSocketConnection connection){
+        EventLoop loop = connection.channel().eventLoop();
+        if(loop.inEventLoop())
+            remove(connection);
+        else
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    remove(connection);
+                }
+            });
+    }
+
+    private void add(WebSocketConnection connection){
+        if(!connection.channel().isActive() || connection.topics().contains(this))
+            return;
+        Topic current;
+        synchronized(this){
+            current = API.getTopic(name);
+            if(current == this)
+                subscribers.incrementAndGet();
+        }
+        if(current != this){
+            current.add(connection);
+            return;
+        }
+        connection.topics().add(this);
+        EventLoop loop = connection.channel().eventLoop();
+        Group group = groups.get(loop);
+        if(group == null){
+            group = new Group();
+            groups.put(loop, group);
+        }
+        group.add(connection);
+    }
+
+    /**
+     * Must be called on the event loop of {@code connection}.
+     */
+    void remove(WebSocketConnection connection){
+        if(!connection.topics().remove(this)){
+            Topic current = API.getTopics().get(name);
+            if(current != null && current != this)
+                current.remove(connection);
+            return;
+        }
+        EventLoop loop = connection.channel().eventLoop();
+        Group group = groups.get(loop);
+        if(group == null || !group.remove(connection))
+            return;
+        if(group.size == 0)
+            groups.remove(loop, group);
+        synchronized(this){
+            if(subscribers.decrementAndGet() == 0)
+                API.removeTopic(this);
+        }
+    }
+
+    /**
+     * @return the topic registered under this name, or this one if there is none
+     */
+    private Topic current(){
+        Topic current = API.getTopics().get(name);
+        return current == null ? this : current;
+    }
+
+    public void publishText(String text){
+        Topic current = current();
+        if(current.subscribers.get() == 0)
+            return;
+        current.publish(ByteBufUtil.encodeString(API.getAllocator(), CharBuffer.wrap(text), CharsetUtil.UTF_8), true);
+    }
+
+    /**
+     * @param text UTF-8 payload, released by this call
+     */
+    public void publishText(ByteBuf text){
+        current().publish(Objects.requireNonNull(text), true);
+    }
+
+    /**
+     * @param data payload, released by this call
+     */
+    public void publishBinary(ByteBuf data){
+        current().publish(Objects.requireNonNull(data), false);
+    }
+
+    public void publishBinary(byte[] data){
+        Topic current = current();
+        if(current.subscribers.get() == 0)
+            return;
+        current.publish(Unpooled.wrappedBuffer(data), false);
+    }
+
+    private void publish(ByteBuf payload, boolean text){
+        try{
+            published.incrementAndGet();
+            for(Map.Entry<EventExecutor, Group> entry : groups.entrySet()){
+                Group group = entry.getValue();
+                if(group.size == 0)
+                    continue;
+                Fanout fanout = new Fanout(group, payload.retain(), text, dropped);
+                EventExecutor loop = entry.getKey();
+                if(loop.inEventLoop())
+                    fanout.run();
+                else
+                    try{
+                        loop.execute(fanout);
+                    }catch(RejectedExecutionException ex){
+                        payload.release();
+                    }
+            }
+        }finally{
+            payload.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Topic{" + name + ", " + subscribers.get() + " subscribers}";
+    }
+
+    /**
+     * Subscribers on one event loop. The array is rebuilt after a change so that a connection closing in
+     * the middle of a fanout does not disturb the iteration.
+     */
+    private static final class Group{
+        private final Set<WebSocketConnection> connections = new LinkedHashSet<>();
+        private WebSocketConnection[] snapshot;
+        volatile int size;
+
+        void add(WebSocketConnection connection){
+            if(connections.add(connection)){
+                snapshot = null;
+                size = connections.size();
+            }
+        }
+
+        boolean remove(WebSocketConnection connection){
+            if(!connections.remove(connection))
+                return false;
+            snapshot = null;
+            size = connections.size();
+            return true;
+        }
+
+        WebSocketConnection[] snapshot(){
+            if(snapshot == null)
+                snapshot = connections.toArray(new WebSocketConnection[connections.size()]);
+            return snapshot;
+        }
+    }
+
+    private static final class Fanout implements Runnable{
+        private final Group group;
+        private final ByteBuf payload;
+        private final boolean text;
+        private final AtomicLong dropped;
+
+        Fanout(Group group, ByteBuf payload, boolean text, AtomicLong dropped) {
+            this.group = group;
+            this.payload = payload;
+            this.text = text;
+            this.dropped = dropped;
+        }
+
+        @Override
+        public void run() {
+            try{
+                for(WebSocketConnection connection : group.snapshot()){
+                    // Fan-out writes take no promise, so the write timeout cannot catch a stalled subscriber.
+                    if(!connection.isWritable()){
+                        dropped.incrementAndGet();
+                        continue;
+                    }
+                    ByteBuf content = payload.duplicate().retain();
+                    connection.publish(text ? new TextWebSocketFrame(content) : new BinaryWebSocketFrame(content));
+                }
+            }finally{
+                payload.release();
+            }
+        }
+    }
+}
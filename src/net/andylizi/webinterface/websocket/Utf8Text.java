@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 andylizi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.andylizi.webinterface.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.util.CharsetUtil;
+
+/**
+ * UTF-8 text read in place from a buffer. Pure ASCII text, which is what most commands are, is answered
+ * byte by byte without a copy; anything else is decoded once, on first use. The view is only valid while
+ * the buffer is, which for a handler argument means until the handler returns.
+ */
+public final class Utf8Text implements CharSequence{
+    private static final ByteBufProcessor FIND_NON_ASCII = new ByteBufProcessor() {
+        @Override
+        public boolean process(byte value) throws Exception {
+            return value >= 0;
+        }
+    };
+
+    private final ByteBuf content;
+    private final int offset;
+    private final int byteLength;
+    private int ascii = -1;
+    private String decoded;
+
+    public Utf8Text(ByteBuf content) {
+        this(content, content.readerIndex(), content.readableBytes());
+    }
+
+    private Utf8Text(ByteBuf content, int offset, int byteLength) {
+        this.content = content;
+        this.offset = offset;
+        this.byteLength = byteLength;
+    }
+
+    public ByteBuf content(){
+        return content.slice(offset, byteLength);
+    }
+
+    public boolean isAscii(){
+        if(ascii < 0)
+            ascii = byteLength == 0 || content.forEachByte(offset, byteLength, FIND_NON_ASCII) < 0 ? 1 : 0;
+        return ascii == 1;
+    }
+
+    @Override
+    public int length() {
+        return isAscii() ? byteLength : toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(!isAscii())
+            return toString().charAt(index);
+        if(index < 0 || index >= byteLength)
+            throw new IndexOutOfBoundsException("index: "+index+", length: "+byteLength);
+        return (char) content.getByte(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if(!isAscii())
+            return toString().subSequence(start, end);
+        if(start < 0 || end > byteLength || start > end)
+            throw new IndexOutOfBoundsException("start: "+start+", end: "+end+", length: "+byteLength);
+        Utf8Text sub = new Utf8Text(content, offset + start, end - start);
+        sub.ascii = 1;
+        return sub;
+    }
+
+    /**
+     * Compares without decoding when this text is ASCII.
+     */
+    public boolean contentEquals(CharSequence other){
+        if(!isAscii())
+            return toString().contentEquals(other);
+        if(other.length() != byteLength)
+            return false;
+        for(int i = 0; i < byteLength; i++)
+            if(content.getByte(offset + i) != other.charAt(i))
+                return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if(decoded == null)
+            decoded = content.toString(offset, byteLength, CharsetUtil.UTF_8);
+        return decoded;
+    }
+}
@@ -18,21 +18,44 @@ package net.andylizi.webinterface.websocket;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufHolder;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.handler.codec.UnsupportedMessageTypeException;
 import io.netty.handler.codec.http.websocketx.*;
+import io.netty.util.ReferenceCountUtil;
 
 import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import net.andylizi.webinterface.api.API;
 import net.andylizi.webinterface.api.Utils;
+import org.bukkit.Bukkit;
 
 public abstract class WebSocketConnection extends Utils{
     private final Internal internal;
     private final WebSocketServerHandshaker handshaker;
     private final ChannelHandlerContext context;
+    private Set<Topic> topics;
+    private boolean flushPending;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushPending = false;
+            context.flush();
+        }
+    };
 
     public WebSocketConnection(WebSocketServerHandshaker handshaker, ChannelHandlerContext context) throws NullPointerException{
         this.handshaker = Objects.requireNonNull(handshaker);
@@ -48,33 +71,70 @@ public abstract class WebSocketConnection extends Utils{
     
     public void handleTextMessage(ChannelHandlerContext context, String msg) throws Exception{}
     
+    /**
+     * Receives a text message as its UTF-8 payload, without decoding it. The buffer is released when this
+     * returns unless it is {@link #retain(ByteBuf) retained}. By default it is wrapped in a {@link Utf8Text}.
+     */
+    public void handleTextMessage(ChannelHandlerContext context, ByteBuf text) throws Exception{
+        handleTextMessage(context, new Utf8Text(text));
+    }
+    
+    /**
+     * Receives a text message as a lazily decoded view. By default it is decoded and passed on as a {@link String}.
+     */
+    public void handleTextMessage(ChannelHandlerContext context, Utf8Text text) throws Exception{
+        handleTextMessage(context, text.toString());
+    }
+    
     public void handleBinaryMessage(ChannelHandlerContext context, ByteBufHolder data) throws Exception{
         throw new UnsupportedOperationException("Unsupported message type");
     }
     
+    /**
+     * Keeps the payload a handler was given usable after the handler returns, for example to hand it to
+     * another thread. The returned message must be released once it has been processed.
+     */
+    public RetainedMessage retain(ByteBuf content){
+        return new RetainedMessage(content.duplicate().retain(), this);
+    }
+    
+    public RetainedMessage retain(ByteBufHolder data){
+        return retain(data.content());
+    }
+    
+    /**
+     * Called when a {@link RetainedMessage} of this connection was garbage collected without being released.
+     * Its buffer stays allocated, since something may still use a duplicate of it.
+     * @param createdAt where the message was retained, or {@code null} below the {@code ADVANCED} leak detection level
+     */
+    public void handleLeak(Throwable createdAt){
+        Bukkit.getLogger().log(Level.WARNING, "WebSocket 消息在释放之前被回收, 其缓冲区未能归还"
+                + (createdAt == null ? " (将 network.leakDetection 设为 advanced 以查看来源)" : ""), createdAt);
+    }
+    
     public void handleException(ChannelHandlerContext context, Throwable ex){
         ex.printStackTrace();
         context.close();
     }
     
     public ChannelFuture sendText(ByteBuf text){
-        return context.writeAndFlush(new TextWebSocketFrame(text));
+        return send(new TextWebSocketFrame(text));
     }
     
     public ChannelFuture sendText(ByteBuffer text){
-        return context.writeAndFlush(new TextWebSocketFrame(Unpooled.copiedBuffer(text)));
+        return send(new TextWebSocketFrame(Unpooled.copiedBuffer(text)));
     }
     
     public ChannelFuture sendText(byte[] text){
-        return context.writeAndFlush(new TextWebSocketFrame(Unpooled.copiedBuffer(text)));
+        return send(new TextWebSocketFrame(Unpooled.copiedBuffer(text)));
     }
     
     public ChannelFuture sendText(String text){
-        return context.writeAndFlush(new TextWebSocketFrame(text));
+        return send(new TextWebSocketFrame(text));
     }
     
     public ChannelFuture sendBinary(ByteBuf data){
-        return context.writeAndFlush(new BinaryWebSocketFrame(Objects.requireNonNull(data)));
+        return send(new BinaryWebSocketFrame(Objects.requireNonNull(data)));
     }
     
     public ChannelFuture sendBinary(ByteBuffer data){
@@ -85,7 +145,106 @@ public abstract class WebSocketConnection extends Utils{
         return sendBinary(Unpooled.copiedBuffer(data));
     }
     
+    /**
+     * Writes {@code frame} now, or on the event loop when called from another thread, and flushes once
+     * after the event loop has run the tasks already queued, so every send of the same tick shares one flush.
+     */
+    public ChannelFuture send(WebSocketFrame frame){
+        return write(frame, context.newPromise());
+    }
+    
+    /**
+     * Flushes the sends written so far without waiting for the scheduled flush.
+     */
+    public void flush(){
+        context.flush();
+    }
+    
+    /**
+     * @return {@code false} while more than the high water mark of data is waiting to be written to this client,
+     * until it drains below the low water mark. See {@link #handleWritabilityChanged(ChannelHandlerContext, boolean)}.
+     */
+    public boolean isWritable(){
+        return context.channel().isWritable();
+    }
+    
+    /**
+     * Called on the event loop when {@link #isWritable()} changes, so producers can pause for slow clients.
+     */
+    public void handleWritabilityChanged(ChannelHandlerContext context, boolean writable) throws Exception{}
+    
+    public void setWriteBufferWaterMarks(int low, int high) throws IllegalArgumentException{
+        if(low < 0 || high < low)
+            throw new IllegalArgumentException("low: " + low + ", high: " + high);
+        ChannelConfig config = context.channel().config();
+        if(high < config.getWriteBufferLowWaterMark()){
+            config.setWriteBufferLowWaterMark(low);
+            config.setWriteBufferHighWaterMark(high);
+        }else{
+            config.setWriteBufferHighWaterMark(high);
+            config.setWriteBufferLowWaterMark(low);
+        }
+    }
+    
+    private ChannelFuture write(final WebSocketFrame frame, final ChannelPromise promise){
+        EventLoop loop = context.channel().eventLoop();
+        if(loop.inEventLoop()){
+            context.write(frame, promise);
+            scheduleFlush();
+        }else
+            try{
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        context.write(frame, promise);
+                        scheduleFlush();
+                    }
+                });
+            }catch(RejectedExecutionException ex){
+                ReferenceCountUtil.release(frame);
+                promise.tryFailure(ex);
+            }
+        return promise;
+    }
+    
+    private void scheduleFlush(){
+        if(!flushPending){
+            flushPending = true;
+            context.channel().eventLoop().execute(flushTask);
+        }
+    }
+    
+    /**
+     * Joins {@code topic}, see {@link Topic}. The subscription ends when this connection closes.
+     */
+    public void subscribe(String topic){
+        API.getTopic(topic).subscribe(this);
+    }
+    
+    public void unsubscribe(String topic){
+        Topic existing = API.getTopics().get(topic);
+        if(existing != null)
+            existing.unsubscribe(this);
+    }
+    
+    Channel channel(){
+        return context.channel();
+    }
+    
+    Set<Topic> topics(){
+        if(topics == null)
+            topics = new HashSet<>(4);
+        return topics;
+    }
+    
+    void publish(WebSocketFrame frame){
+        write(frame, context.voidPromise());
+    }
+    
     private final class Internal extends SimpleChannelInboundHandler<WebSocketFrame>{
+        private final Utf8Validator utf8 = new Utf8Validator();
+        private WebSocketFrame fragments;
+
         @Override
         protected void channelRead0(ChannelHandlerContext context, WebSocketFrame frame) throws Exception {
             if(frame instanceof CloseWebSocketFrame){
@@ -93,11 +252,61 @@ public abstract class WebSocketConnection extends Utils{
                 return;
             }
             if(frame instanceof PingWebSocketFrame){
-                context.channel().write(new PongWebSocketFrame(frame.content().retain()));
+                write(new PongWebSocketFrame(frame.content().retain()), context.voidPromise());
                 return;
             }
+            if(frame instanceof PongWebSocketFrame)
+                return;
+            if(frame instanceof ContinuationWebSocketFrame){
+                aggregate(context, frame);
+                return;
+            }
+            if(frame instanceof TextWebSocketFrame && !validate(context, frame))
+                return;
+            if(!frame.isFinalFragment() && (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame)){
+                CompositeByteBuf content = context.alloc().compositeBuffer(1024);
+                fragments = frame instanceof TextWebSocketFrame ? new TextWebSocketFrame(content) : new BinaryWebSocketFrame(content);
+                aggregate(context, frame);
+                return;
+            }
+            dispatch(context, frame);
+        }
+
+        /**
+         * Collects the fragments of a message. Netty's decoders only limit single frames, so the total is
+         * checked here as well.
+         */
+        private void aggregate(ChannelHandlerContext context, WebSocketFrame frame) throws Exception{
+            if(fragments == null)
+                throw new CorruptedFrameException("Unexpected continuation frame");
+            CompositeByteBuf content = (CompositeByteBuf) fragments.content();
+            int length = frame.content().readableBytes();
+            int maxMessageLength = handshaker instanceof ServerHandshaker ?
+                    ((ServerHandshaker) handshaker).maxMessageLength() : handshaker.maxFramePayloadLength();
+            if((long) content.readableBytes() + length > maxMessageLength){
+                releaseFragments();
+                context.channel().writeAndFlush(new CloseWebSocketFrame(FrameDecoder.CLOSE_TOO_BIG, "Message exceeds "+maxMessageLength+" bytes"))
+                        .addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            if(fragments instanceof TextWebSocketFrame && frame instanceof ContinuationWebSocketFrame && !validate(context, frame))
+                return;
+            content.addComponent(frame.content().retain());
+            content.writerIndex(content.writerIndex() + length);
+            if(!frame.isFinalFragment())
+                return;
+            WebSocketFrame message = fragments;
+            fragments = null;
+            try{
+                dispatch(context, message);
+            }finally{
+                message.release();
+            }
+        }
+
+        private void dispatch(ChannelHandlerContext context, WebSocketFrame frame) throws Exception{
             if(frame instanceof TextWebSocketFrame){
-                handleTextMessage(context, ((TextWebSocketFrame) frame).text());
+                handleTextMessage(context, frame.content());
                 return;
             }
             if(frame instanceof BinaryWebSocketFrame){
@@ -107,14 +316,46 @@ public abstract class WebSocketConnection extends Utils{
             throw new UnsupportedMessageTypeException(frame.getClass().getName());
         }
 
+        /**
+         * Checks a text fragment, after inflation, against what came before it in the same message. Invalid
+         * text closes the connection with 1007 as RFC 6455 requires.
+         */
+        private boolean validate(ChannelHandlerContext context, WebSocketFrame frame){
+            if(utf8.update(frame.content()) && (!frame.isFinalFragment() || utf8.finish()))
+                return true;
+            releaseFragments();
+            context.channel().writeAndFlush(new CloseWebSocketFrame(FrameDecoder.CLOSE_INVALID_DATA, "Invalid UTF-8 text"))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return false;
+        }
+
+        private void releaseFragments(){
+            utf8.finish();
+            if(fragments != null){
+                fragments.release();
+                fragments = null;
+            }
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext context, Throwable ex) throws Exception {
             handleException(context, ex);
         }
 
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext context) throws Exception {
+            handleWritabilityChanged(context, context.channel().isWritable());
+            super.channelWritabilityChanged(context);
+        }
+
         @Override
         public void channelInactive(ChannelHandlerContext context) throws Exception {
             super.channelInactive(context);
+            releaseFragments();
+            RetainedMessage.pollLeaks();
+            if(topics != null)
+                for(Topic topic : topics.toArray(new Topic[topics.size()]))
+                    topic.remove(WebSocketConnection.this);
             handleDisconnect(context);
         }
     }